@@ -1383,7 +1383,7 @@ public class DownloadActivity extends SubsonicTabActivity implements OnGestureLi
 				switch (playerState)
 				{
 					case DOWNLOADING:
-						final long bytes = currentPlaying != null ? currentPlaying.getPartialFile().length() : 0;
+						final long bytes = currentPlaying != null ? currentPlaying.getDownloadedLength() : 0;
 						String downloadStatus = getResources().getString(R.string.download_playerstate_downloading, Util.formatLocalizedBytes(bytes, DownloadActivity.this));
 						setActionBarSubtitle(downloadStatus);
 						break;
@@ -18,6 +18,7 @@
  */
 package com.thejoshwa.ultrasonic.androidapp.activity;
 
+import android.content.Context;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -42,16 +43,17 @@ import com.thejoshwa.ultrasonic.androidapp.service.MusicService;
 import com.thejoshwa.ultrasonic.androidapp.service.MusicServiceFactory;
 import com.thejoshwa.ultrasonic.androidapp.util.AlbumHeader;
 import com.thejoshwa.ultrasonic.androidapp.util.Constants;
+import com.thejoshwa.ultrasonic.androidapp.util.DirectoryPrefetcher;
 import com.thejoshwa.ultrasonic.androidapp.util.EntryByDiscAndTrackComparator;
+import com.thejoshwa.ultrasonic.androidapp.util.PagedListLoader;
 import com.thejoshwa.ultrasonic.androidapp.util.Pair;
+import com.thejoshwa.ultrasonic.androidapp.util.ProgressListener;
 import com.thejoshwa.ultrasonic.androidapp.util.TabActivityBackgroundTask;
 import com.thejoshwa.ultrasonic.androidapp.util.Util;
 import com.thejoshwa.ultrasonic.androidapp.view.EntryAdapter;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
 
@@ -81,6 +83,9 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 	private MenuItem shareButton;
 	private boolean showHeader = true;
 	private Random random = new java.security.SecureRandom();
+	private DirectoryPrefetcher<MusicDirectory.Entry> prefetcher;
+	private PagedListLoader pagedListLoader;
+	private EntryAdapter entryAdapter;
 
 	/**
 	 * Called when the activity is first created.
@@ -137,6 +142,31 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 			}
 		});
 
+		prefetcher = new DirectoryPrefetcher<MusicDirectory.Entry>(this, MusicDirectory.Entry.class)
+		{
+			@Override
+			protected String getKey(MusicDirectory.Entry entry)
+			{
+				return entry.isDirectory() && !allSongsId.equals(entry.getId()) ? entry.getId() : null;
+			}
+
+			@Override
+			protected void load(MusicService musicService, MusicDirectory.Entry entry, Context context) throws Exception
+			{
+				// Load the directory the same way it is loaded when the entry is opened
+				if (Util.getShouldUseId3Tags(context))
+				{
+					musicService.getAlbum(entry.getId(), entry.getTitle(), false, context, null);
+				}
+				else
+				{
+					musicService.getMusicDirectory(entry.getId(), entry.getTitle(), false, context, null);
+				}
+			}
+		};
+
+		refreshAlbumListView.setOnScrollListener(prefetcher);
+
 		selectButton = (ImageView) findViewById(R.id.select_album_select);
 		playNowButton = (ImageView) findViewById(R.id.select_album_play_now);
 		playNextButton = (ImageView) findViewById(R.id.select_album_play_next);
@@ -290,6 +320,19 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 		}
 	}
 
+	@Override
+	protected void onDestroy()
+	{
+		prefetcher.shutdown();
+
+		if (pagedListLoader != null)
+		{
+			pagedListLoader.cancel();
+		}
+
+		super.onDestroy();
+	}
+
 	@Override
 	public boolean onPrepareOptionsMenu(Menu menu)
 	{
@@ -519,8 +562,7 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 					boolean refresh = getIntent().getBooleanExtra(Constants.INTENT_EXTRA_NAME_REFRESH, false);
 					MusicDirectory musicDirectory = service.getMusicDirectory(parentId, name, refresh, SelectAlbumActivity.this, this);
 
-					List<MusicDirectory.Entry> songs = new LinkedList<MusicDirectory.Entry>();
-					getSongsRecursively(musicDirectory, songs);
+					List<MusicDirectory.Entry> songs = createDirectoryTreeFetcher(this, false, Integer.MAX_VALUE).fetch(musicDirectory);
 
 					for (MusicDirectory.Entry song : songs)
 					{
@@ -562,31 +604,6 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 
 				return root;
 			}
-
-			private void getSongsRecursively(MusicDirectory parent, List<MusicDirectory.Entry> songs) throws Exception
-			{
-				for (MusicDirectory.Entry song : parent.getChildren(false, true))
-				{
-					if (!song.isVideo() && !song.isDirectory())
-					{
-						songs.add(song);
-					}
-				}
-
-				MusicService musicService = MusicServiceFactory.getMusicService(SelectAlbumActivity.this);
-
-				for (MusicDirectory.Entry dir : parent.getChildren(true, false))
-				{
-					MusicDirectory root;
-
-					if (!allSongsId.equals(dir.getId()))
-					{
-						root = musicService.getMusicDirectory(dir.getId(), dir.getTitle(), false, SelectAlbumActivity.this, this);
-
-						getSongsRecursively(root, songs);
-					}
-				}
-			}
 		}.execute();
 	}
 
@@ -650,8 +667,8 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 				{
 					MusicDirectory root = new MusicDirectory();
 
-					Collection<MusicDirectory.Entry> songs = new LinkedList<MusicDirectory.Entry>();
-					getSongsForArtist(parentId, songs);
+					MusicDirectory artist = service.getArtist(parentId, "", false, SelectAlbumActivity.this, this);
+					List<MusicDirectory.Entry> songs = createDirectoryTreeFetcher(this, true, Integer.MAX_VALUE).fetch(artist);
 
 					for (MusicDirectory.Entry song : songs)
 					{
@@ -670,28 +687,6 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 
 				return musicDirectory;
 			}
-
-			private void getSongsForArtist(String id, Collection<MusicDirectory.Entry> songs) throws Exception
-			{
-				MusicService musicService = MusicServiceFactory.getMusicService(SelectAlbumActivity.this);
-				MusicDirectory artist = musicService.getArtist(id, "", false, SelectAlbumActivity.this, this);
-
-				for (MusicDirectory.Entry album : artist.getChildren())
-				{
-					if (!allSongsId.equals(album.getId()))
-					{
-						MusicDirectory albumDirectory = musicService.getAlbum(album.getId(), "", false, SelectAlbumActivity.this, this);
-
-						for (MusicDirectory.Entry song : albumDirectory.getChildren())
-						{
-							if (!song.isVideo())
-							{
-								songs.add(song);
-							}
-						}
-					}
-				}
-			}
 		}.execute();
 	}
 
@@ -699,45 +694,32 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 	{
 		setActionBarSubtitle(genre);
 
+		pagedListLoader = new EntryPageLoader(String.format("genre %s", genre), count, true)
+		{
+			@Override
+			protected MusicDirectory loadPage(MusicService musicService, int offset, int size, Context context, ProgressListener progressListener) throws Exception
+			{
+				return musicService.getSongsByGenre(genre, size, offset, context, progressListener);
+			}
+		};
+
 		new LoadTask()
 		{
 			@Override
 			protected MusicDirectory load(MusicService service) throws Exception
 			{
-				return service.getSongsByGenre(genre, count, offset, SelectAlbumActivity.this, this);
+				boolean refresh = getIntent().getBooleanExtra(Constants.INTENT_EXTRA_NAME_REFRESH, false);
+				return pagedListLoader.getPage(offset, refresh, this);
 			}
 
 			@Override
 			protected void done(Pair<MusicDirectory, Boolean> result)
 			{
-				// Hide more button when results are less than album list size
-				if (result.getFirst().getChildren().size() < getIntent().getIntExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_SIZE, 0))
-				{
-					moreButton.setVisibility(View.GONE);
-				}
-				else
-				{
-					moreButton.setVisibility(View.VISIBLE);
-				}
-
-				moreButton.setOnClickListener(new View.OnClickListener()
-				{
-					@Override
-					public void onClick(View view)
-					{
-						Intent intent = new Intent(SelectAlbumActivity.this, SelectAlbumActivity.class);
-						String genre = getIntent().getStringExtra(Constants.INTENT_EXTRA_NAME_GENRE_NAME);
-						int size = getIntent().getIntExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_SIZE, 0);
-						int offset = getIntent().getIntExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_OFFSET, 0) + size;
-
-						intent.putExtra(Constants.INTENT_EXTRA_NAME_GENRE_NAME, genre);
-						intent.putExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_SIZE, size);
-						intent.putExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_OFFSET, offset);
-						startActivityForResultWithoutTransition(SelectAlbumActivity.this, intent);
-					}
-				});
-
+				pagedListLoader.setNextOffset(offset + count, result.getFirst().getChildren().size() >= count);
 				super.done(result);
+
+				// Further pages are added while scrolling
+				moreButton.setVisibility(View.GONE);
 			}
 		}.execute();
 	}
@@ -838,59 +820,35 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 
 		setActionBarSubtitle(albumListTitle);
 
+		final boolean useId3Tags = Util.getShouldUseId3Tags(this);
+
+		// Every request for random albums returns different ones, so those pages are not cached
+		pagedListLoader = new EntryPageLoader(String.format("%s %s", useId3Tags ? "albumList2" : "albumList", albumListType), size, !"random".equals(albumListType))
+		{
+			@Override
+			protected MusicDirectory loadPage(MusicService musicService, int offset, int size, Context context, ProgressListener progressListener) throws Exception
+			{
+				return useId3Tags ? musicService.getAlbumList2(albumListType, size, offset, context, progressListener) : musicService.getAlbumList(albumListType, size, offset, context, progressListener);
+			}
+		};
+
 		new LoadTask()
 		{
 			@Override
 			protected MusicDirectory load(MusicService service) throws Exception
 			{
-				return Util.getShouldUseId3Tags(SelectAlbumActivity.this) ? service.getAlbumList2(albumListType, size, offset, SelectAlbumActivity.this, this) : service.getAlbumList(albumListType, size, offset, SelectAlbumActivity.this, this);
+				boolean refresh = getIntent().getBooleanExtra(Constants.INTENT_EXTRA_NAME_REFRESH, false);
+				return pagedListLoader.getPage(offset, refresh, this);
 			}
 
 			@Override
 			protected void done(Pair<MusicDirectory, Boolean> result)
 			{
-				if (!result.getFirst().getChildren().isEmpty())
-				{
-					pinButton.setVisibility(View.GONE);
-					unpinButton.setVisibility(View.GONE);
-					downloadButton.setVisibility(View.GONE);
-					deleteButton.setVisibility(View.GONE);
-
-					// Hide more button when results are less than album list size
-					if (result.getFirst().getChildren().size() < getIntent().getIntExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_SIZE, 0))
-					{
-						moreButton.setVisibility(View.GONE);
-					}
-					else
-					{
-						moreButton.setVisibility(View.VISIBLE);
-
-						moreButton.setOnClickListener(new View.OnClickListener()
-						{
-							@Override
-							public void onClick(View view)
-							{
-								Intent intent = new Intent(SelectAlbumActivity.this, SelectAlbumActivity.class);
-								int albumListTitle = getIntent().getIntExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_TITLE, 0);
-								String type = getIntent().getStringExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_TYPE);
-								int size = getIntent().getIntExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_SIZE, 0);
-								int offset = getIntent().getIntExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_OFFSET, 0) + size;
-
-								intent.putExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_TITLE, albumListTitle);
-								intent.putExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_TYPE, type);
-								intent.putExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_SIZE, size);
-								intent.putExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_OFFSET, offset);
-								startActivityForResultWithoutTransition(SelectAlbumActivity.this, intent);
-							}
-						});
-					}
-				}
-				else
-				{
-					moreButton.setVisibility(View.GONE);
-				}
-
+				pagedListLoader.setNextOffset(offset + size, result.getFirst().getChildren().size() >= size);
 				super.done(result);
+
+				// Albums can't be selected, and further pages are added while scrolling
+				albumButtons.setVisibility(View.GONE);
 			}
 		}.execute();
 	}
@@ -1180,7 +1138,8 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 				shareButton.setVisible(shareButtonVisible);
 			}
 
-			albumListView.setAdapter(new EntryAdapter(SelectAlbumActivity.this, getImageLoader(), entries, true));
+			entryAdapter = new EntryAdapter(SelectAlbumActivity.this, getImageLoader(), entries, true);
+			albumListView.setAdapter(entryAdapter);
 			licenseValid = result.getSecond();
 
 			boolean playAll = getIntent().getBooleanExtra(Constants.INTENT_EXTRA_NAME_AUTOPLAY, false);
@@ -1241,6 +1200,34 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 		}
 	}
 
+	/**
+	 * Adds the pages after the first one to the list while it is scrolled.
+	 */
+	private abstract class EntryPageLoader extends PagedListLoader
+	{
+		public EntryPageLoader(String key, int pageSize, boolean cacheable)
+		{
+			super(SelectAlbumActivity.this, key, pageSize, cacheable, prefetcher);
+			refreshAlbumListView.setOnScrollListener(this);
+		}
+
+		@Override
+		protected void pageLoaded(List<MusicDirectory.Entry> entries, boolean hasMore)
+		{
+			if (entryAdapter != null)
+			{
+				entryAdapter.addAll(entries);
+			}
+		}
+
+		@Override
+		protected void pageFailed(Throwable error)
+		{
+			super.pageFailed(error);
+			Util.toast(SelectAlbumActivity.this, R.string.background_task_network_error);
+		}
+	}
+
 	private class GetDataTask extends AsyncTask<Void, Void, String[]>
 	{
 		@Override
@@ -19,6 +19,7 @@
 
 package com.thejoshwa.ultrasonic.androidapp.activity;
 
+import android.content.Context;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -43,6 +44,9 @@ import com.thejoshwa.ultrasonic.androidapp.service.MusicService;
 import com.thejoshwa.ultrasonic.androidapp.service.MusicServiceFactory;
 import com.thejoshwa.ultrasonic.androidapp.util.BackgroundTask;
 import com.thejoshwa.ultrasonic.androidapp.util.Constants;
+import com.thejoshwa.ultrasonic.androidapp.util.DirectoryPrefetcher;
+import com.thejoshwa.ultrasonic.androidapp.util.IndexesProgressListener;
+import com.thejoshwa.ultrasonic.androidapp.util.ProgressListener;
 import com.thejoshwa.ultrasonic.androidapp.util.TabActivityBackgroundTask;
 import com.thejoshwa.ultrasonic.androidapp.util.Util;
 import com.thejoshwa.ultrasonic.androidapp.view.ArtistAdapter;
@@ -57,9 +61,11 @@ public class SelectArtistActivity extends SubsonicTabActivity implements Adapter
 
 	private PullToRefreshListView refreshArtistListView;
 	private ListView artistListView;
+	private ArtistAdapter artistAdapter;
 	private View folderButton;
 	private TextView folderName;
 	private List<MusicFolder> musicFolders;
+	private DirectoryPrefetcher<Artist> prefetcher;
 
 	/**
 	 * Called when the activity is first created.
@@ -84,6 +90,31 @@ public class SelectArtistActivity extends SubsonicTabActivity implements Adapter
 
 		artistListView.setOnItemClickListener(this);
 
+		prefetcher = new DirectoryPrefetcher<Artist>(this, Artist.class)
+		{
+			@Override
+			protected String getKey(Artist artist)
+			{
+				return artist.getId();
+			}
+
+			@Override
+			protected void load(MusicService musicService, Artist artist, Context context) throws Exception
+			{
+				// Load the artist the same way SelectAlbumActivity does when it is opened
+				if (Util.getShouldUseId3Tags(context))
+				{
+					musicService.getArtist(artist.getId(), artist.getName(), false, context, null);
+				}
+				else
+				{
+					musicService.getMusicDirectory(artist.getId(), artist.getName(), false, context, null);
+				}
+			}
+		};
+
+		refreshArtistListView.setOnScrollListener(prefetcher);
+
 		folderButton = LayoutInflater.from(this).inflate(R.layout.select_artist_header, artistListView, false);
 
 		if (folderButton != null)
@@ -157,7 +188,37 @@ public class SelectArtistActivity extends SubsonicTabActivity implements Adapter
 
 				String musicFolderId = Util.getSelectedMusicFolderId(SelectArtistActivity.this);
 
-				return !isOffline && useId3Tags ? musicService.getArtists(refresh, SelectArtistActivity.this, this) : musicService.getIndexes(musicFolderId, refresh, SelectArtistActivity.this, this);
+				// Show the artists of each index as soon as it has been parsed
+				final ProgressListener progressListener = this;
+				IndexesProgressListener indexesProgressListener = new IndexesProgressListener()
+				{
+					@Override
+					public void updateArtists(final List<Artist> artists)
+					{
+						runOnUiThread(new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								addArtists(artists);
+							}
+						});
+					}
+
+					@Override
+					public void updateProgress(String message)
+					{
+						progressListener.updateProgress(message);
+					}
+
+					@Override
+					public void updateProgress(int messageId)
+					{
+						progressListener.updateProgress(messageId);
+					}
+				};
+
+				return !isOffline && useId3Tags ? musicService.getArtists(refresh, SelectArtistActivity.this, indexesProgressListener) : musicService.getIndexes(musicFolderId, refresh, SelectArtistActivity.this, indexesProgressListener);
 			}
 
 			@Override
@@ -165,10 +226,17 @@ public class SelectArtistActivity extends SubsonicTabActivity implements Adapter
 			{
 				if (result != null)
 				{
-					List<Artist> artists = new ArrayList<Artist>(result.getShortcuts().size() + result.getArtists().size());
-					artists.addAll(result.getShortcuts());
-					artists.addAll(result.getArtists());
-					artistListView.setAdapter(new ArtistAdapter(SelectArtistActivity.this, artists));
+					int count = result.getShortcuts().size() + result.getArtists().size();
+
+					// Keep the list that was filled while loading, unless the final result differs from it
+					if (artistAdapter == null || artistAdapter.getCount() != count)
+					{
+						List<Artist> artists = new ArrayList<Artist>(count);
+						artists.addAll(result.getShortcuts());
+						artists.addAll(result.getArtists());
+						artistAdapter = new ArtistAdapter(SelectArtistActivity.this, artists);
+						artistListView.setAdapter(artistAdapter);
+					}
 				}
 
 				// Display selected music folder
@@ -203,6 +271,26 @@ public class SelectArtistActivity extends SubsonicTabActivity implements Adapter
 		task.execute();
 	}
 
+	private void addArtists(List<Artist> artists)
+	{
+		if (artistAdapter == null)
+		{
+			artistAdapter = new ArtistAdapter(this, new ArrayList<Artist>(artists));
+			artistListView.setAdapter(artistAdapter);
+		}
+		else
+		{
+			artistAdapter.addArtists(artists);
+		}
+	}
+
+	@Override
+	protected void onDestroy()
+	{
+		prefetcher.shutdown();
+		super.onDestroy();
+	}
+
 	@Override
 	public void onItemClick(AdapterView<?> parent, View view, int position, long id)
 	{
@@ -19,6 +19,7 @@
 package com.thejoshwa.ultrasonic.androidapp.activity;
 
 import android.app.ActionBar;
+import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -74,6 +75,9 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 	private EditTextPreference cacheLocation;
 	private ListPreference preloadCount;
 	private ListPreference bufferLength;
+	private ListPreference downloadSegments;
+	private ListPreference maxDownloadsWifi;
+	private ListPreference maxDownloadsMobile;
 	private ListPreference incrementTime;
 	private ListPreference networkTimeout;
 	private ListPreference maxAlbums;
@@ -168,6 +172,9 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 		cacheLocation = (EditTextPreference) findPreference(Constants.PREFERENCES_KEY_CACHE_LOCATION);
 		preloadCount = (ListPreference) findPreference(Constants.PREFERENCES_KEY_PRELOAD_COUNT);
 		bufferLength = (ListPreference) findPreference(Constants.PREFERENCES_KEY_BUFFER_LENGTH);
+		downloadSegments = (ListPreference) findPreference(Constants.PREFERENCES_KEY_DOWNLOAD_SEGMENTS);
+		maxDownloadsWifi = (ListPreference) findPreference(Constants.PREFERENCES_KEY_MAX_DOWNLOADS_WIFI);
+		maxDownloadsMobile = (ListPreference) findPreference(Constants.PREFERENCES_KEY_MAX_DOWNLOADS_MOBILE);
 		incrementTime = (ListPreference) findPreference(Constants.PREFERENCES_KEY_INCREMENT_TIME);
 		networkTimeout = (ListPreference) findPreference(Constants.PREFERENCES_KEY_NETWORK_TIMEOUT);
 		maxAlbums = (ListPreference) findPreference(Constants.PREFERENCES_KEY_MAX_ALBUMS);
@@ -207,6 +214,30 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 			});
 		}
 
+		Preference statisticsPreference = findPreference(Constants.PREFERENCES_KEY_SHOW_STATISTICS);
+
+		if (statisticsPreference != null)
+		{
+			statisticsPreference.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener()
+			{
+				@Override
+				public boolean onPreferenceClick(Preference preference)
+				{
+					String statistics = MusicServiceFactory.getMusicService(SettingsActivity.this).getStatistics(SettingsActivity.this);
+					ImageLoader imageLoader = SubsonicTabActivity.IMAGE_LOADER;
+
+					if (imageLoader != null)
+					{
+						statistics = String.format("%s\n%s", statistics, imageLoader.getStatistics());
+					}
+
+					Log.i(TAG, statistics);
+					new AlertDialog.Builder(SettingsActivity.this).setTitle(R.string.settings_statistics_title).setMessage(statistics).setPositiveButton(R.string.common_ok, null).show();
+					return false;
+				}
+			});
+		}
+
 		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
 		{
 			PreferenceCategory playbackControlSettings = (PreferenceCategory) findPreference(Constants.PREFERENCES_KEY_PLAYBACK_CONTROL_SETTINGS);
@@ -546,6 +577,9 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 		cacheLocation.setSummary(cacheLocation.getText());
 		preloadCount.setSummary(preloadCount.getEntry());
 		bufferLength.setSummary(bufferLength.getEntry());
+		downloadSegments.setSummary(downloadSegments.getEntry());
+		maxDownloadsWifi.setSummary(maxDownloadsWifi.getEntry());
+		maxDownloadsMobile.setSummary(maxDownloadsMobile.getEntry());
 		incrementTime.setSummary(incrementTime.getEntry());
 		networkTimeout.setSummary(networkTimeout.getEntry());
 		maxAlbums.setSummary(maxAlbums.getEntry());
@@ -65,6 +65,7 @@ import com.thejoshwa.ultrasonic.androidapp.service.MusicService;
 import com.thejoshwa.ultrasonic.androidapp.service.MusicServiceFactory;
 import com.thejoshwa.ultrasonic.androidapp.util.BackgroundTask;
 import com.thejoshwa.ultrasonic.androidapp.util.Constants;
+import com.thejoshwa.ultrasonic.androidapp.util.DirectoryTreeFetcher;
 import com.thejoshwa.ultrasonic.androidapp.util.EntryByDiscAndTrackComparator;
 import com.thejoshwa.ultrasonic.androidapp.util.ImageLoader;
 import com.thejoshwa.ultrasonic.androidapp.util.ModalBackgroundTask;
@@ -82,9 +83,7 @@ import net.simonvt.menudrawer.Position;
 import java.io.File;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -95,6 +94,7 @@ public class SubsonicTabActivity extends ResultActivity implements OnClickListen
 {
 	private static final String TAG = SubsonicTabActivity.class.getSimpleName();
 	private static final Pattern COMPILE = Pattern.compile(":");
+	private static final int MAX_CONCURRENT_DIRECTORY_REQUESTS = 4;
 	protected static ImageLoader IMAGE_LOADER;
 	protected static String theme;
 	private static SubsonicTabActivity instance;
@@ -985,6 +985,15 @@ public class SubsonicTabActivity extends ResultActivity implements OnClickListen
 		return IMAGE_LOADER;
 	}
 
+	/**
+	 * Returns the image loader if it is running, without starting one, so that it can be called off the main thread.
+	 */
+	public static ImageLoader getRunningImageLoader()
+	{
+		ImageLoader imageLoader = IMAGE_LOADER;
+		return imageLoader != null && imageLoader.isRunning() ? imageLoader : null;
+	}
+
 	void download(final boolean append, final boolean save, final boolean autoPlay, final boolean playNext, final boolean shuffle, final List<Entry> songs)
 	{
 		if (getDownloadService() == null)
@@ -1053,124 +1062,147 @@ public class SubsonicTabActivity extends ResultActivity implements OnClickListen
 
 	protected void downloadRecursively(final String id, final String name, final boolean isShare, final boolean isDirectory, final boolean save, final boolean append, final boolean autoplay, final boolean shuffle, final boolean background, final boolean playNext, final boolean unpin, final boolean isArtist)
 	{
+		// Unless the songs are reordered or inserted after the current song, add them to the queue while the rest is loading
+		final boolean queueWhileLoading = !unpin && !playNext && !shuffle && !Util.getShouldSortByDisc(this);
+
 		ModalBackgroundTask<List<Entry>> task = new ModalBackgroundTask<List<Entry>>(this, false)
 		{
 			private static final int MAX_SONGS = 500;
+			private static final long QUEUE_DELAY_MILLIS = 1000L;
+			private final List<Entry> pending = new ArrayList<Entry>();
+			private boolean queued;
+
+			// Songs fetched after the first directory are queued together, since every call to the
+			// download service syncs the jukebox and saves the whole queue
+			private final Runnable queuePending = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					List<Entry> songs = new ArrayList<Entry>(pending);
+					pending.clear();
+
+					if (!isCancelled())
+					{
+						queue(songs);
+					}
+				}
+			};
 
 			@Override
 			protected List<Entry> doInBackground() throws Throwable
 			{
 				MusicService musicService = MusicServiceFactory.getMusicService(SubsonicTabActivity.this);
-				List<Entry> songs = new LinkedList<Entry>();
+				boolean useId3Tags = !Util.isOffline(SubsonicTabActivity.this) && Util.getShouldUseId3Tags(SubsonicTabActivity.this);
 				MusicDirectory root;
 
-				if (!Util.isOffline(SubsonicTabActivity.this) && isArtist && Util.getShouldUseId3Tags(SubsonicTabActivity.this))
+				if (useId3Tags && isArtist)
 				{
-					getSongsForArtist(id, songs);
+					root = musicService.getArtist(id, "", false, SubsonicTabActivity.this, this);
 				}
-				else
+				else if (isDirectory)
 				{
-					if (isDirectory)
-					{
-						root = !Util.isOffline(SubsonicTabActivity.this) && Util.getShouldUseId3Tags(SubsonicTabActivity.this) ? musicService.getAlbum(id, name, false, SubsonicTabActivity.this, this) : musicService.getMusicDirectory(id, name, false, SubsonicTabActivity.this, this);
-					}
-					else if (isShare)
-					{
-						root = new MusicDirectory();
+					root = useId3Tags ? musicService.getAlbum(id, name, false, SubsonicTabActivity.this, this) : musicService.getMusicDirectory(id, name, false, SubsonicTabActivity.this, this);
+				}
+				else if (isShare)
+				{
+					root = new MusicDirectory();
 
-						List<Share> shares = musicService.getShares(true, SubsonicTabActivity.this, this);
+					List<Share> shares = musicService.getShares(true, SubsonicTabActivity.this, this);
 
-						for (Share share : shares)
+					for (Share share : shares)
+					{
+						if (share.getId().equals(id))
 						{
-							if (share.getId().equals(id))
+							for (Entry entry : share.getEntries())
 							{
-								for (Entry entry : share.getEntries())
-								{
-									root.addChild(entry);
-								}
-
-								break;
+								root.addChild(entry);
 							}
+
+							break;
 						}
 					}
-					else
-					{
-						root = musicService.getPlaylist(id, name, SubsonicTabActivity.this, this);
-					}
-
-					getSongsRecursively(root, songs);
 				}
-
-				return songs;
-			}
-
-			private void getSongsRecursively(MusicDirectory parent, List<Entry> songs) throws Exception
-			{
-				if (songs.size() > MAX_SONGS)
+				else
 				{
-					return;
+					root = musicService.getPlaylist(id, name, SubsonicTabActivity.this, this);
 				}
 
-				for (Entry song : parent.getChildren(false, true))
+				DirectoryTreeFetcher.Listener listener = null;
+
+				if (queueWhileLoading)
 				{
-					if (!song.isVideo())
+					listener = new DirectoryTreeFetcher.Listener()
 					{
-						songs.add(song);
-					}
-				}
+						@Override
+						public void songsFetched(List<Entry> songs)
+						{
+							final List<Entry> fetched = new ArrayList<Entry>(songs);
 
-				MusicService musicService = MusicServiceFactory.getMusicService(SubsonicTabActivity.this);
+							getHandler().post(new Runnable()
+							{
+								@Override
+								public void run()
+								{
+									if (!queued)
+									{
+										if (!isCancelled())
+										{
+											queue(fetched);
+										}
 
-				for (Entry dir : parent.getChildren(true, false))
-				{
-					MusicDirectory root;
+										return;
+									}
 
-					root = !Util.isOffline(SubsonicTabActivity.this) && Util.getShouldUseId3Tags(SubsonicTabActivity.this) ? musicService.getAlbum(dir.getId(), dir.getTitle(), false, SubsonicTabActivity.this, this) : musicService.getMusicDirectory(dir.getId(), dir.getTitle(), false, SubsonicTabActivity.this, this);
+									if (pending.isEmpty())
+									{
+										getHandler().postDelayed(queuePending, QUEUE_DELAY_MILLIS);
+									}
 
-					getSongsRecursively(root, songs);
+									pending.addAll(fetched);
+								}
+							});
+						}
+					};
 				}
+
+				return createDirectoryTreeFetcher(this, useId3Tags, MAX_SONGS).fetch(root, listener);
 			}
 
-			private void getSongsForArtist(String id, Collection<Entry> songs) throws Exception
+			@Override
+			protected void done(List<Entry> songs)
 			{
-				if (songs.size() > MAX_SONGS)
+				if (queueWhileLoading)
 				{
+					getHandler().removeCallbacks(queuePending);
+					queuePending.run();
 					return;
 				}
 
-				MusicService musicService = MusicServiceFactory.getMusicService(SubsonicTabActivity.this);
-				MusicDirectory artist = musicService.getArtist(id, "", false, SubsonicTabActivity.this, this);
-
-				for (Entry album : artist.getChildren())
-				{
-					MusicDirectory albumDirectory = musicService.getAlbum(album.getId(), "", false, SubsonicTabActivity.this, this);
-
-					for (Entry song : albumDirectory.getChildren())
-					{
-						if (!song.isVideo())
-						{
-							songs.add(song);
-						}
-					}
-				}
-			}
-
-			@Override
-			protected void done(List<Entry> songs)
-			{
 				if (Util.getShouldSortByDisc(SubsonicTabActivity.this))
 				{
 					Collections.sort(songs, new EntryByDiscAndTrackComparator());
 				}
 
+				queue(songs);
+			}
+
+			private void queue(List<Entry> songs)
+			{
 				DownloadService downloadService = getDownloadService();
 				if (!songs.isEmpty() && downloadService != null)
 				{
-					if (!append && !playNext && !unpin && !background)
+					boolean first = !queued;
+					queued = true;
+
+					if (first)
 					{
-						downloadService.clear();
+						if (!append && !playNext && !unpin && !background)
+						{
+							downloadService.clear();
+						}
+						warnIfNetworkOrStorageUnavailable();
 					}
-					warnIfNetworkOrStorageUnavailable();
 					if (!background)
 					{
 						if (unpin)
@@ -1179,8 +1211,8 @@ public class SubsonicTabActivity extends ResultActivity implements OnClickListen
 						}
 						else
 						{
-							downloadService.download(songs, save, autoplay, playNext, shuffle, false);
-							if (!append && Util.getShouldTransitionOnPlaybackPreference(SubsonicTabActivity.this))
+							downloadService.download(songs, save, autoplay && first, playNext, shuffle, false);
+							if (first && !append && Util.getShouldTransitionOnPlaybackPreference(SubsonicTabActivity.this))
 							{
 								startActivityForResultWithoutTransition(SubsonicTabActivity.this, DownloadActivity.class);
 							}
@@ -1204,6 +1236,35 @@ public class SubsonicTabActivity extends ResultActivity implements OnClickListen
 		task.execute();
 	}
 
+	/**
+	 * Creates a fetcher for the songs below a directory, which loads subdirectories with the given
+	 * task as progress listener and stops when the task is cancelled.
+	 */
+	protected DirectoryTreeFetcher createDirectoryTreeFetcher(final BackgroundTask<?> task, final boolean useId3Tags, int maxSongs)
+	{
+		final MusicService musicService = MusicServiceFactory.getMusicService(this);
+
+		return new DirectoryTreeFetcher(MAX_CONCURRENT_DIRECTORY_REQUESTS, maxSongs)
+		{
+			@Override
+			protected MusicDirectory load(Entry directory) throws Exception
+			{
+				if (SelectAlbumActivity.allSongsId.equals(directory.getId()))
+				{
+					return null;
+				}
+
+				return useId3Tags ? musicService.getAlbum(directory.getId(), directory.getTitle(), false, SubsonicTabActivity.this, task) : musicService.getMusicDirectory(directory.getId(), directory.getTitle(), false, SubsonicTabActivity.this, task);
+			}
+
+			@Override
+			protected boolean isCancelled()
+			{
+				return super.isCancelled() || task.isCancelled();
+			}
+		};
+	}
+
 	protected void playVideo(Entry entry)
 	{
 		if (!Util.isNetworkConnected(this))
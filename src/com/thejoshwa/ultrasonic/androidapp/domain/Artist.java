@@ -77,7 +77,7 @@ public class Artist implements Serializable
 		this.coverArt = coverArt;
 	}
 
-	public long getAlbumCount()
+	public Long getAlbumCount()
 	{
 		return albumCount;
 	}
@@ -0,0 +1,216 @@
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.util.Log;
+
+import com.thejoshwa.ultrasonic.androidapp.service.ssl.SSLSocketFactory;
+import com.thejoshwa.ultrasonic.androidapp.service.ssl.TrustSelfSignedStrategy;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HttpTransport} backed by the Apache {@link DefaultHttpClient} and a pool of connections
+ * limited per route, which records how long requests wait for a pooled connection.
+ */
+public class ApacheHttpTransport implements HttpTransport
+{
+	private static final String TAG = ApacheHttpTransport.class.getSimpleName();
+
+	private final DefaultHttpClient httpClient;
+	private final ConnectionPoolStatistics statistics = new ConnectionPoolStatistics(true);
+
+	public ApacheHttpTransport(int maxConnections, int maxConnectionsPerRoute, final long keepAliveMillis, int connectTimeout, int readTimeout)
+	{
+		// Create and initialize default HTTP parameters
+		HttpParams params = new BasicHttpParams();
+		ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerRoute));
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+		HttpConnectionParams.setSoTimeout(params, readTimeout);
+
+		// Turn off stale checking.  Our connections break all the time anyway,
+		// and it's not worth it to pay the penalty of checking every time.
+		// Dead connections are detected by the retry handler instead.
+		HttpConnectionParams.setStaleCheckingEnabled(params, false);
+
+		// Create and initialize scheme registry
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemeRegistry.register(new Scheme("https", createSSLSocketFactory(), 443));
+
+		// Create an HttpClient with the ThreadSafeClientConnManager.
+		// This connection manager must be used if more than one thread will
+		// be using the HttpClient.
+		httpClient = new DefaultHttpClient(new InstrumentedConnectionManager(params, schemeRegistry), params);
+
+		httpClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler()
+		{
+			@Override
+			public boolean retryRequest(IOException exception, int executionCount, HttpContext context)
+			{
+				boolean retry = super.retryRequest(exception, executionCount, context);
+
+				if (retry)
+				{
+					statistics.recordDeadConnectionRetry();
+				}
+
+				return retry;
+			}
+		});
+
+		// Keep idle connections for as long as the server allows, but not longer than the given time
+		httpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy()
+		{
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context)
+			{
+				for (Header header : response.getHeaders("Keep-Alive"))
+				{
+					for (HeaderElement element : header.getElements())
+					{
+						if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null)
+						{
+							try
+							{
+								return Math.min(Long.parseLong(element.getValue()) * 1000L, keepAliveMillis);
+							}
+							catch (NumberFormatException x)
+							{
+								// Ignored
+							}
+						}
+					}
+				}
+
+				return keepAliveMillis;
+			}
+		});
+	}
+
+	private static SocketFactory createSSLSocketFactory()
+	{
+		try
+		{
+			return new SSLSocketFactory(new TrustSelfSignedStrategy(), SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+		}
+		catch (Throwable x)
+		{
+			Log.e(TAG, "Failed to create custom SSL socket factory, using default.", x);
+			return org.apache.http.conn.ssl.SSLSocketFactory.getSocketFactory();
+		}
+	}
+
+	@Override
+	public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException
+	{
+		return httpClient.execute(request, context);
+	}
+
+	@Override
+	public void setCredentials(String username, String password)
+	{
+		httpClient.getCredentialsProvider().setCredentials(new AuthScope(AuthScope.ANY_HOST, AuthScope.ANY_PORT), new UsernamePasswordCredentials(username, password));
+	}
+
+	@Override
+	public ConnectionPoolStatistics getStatistics()
+	{
+		return statistics;
+	}
+
+	/**
+	 * Connection manager that reports leased connections and waits for a free connection.
+	 */
+	private class InstrumentedConnectionManager extends ThreadSafeClientConnManager
+	{
+		private final Set<ManagedClientConnection> leasedConnections = Collections.newSetFromMap(new IdentityHashMap<ManagedClientConnection, Boolean>());
+
+		public InstrumentedConnectionManager(HttpParams params, SchemeRegistry schemeRegistry)
+		{
+			super(params, schemeRegistry);
+		}
+
+		@Override
+		public ClientConnectionRequest requestConnection(HttpRoute route, Object state)
+		{
+			final ClientConnectionRequest request = super.requestConnection(route, state);
+
+			return new ClientConnectionRequest()
+			{
+				@Override
+				public ManagedClientConnection getConnection(long timeout, TimeUnit timeUnit) throws InterruptedException, ConnectionPoolTimeoutException
+				{
+					long start = System.currentTimeMillis();
+					ManagedClientConnection connection = null;
+					statistics.startWaiting();
+
+					try
+					{
+						connection = request.getConnection(timeout, timeUnit);
+
+						synchronized (leasedConnections)
+						{
+							leasedConnections.add(connection);
+						}
+
+						return connection;
+					}
+					finally
+					{
+						statistics.stopWaiting(connection != null, System.currentTimeMillis() - start);
+					}
+				}
+
+				@Override
+				public void abortRequest()
+				{
+					request.abortRequest();
+				}
+			};
+		}
+
+		@Override
+		public void releaseConnection(ManagedClientConnection connection, long validDuration, TimeUnit timeUnit)
+		{
+			// A connection may be released more than once, only count the first time
+			synchronized (leasedConnections)
+			{
+				if (leasedConnections.remove(connection))
+				{
+					statistics.released();
+				}
+			}
+
+			super.releaseConnection(connection, validDuration, timeUnit);
+		}
+	}
+}
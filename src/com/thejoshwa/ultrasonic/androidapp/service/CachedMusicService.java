@@ -20,6 +20,7 @@ package com.thejoshwa.ultrasonic.androidapp.service;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.util.Log;
 
 import com.thejoshwa.ultrasonic.androidapp.domain.Bookmark;
 import com.thejoshwa.ultrasonic.androidapp.domain.ChatMessage;
@@ -36,9 +37,12 @@ import com.thejoshwa.ultrasonic.androidapp.domain.Share;
 import com.thejoshwa.ultrasonic.androidapp.domain.UserInfo;
 import com.thejoshwa.ultrasonic.androidapp.domain.Version;
 import com.thejoshwa.ultrasonic.androidapp.util.CancellableTask;
+import com.thejoshwa.ultrasonic.androidapp.util.Codecs;
 import com.thejoshwa.ultrasonic.androidapp.util.Constants;
+import com.thejoshwa.ultrasonic.androidapp.util.DiskCache;
 import com.thejoshwa.ultrasonic.androidapp.util.LRUCache;
 import com.thejoshwa.ultrasonic.androidapp.util.ProgressListener;
+import com.thejoshwa.ultrasonic.androidapp.util.SingleFlight;
 import com.thejoshwa.ultrasonic.androidapp.util.TimeLimitedCache;
 import com.thejoshwa.ultrasonic.androidapp.util.Util;
 
@@ -46,7 +50,12 @@ import org.apache.http.HttpResponse;
 
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -55,7 +64,13 @@ import java.util.concurrent.TimeUnit;
 public class CachedMusicService implements MusicService
 {
 
+	private static final String TAG = CachedMusicService.class.getSimpleName();
 	private static final int MUSIC_DIR_CACHE_SIZE = 100;
+	private static final long MUSIC_DIR_DISK_CACHE_SIZE = 10L * 1024L * 1024L;
+	private static final long MUSIC_DIR_DISK_CACHE_TTL_DAYS = 7L;
+	private static final String DIRECTORY_KEY_PREFIX = "directory:";
+	private static final String ARTIST_KEY_PREFIX = "artist:";
+	private static final String ALBUM_KEY_PREFIX = "album:";
 
 	private final MusicService musicService;
 	private final LRUCache<String, TimeLimitedCache<MusicDirectory>> cachedMusicDirectories;
@@ -63,13 +78,20 @@ public class CachedMusicService implements MusicService
 	private final LRUCache<String, TimeLimitedCache<MusicDirectory>> cachedAlbum;
 	private final LRUCache<String, TimeLimitedCache<UserInfo>> cachedUserInfo;
 	private final TimeLimitedCache<Boolean> cachedLicenseValid = new TimeLimitedCache<Boolean>(120, TimeUnit.SECONDS);
-	private final TimeLimitedCache<Indexes> cachedIndexes = new TimeLimitedCache<Indexes>(60 * 60, TimeUnit.SECONDS);
+	private final TimeLimitedCache<Indexes> cachedIndexes = new TimeLimitedCache<Indexes>(60 * 60, 24 * 3600, TimeUnit.SECONDS);
 	private final TimeLimitedCache<Indexes> cachedArtists = new TimeLimitedCache<Indexes>(60 * 60, TimeUnit.SECONDS);
-	private final TimeLimitedCache<List<Playlist>> cachedPlaylists = new TimeLimitedCache<List<Playlist>>(3600, TimeUnit.SECONDS);
+	private final TimeLimitedCache<List<Playlist>> cachedPlaylists = new TimeLimitedCache<List<Playlist>>(3600, 24 * 3600, TimeUnit.SECONDS);
 	private final TimeLimitedCache<List<MusicFolder>> cachedMusicFolders = new TimeLimitedCache<List<MusicFolder>>(10 * 3600, TimeUnit.SECONDS);
-	private final TimeLimitedCache<List<Genre>> cachedGenres = new TimeLimitedCache<List<Genre>>(10 * 3600, TimeUnit.SECONDS);
+	private final TimeLimitedCache<List<Genre>> cachedGenres = new TimeLimitedCache<List<Genre>>(10 * 3600, 7 * 24 * 3600, TimeUnit.SECONDS);
+	private final DiskCache<MusicDirectory> diskCachedDirectories = new DiskCache<MusicDirectory>("directories", Codecs.MUSIC_DIRECTORY, MUSIC_DIR_DISK_CACHE_SIZE, MUSIC_DIR_DISK_CACHE_TTL_DAYS, TimeUnit.DAYS);
+	private final ExecutorService revalidationExecutor = Executors.newSingleThreadExecutor();
+	private final Set<String> pendingRevalidations = new HashSet<String>();
+	private final SingleFlight<String, MusicDirectory> directoryRequests = new SingleFlight<String, MusicDirectory>();
+	private final SingleFlight<String, Indexes> indexesRequests = new SingleFlight<String, Indexes>();
+	private final SingleFlight<String, Bitmap> coverArtRequests = new SingleFlight<String, Bitmap>();
 
 	private String restUrl;
+	private volatile long directoriesInvalidated;
 
 	public CachedMusicService(MusicService musicService)
 	{
@@ -118,7 +140,7 @@ public class CachedMusicService implements MusicService
 	}
 
 	@Override
-	public Indexes getIndexes(String musicFolderId, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	public Indexes getIndexes(final String musicFolderId, boolean refresh, Context context, ProgressListener progressListener) throws Exception
 	{
 		checkSettingsChanged(context);
 		if (refresh)
@@ -126,16 +148,38 @@ public class CachedMusicService implements MusicService
 			cachedIndexes.clear();
 			cachedMusicFolders.clear();
 			cachedMusicDirectories.clear();
+			directoriesInvalidated = System.currentTimeMillis();
 		}
-		Indexes result = cachedIndexes.get();
+		final Context applicationContext = context.getApplicationContext();
+		Indexes result = getStaleWhileRevalidate(cachedIndexes, new Callable<Indexes>()
+		{
+			@Override
+			public Indexes call() throws Exception
+			{
+				return loadIndexes(musicFolderId, true, applicationContext, null);
+			}
+		});
+
 		if (result == null)
 		{
-			result = musicService.getIndexes(musicFolderId, refresh, context, progressListener);
+			result = loadIndexes(musicFolderId, refresh, context, progressListener);
 			cachedIndexes.set(result);
 		}
 		return result;
 	}
 
+	private Indexes loadIndexes(final String musicFolderId, final boolean refresh, final Context context, final ProgressListener progressListener) throws Exception
+	{
+		return indexesRequests.execute(String.format("%s:%s", musicFolderId, refresh), new Callable<Indexes>()
+		{
+			@Override
+			public Indexes call() throws Exception
+			{
+				return musicService.getIndexes(musicFolderId, refresh, context, progressListener);
+			}
+		});
+	}
+
 	@Override
 	public Indexes getArtists(boolean refresh, Context context, ProgressListener progressListener) throws Exception
 	{
@@ -154,53 +198,199 @@ public class CachedMusicService implements MusicService
 	}
 
 	@Override
-	public MusicDirectory getMusicDirectory(String id, String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	public MusicDirectory getMusicDirectory(final String id, final String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
 	{
-		checkSettingsChanged(context);
-		TimeLimitedCache<MusicDirectory> cache = refresh ? null : cachedMusicDirectories.get(id);
-
-		MusicDirectory dir = cache == null ? null : cache.get();
+		return getDirectory(DIRECTORY_KEY_PREFIX, id, cachedMusicDirectories, refresh, context, progressListener, new DirectoryLoader()
+		{
+			@Override
+			public MusicDirectory load(boolean refresh, Context context, ProgressListener progressListener) throws Exception
+			{
+				return musicService.getMusicDirectory(id, name, refresh, context, progressListener);
+			}
+		});
+	}
 
-		if (dir == null)
+	@Override
+	public MusicDirectory getArtist(final String id, final String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	{
+		return getDirectory(ARTIST_KEY_PREFIX, id, cachedArtist, refresh, context, progressListener, new DirectoryLoader()
 		{
-			dir = musicService.getMusicDirectory(id, name, refresh, context, progressListener);
-			cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
-			cache.set(dir);
-			cachedMusicDirectories.put(id, cache);
-		}
-		return dir;
+			@Override
+			public MusicDirectory load(boolean refresh, Context context, ProgressListener progressListener) throws Exception
+			{
+				return musicService.getArtist(id, name, refresh, context, progressListener);
+			}
+		});
 	}
 
 	@Override
-	public MusicDirectory getArtist(String id, String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	public MusicDirectory getAlbum(final String id, final String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	{
+		return getDirectory(ALBUM_KEY_PREFIX, id, cachedAlbum, refresh, context, progressListener, new DirectoryLoader()
+		{
+			@Override
+			public MusicDirectory load(boolean refresh, Context context, ProgressListener progressListener) throws Exception
+			{
+				return musicService.getAlbum(id, name, refresh, context, progressListener);
+			}
+		});
+	}
+
+	/**
+	 * Looks up a directory in memory, then on disk and finally on the server. A directory found on disk
+	 * is returned right away, and if it is older than the directory cache time it is fetched again
+	 * in the background so the next lookup sees the server's current state.
+	 */
+	private MusicDirectory getDirectory(String keyPrefix, String id, LRUCache<String, TimeLimitedCache<MusicDirectory>> memoryCache, boolean refresh, Context context, ProgressListener progressListener, DirectoryLoader loader) throws Exception
 	{
 		checkSettingsChanged(context);
-		TimeLimitedCache<MusicDirectory> cache = refresh ? null : cachedArtist.get(id);
+		TimeLimitedCache<MusicDirectory> cache = refresh ? null : memoryCache.get(id);
 		MusicDirectory dir = cache == null ? null : cache.get();
-		if (dir == null)
+
+		if (dir != null)
 		{
-			dir = musicService.getArtist(id, name, refresh, context, progressListener);
-			cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
-			cache.set(dir);
-			cachedArtist.put(id, cache);
+			return dir;
+		}
+
+		String server = restUrl;
+		String diskKey = keyPrefix + id;
+
+		if (!refresh)
+		{
+			DiskCache.Item<MusicDirectory> item = diskCachedDirectories.get(context, server, diskKey);
+
+			if (item != null)
+			{
+				dir = item.getValue();
+				putDirectory(memoryCache, id, dir, context);
+
+				if (item.getAge() > TimeUnit.SECONDS.toMillis(Util.getDirectoryCacheTime(context)) || item.getTimestamp() < directoriesInvalidated)
+				{
+					revalidateDirectory(server, diskKey, id, memoryCache, context, loader);
+				}
+
+				return dir;
+			}
 		}
+
+		dir = loadDirectory(server, diskKey, refresh, context, progressListener, loader);
+		putDirectory(memoryCache, id, dir, context);
+		diskCachedDirectories.put(context, server, diskKey, dir);
 		return dir;
 	}
 
-	@Override
-	public MusicDirectory getAlbum(String id, String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	private void revalidateDirectory(final String server, final String diskKey, final String id, final LRUCache<String, TimeLimitedCache<MusicDirectory>> memoryCache, Context context, final DirectoryLoader loader)
 	{
-		checkSettingsChanged(context);
-		TimeLimitedCache<MusicDirectory> cache = refresh ? null : cachedAlbum.get(id);
-		MusicDirectory dir = cache == null ? null : cache.get();
-		if (dir == null)
+		synchronized (pendingRevalidations)
 		{
-			dir = musicService.getAlbum(id, name, refresh, context, progressListener);
-			cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
-			cache.set(dir);
-			cachedAlbum.put(id, cache);
+			if (!pendingRevalidations.add(server + diskKey))
+			{
+				return;
+			}
 		}
-		return dir;
+
+		final Context applicationContext = context.getApplicationContext();
+
+		revalidationExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					MusicDirectory dir = loadDirectory(server, diskKey, false, applicationContext, null, loader);
+
+					// Don't publish the result if the server changed while it was loading
+					if (Util.equals(server, restUrl))
+					{
+						putDirectory(memoryCache, id, dir, applicationContext);
+						diskCachedDirectories.put(applicationContext, server, diskKey, dir);
+					}
+				}
+				catch (Exception x)
+				{
+					Log.w(TAG, String.format("Failed to revalidate %s", diskKey), x);
+				}
+				finally
+				{
+					synchronized (pendingRevalidations)
+					{
+						pendingRevalidations.remove(server + diskKey);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the cached value if it is still fresh. An expired value within its stale time is
+	 * returned as well, and reloaded once in the background so that later calls see the new value.
+	 */
+	private <T> T getStaleWhileRevalidate(final TimeLimitedCache<T> cache, final Callable<T> loader)
+	{
+		T result = cache.get();
+
+		if (result != null)
+		{
+			return result;
+		}
+
+		result = cache.getStale();
+
+		if (result != null && cache.beginRefresh())
+		{
+			final String server = restUrl;
+
+			revalidationExecutor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						T value = loader.call();
+
+						if (value != null && Util.equals(server, restUrl))
+						{
+							cache.set(value);
+						}
+					}
+					catch (Exception x)
+					{
+						Log.w(TAG, "Failed to revalidate cached value", x);
+					}
+					finally
+					{
+						cache.endRefresh();
+					}
+				}
+			});
+		}
+
+		return result;
+	}
+
+	/**
+	 * Loads a directory from the server, sharing the request with any concurrent callers asking for the same directory.
+	 * A refresh only joins other refreshes, so that it never returns the result of a load that may have used a cache.
+	 */
+	private MusicDirectory loadDirectory(String server, String diskKey, final boolean refresh, final Context context, final ProgressListener progressListener, final DirectoryLoader loader) throws Exception
+	{
+		return directoryRequests.execute(String.format("%s%s:%s", server, diskKey, refresh), new Callable<MusicDirectory>()
+		{
+			@Override
+			public MusicDirectory call() throws Exception
+			{
+				return loader.load(refresh, context, progressListener);
+			}
+		});
+	}
+
+	private static void putDirectory(LRUCache<String, TimeLimitedCache<MusicDirectory>> memoryCache, String id, MusicDirectory dir, Context context)
+	{
+		TimeLimitedCache<MusicDirectory> cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
+		cache.set(dir);
+		memoryCache.put(id, cache);
 	}
 
 	@Override
@@ -219,7 +409,15 @@ public class CachedMusicService implements MusicService
 	public List<Playlist> getPlaylists(boolean refresh, Context context, ProgressListener progressListener) throws Exception
 	{
 		checkSettingsChanged(context);
-		List<Playlist> result = refresh ? null : cachedPlaylists.get();
+		final Context applicationContext = context.getApplicationContext();
+		List<Playlist> result = refresh ? null : getStaleWhileRevalidate(cachedPlaylists, new Callable<List<Playlist>>()
+		{
+			@Override
+			public List<Playlist> call() throws Exception
+			{
+				return musicService.getPlaylists(true, applicationContext, null);
+			}
+		});
 		if (result == null)
 		{
 			result = musicService.getPlaylists(refresh, context, progressListener);
@@ -302,9 +500,23 @@ public class CachedMusicService implements MusicService
 	}
 
 	@Override
-	public Bitmap getCoverArt(Context context, MusicDirectory.Entry entry, int size, boolean saveToFile, boolean highQuality, ProgressListener progressListener) throws Exception
+	public Bitmap getCoverArt(final Context context, final MusicDirectory.Entry entry, final int size, final boolean saveToFile, final boolean highQuality, final ProgressListener progressListener) throws Exception
 	{
-		return musicService.getCoverArt(context, entry, size, saveToFile, highQuality, progressListener);
+		if (entry == null || entry.getCoverArt() == null)
+		{
+			return musicService.getCoverArt(context, entry, size, saveToFile, highQuality, progressListener);
+		}
+
+		String key = String.format("%s:%d:%s:%s", entry.getCoverArt(), size, saveToFile, highQuality);
+
+		return coverArtRequests.execute(key, new Callable<Bitmap>()
+		{
+			@Override
+			public Bitmap call() throws Exception
+			{
+				return musicService.getCoverArt(context, entry, size, saveToFile, highQuality, progressListener);
+			}
+		});
 	}
 
 	@Override
@@ -313,6 +525,12 @@ public class CachedMusicService implements MusicService
 		return musicService.getDownloadInputStream(context, song, offset, maxBitrate, task);
 	}
 
+	@Override
+	public HttpResponse getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, long length, int maxBitrate, CancellableTask task) throws Exception
+	{
+		return musicService.getDownloadInputStream(context, song, offset, length, maxBitrate, task);
+	}
+
 	@Override
 	public Version getLocalVersion(Context context) throws Exception
 	{
@@ -408,7 +626,15 @@ public class CachedMusicService implements MusicService
 	public List<Genre> getGenres(Context context, ProgressListener progressListener) throws Exception
 	{
 		checkSettingsChanged(context);
-		List<Genre> result = cachedGenres.get();
+		final Context applicationContext = context.getApplicationContext();
+		List<Genre> result = getStaleWhileRevalidate(cachedGenres, new Callable<List<Genre>>()
+		{
+			@Override
+			public List<Genre> call() throws Exception
+			{
+				return musicService.getGenres(applicationContext, null);
+			}
+		});
 
 		if (result == null)
 		{
@@ -532,4 +758,15 @@ public class CachedMusicService implements MusicService
 	{
 		return musicService.getAvatar(context, username, size, saveToFile, highQuality, progressListener);
 	}
-}
+
+	@Override
+	public String getStatistics(Context context)
+	{
+		return String.format("%s\nCachedMusicService\n  directories: %s\n  artists: %s\n  albums: %s\n  users: %s", musicService.getStatistics(context), cachedMusicDirectories, cachedArtist, cachedAlbum, cachedUserInfo);
+	}
+
+	private interface DirectoryLoader
+	{
+		MusicDirectory load(boolean refresh, Context context, ProgressListener progressListener) throws Exception;
+	}
+}
\ No newline at end of file
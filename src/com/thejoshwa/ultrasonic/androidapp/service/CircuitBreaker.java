@@ -0,0 +1,127 @@
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Stops sending requests to a server that keeps failing, so that callers fail fast instead of
+ * each waiting for its own retries to time out.
+ * <p/>
+ * The circuit opens after a number of consecutive failed requests, each counted once after its
+ * retries are used up. While it is open, requests
+ * are rejected with an {@link OpenException}. Once the open period has passed, a single probe
+ * request is let through: if it succeeds the circuit closes, otherwise it opens again for twice as long.
+ */
+public class CircuitBreaker
+{
+	private static final String TAG = CircuitBreaker.class.getSimpleName();
+
+	private final String server;
+	private final int failureThreshold;
+	private final long initialOpenMillis;
+	private final long maxOpenMillis;
+
+	private int consecutiveFailures;
+	private long openMillis;
+	private long openUntil;
+	private long probeStarted;
+	private boolean open;
+
+	public CircuitBreaker(String server, int failureThreshold, long initialOpenMillis, long maxOpenMillis)
+	{
+		this.server = server;
+		this.failureThreshold = failureThreshold;
+		this.initialOpenMillis = initialOpenMillis;
+		this.maxOpenMillis = maxOpenMillis;
+		this.openMillis = initialOpenMillis;
+	}
+
+	/**
+	 * Throws an {@link OpenException} if a request to the server should not be attempted now.
+	 *
+	 * @return true if the request is the probe of an open circuit
+	 */
+	public synchronized boolean checkRequest() throws OpenException
+	{
+		if (!open)
+		{
+			return false;
+		}
+
+		long now = System.currentTimeMillis();
+
+		if (now < openUntil)
+		{
+			throw new OpenException(server, openUntil - now);
+		}
+
+		// Let one probe through; allow another if the previous probe never reported back
+		if (probeStarted != 0 && now - probeStarted < openMillis)
+		{
+			throw new OpenException(server, 0);
+		}
+
+		probeStarted = now;
+		Log.i(TAG, String.format("Probing %s", server));
+		return true;
+	}
+
+	public synchronized void recordSuccess()
+	{
+		if (open)
+		{
+			Log.i(TAG, String.format("Closing circuit for %s", server));
+		}
+
+		open = false;
+		consecutiveFailures = 0;
+		openMillis = initialOpenMillis;
+		probeStarted = 0;
+	}
+
+	/**
+	 * Records a failed request.
+	 *
+	 * @param probe true if the request was let through as the probe of an open circuit
+	 */
+	public synchronized void recordFailure(boolean probe)
+	{
+		consecutiveFailures++;
+
+		if (open)
+		{
+			// Requests that were sent before the circuit opened don't extend it, only a failed probe does
+			if (!probe)
+			{
+				return;
+			}
+
+			openMillis = Math.min(openMillis * 2, maxOpenMillis);
+		}
+		else if (consecutiveFailures < failureThreshold)
+		{
+			return;
+		}
+
+		open = true;
+		probeStarted = 0;
+		openUntil = System.currentTimeMillis() + openMillis;
+		Log.w(TAG, String.format("Opening circuit for %s for %d ms after %d failures", server, openMillis, consecutiveFailures));
+	}
+
+	public synchronized boolean isOpen()
+	{
+		return open;
+	}
+
+	public static class OpenException extends IOException
+	{
+		private static final long serialVersionUID = 2925416302947623512L;
+
+		public OpenException(String server, long remainingMillis)
+		{
+			super(String.format("Requests to %s are suspended after repeated failures (%d ms remaining)", server, remainingMillis));
+		}
+	}
+}
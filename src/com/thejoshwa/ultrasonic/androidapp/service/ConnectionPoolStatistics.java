@@ -0,0 +1,104 @@
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+/**
+ * Connection usage figures of an {@link HttpTransport}: connections currently leased and
+ * requests currently waiting for one, how long requests waited, and how many requests
+ * were repeated because a pooled connection turned out to be dead.
+ * <p/>
+ * Waits are only reported by transports that can tell a wait for a pooled connection apart
+ * from the rest of the exchange; the others only count their leases, and report no pending requests.
+ */
+public class ConnectionPoolStatistics
+{
+	private final boolean waitsCounted;
+	private int leased;
+	private int pending;
+	private long leaseCount;
+	private long waitCount;
+	private long totalWaitMillis;
+	private long maxWaitMillis;
+	private long deadConnectionRetries;
+
+	/**
+	 * @param waitsCounted whether the transport reports the requests waiting for a connection
+	 */
+	public ConnectionPoolStatistics(boolean waitsCounted)
+	{
+		this.waitsCounted = waitsCounted;
+	}
+
+	public synchronized void startWaiting()
+	{
+		pending++;
+	}
+
+	public synchronized void stopWaiting(boolean leased, long waitMillis)
+	{
+		pending--;
+
+		if (leased)
+		{
+			leased();
+			waitCount++;
+			totalWaitMillis += waitMillis;
+			maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+		}
+	}
+
+	public synchronized void leased()
+	{
+		leased++;
+		leaseCount++;
+	}
+
+	public synchronized void released()
+	{
+		leased--;
+	}
+
+	public synchronized void recordDeadConnectionRetry()
+	{
+		deadConnectionRetries++;
+	}
+
+	public synchronized int getLeased()
+	{
+		return leased;
+	}
+
+	public synchronized int getPending()
+	{
+		return pending;
+	}
+
+	public synchronized long getAverageWaitMillis()
+	{
+		return waitCount == 0 ? 0 : totalWaitMillis / waitCount;
+	}
+
+	public synchronized long getMaxWaitMillis()
+	{
+		return maxWaitMillis;
+	}
+
+	public synchronized long getDeadConnectionRetries()
+	{
+		return deadConnectionRetries;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		if (!waitsCounted)
+		{
+			return String.format("leased=%d, leases=%d, deadConnectionRetries=%d", leased, leaseCount, deadConnectionRetries);
+		}
+
+		if (waitCount == 0)
+		{
+			return String.format("leased=%d, pending=%d, leases=%d, deadConnectionRetries=%d", leased, pending, leaseCount, deadConnectionRetries);
+		}
+
+		return String.format("leased=%d, pending=%d, leases=%d, avgWait=%d ms, maxWait=%d ms, deadConnectionRetries=%d", leased, pending, leaseCount, getAverageWaitMillis(), maxWaitMillis, deadConnectionRetries);
+	}
+}
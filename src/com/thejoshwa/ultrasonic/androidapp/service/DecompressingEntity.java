@@ -0,0 +1,185 @@
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Response entity that decompresses a <code>gzip</code> or <code>deflate</code> encoded body
+ * while it is read, and counts the compressed bytes received.
+ */
+class DecompressingEntity extends HttpEntityWrapper
+{
+	private final boolean gzip;
+	private InputStream content;
+	private volatile long compressedLength;
+
+	private DecompressingEntity(HttpEntity entity, boolean gzip)
+	{
+		super(entity);
+		this.gzip = gzip;
+	}
+
+	/**
+	 * Returns an entity that decompresses the given one, or the entity itself if it is not
+	 * encoded with a supported content coding.
+	 */
+	public static HttpEntity wrap(HttpEntity entity)
+	{
+		Header header = entity == null ? null : entity.getContentEncoding();
+
+		if (header == null)
+		{
+			return entity;
+		}
+
+		String encoding = header.getValue().trim();
+
+		if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding))
+		{
+			return new DecompressingEntity(entity, true);
+		}
+
+		if ("deflate".equalsIgnoreCase(encoding))
+		{
+			return new DecompressingEntity(entity, false);
+		}
+
+		return entity;
+	}
+
+	@Override
+	public synchronized InputStream getContent() throws IOException
+	{
+		if (content == null)
+		{
+			InputStream in = new FilterInputStream(wrappedEntity.getContent())
+			{
+				@Override
+				public int read() throws IOException
+				{
+					int b = super.read();
+
+					if (b != -1)
+					{
+						compressedLength++;
+					}
+
+					return b;
+				}
+
+				@Override
+				public int read(byte[] buffer, int offset, int length) throws IOException
+				{
+					int n = super.read(buffer, offset, length);
+
+					if (n > 0)
+					{
+						compressedLength += n;
+					}
+
+					return n;
+				}
+			};
+
+			content = gzip ? new GZIPInputStream(in) : inflate(in);
+		}
+
+		return content;
+	}
+
+	private static InputStream inflate(InputStream in) throws IOException
+	{
+		// "deflate" should be a zlib stream, but some servers send raw deflate data without the zlib header
+		PushbackInputStream pushback = new PushbackInputStream(in, 2);
+		byte[] header = new byte[2];
+		int count = 0;
+
+		while (count < header.length)
+		{
+			int n = pushback.read(header, count, header.length - count);
+
+			if (n == -1)
+			{
+				break;
+			}
+
+			count += n;
+		}
+
+		pushback.unread(header, 0, count);
+		boolean zlib = count == 2 && (header[0] & 0x0F) == 8 && (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+		return new EndingInflaterInputStream(pushback, new Inflater(!zlib));
+	}
+
+	public long getCompressedLength()
+	{
+		return compressedLength;
+	}
+
+	@Override
+	public long getContentLength()
+	{
+		return -1;
+	}
+
+	@Override
+	public Header getContentEncoding()
+	{
+		return null;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException
+	{
+		InputStream in = getContent();
+		byte[] buffer = new byte[4096];
+		int n;
+
+		try
+		{
+			while ((n = in.read(buffer)) != -1)
+			{
+				out.write(buffer, 0, n);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Releases the native memory of its inflater when closed. InflaterInputStream only does that
+	 * for the inflater it creates itself, and the one given here is needed for raw deflate data.
+	 */
+	private static final class EndingInflaterInputStream extends InflaterInputStream
+	{
+		private EndingInflaterInputStream(InputStream in, Inflater inflater)
+		{
+			super(in, inflater);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				inf.end();
+			}
+		}
+	}
+}
@@ -27,11 +27,13 @@ import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory;
 import com.thejoshwa.ultrasonic.androidapp.util.CacheCleaner;
 import com.thejoshwa.ultrasonic.androidapp.util.CancellableTask;
 import com.thejoshwa.ultrasonic.androidapp.util.FileUtil;
+import com.thejoshwa.ultrasonic.androidapp.util.MusicDirectoryTracker;
 import com.thejoshwa.ultrasonic.androidapp.util.Util;
 
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.conn.ConnectionReleaseTrigger;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -39,6 +41,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static android.content.Context.POWER_SERVICE;
 import static android.os.PowerManager.ON_AFTER_RELEASE;
@@ -52,6 +58,7 @@ public class DownloadFile
 {
 
 	private static final String TAG = DownloadFile.class.getSimpleName();
+	private static final long MIN_SEGMENT_LENGTH = 1024L * 1024L;
 	private final Context context;
 	private final MusicDirectory.Entry song;
 	private final File partialFile;
@@ -67,6 +74,9 @@ public class DownloadFile
 	private volatile boolean saveWhenDone;
 	private volatile boolean completeWhenDone;
 	private Integer contentLength;
+	private volatile long contiguousLength = -1L;
+	private volatile long expectedLength = -1L;
+	private final List<OnDownloadProgressListener> progressListeners = new CopyOnWriteArrayList<OnDownloadProgressListener>();
 
 	public DownloadFile(Context context, MusicDirectory.Entry song, boolean save)
 	{
@@ -112,8 +122,16 @@ public class DownloadFile
 
 	public synchronized void download()
 	{
+		if (isDownloading())
+		{
+			// Two tasks must never write the same partial file
+			Log.w(TAG, String.format("Not downloading %s, the previous download is still running", song));
+			return;
+		}
+
 		FileUtil.createDirectoryForParent(saveFile);
 		failed = false;
+		expectedLength = -1L;
 
 		if (!partialFile.exists())
 		{
@@ -152,6 +170,43 @@ public class DownloadFile
 		return partialFile;
 	}
 
+	/**
+	 * Returns the number of bytes at the start of the partial file that have been downloaded
+	 * without gaps. While a segmented download is running, the partial file can be longer than that.
+	 */
+	public long getDownloadedLength()
+	{
+		long length = contiguousLength;
+		return length >= 0 ? length : partialFile.length();
+	}
+
+	/**
+	 * Returns the total length of the file being downloaded, as announced by the server,
+	 * or -1 if it is not known yet.
+	 */
+	public long getExpectedLength()
+	{
+		return expectedLength;
+	}
+
+	public void addOnDownloadProgressListener(OnDownloadProgressListener listener)
+	{
+		progressListeners.add(listener);
+	}
+
+	public void removeOnDownloadProgressListener(OnDownloadProgressListener listener)
+	{
+		progressListeners.remove(listener);
+	}
+
+	private void notifyProgress()
+	{
+		for (OnDownloadProgressListener listener : progressListeners)
+		{
+			listener.onDownloadProgress(this);
+		}
+	}
+
 	public boolean isSaved()
 	{
 		return saveFile.exists();
@@ -194,6 +249,7 @@ public class DownloadFile
 		Util.delete(completeFile);
 		Util.delete(saveFile);
 		mediaStoreService.deleteFromMediaStore(this);
+		filesChanged();
 	}
 
 	public void unpin()
@@ -201,6 +257,7 @@ public class DownloadFile
 		if (saveFile.exists())
 		{
 			saveFile.renameTo(completeFile);
+			filesChanged();
 		}
 	}
 
@@ -218,6 +275,7 @@ public class DownloadFile
 			ok &= Util.delete(completeFile);
 		}
 
+		filesChanged();
 		return ok;
 	}
 
@@ -227,6 +285,18 @@ public class DownloadFile
 		updateModificationDate(saveFile);
 		updateModificationDate(partialFile);
 		updateModificationDate(completeFile);
+		filesChanged();
+	}
+
+	/**
+	 * Reports the current state of the files of this song to the music directory tracker.
+	 */
+	private void filesChanged()
+	{
+		MusicDirectoryTracker tracker = MusicDirectoryTracker.getInstance(context);
+		tracker.update(partialFile);
+		tracker.update(completeFile);
+		tracker.update(saveFile);
 	}
 
 	private static void updateModificationDate(File file)
@@ -285,6 +355,10 @@ public class DownloadFile
 		{
 			Log.w(TAG, String.format("Failed to rename file %s to %s", completeFile, saveFile));
 		}
+		finally
+		{
+			filesChanged();
+		}
 
 		this.isPlaying = isPlaying;
 	}
@@ -295,6 +369,15 @@ public class DownloadFile
 		return String.format("DownloadFile (%s)", song);
 	}
 
+	/**
+	 * Called on the downloading thread whenever more data was written to the partial file
+	 * and when the download task ends.
+	 */
+	public interface OnDownloadProgressListener
+	{
+		void onDownloadProgress(DownloadFile downloadFile);
+	}
+
 	private class DownloadTask extends CancellableTask
 	{
 		@Override
@@ -385,17 +468,37 @@ public class DownloadFile
 
 					in = response.getEntity().getContent();
 					boolean partial = response.getStatusLine().getStatusCode() == HttpStatus.SC_PARTIAL_CONTENT;
+					long offset = partial ? partialFile.length() : 0L;
 
 					if (partial)
 					{
-						Log.i(TAG, String.format("Executed partial HTTP GET, skipping %d bytes", partialFile.length()));
+						Log.i(TAG, String.format("Executed partial HTTP GET, skipping %d bytes", offset));
+					}
+
+					if (contentLength != null)
+					{
+						expectedLength = offset + contentLength;
+					}
+
+					int segmentCount = getSegmentCount(response, offset);
+					long n;
+
+					if (segmentCount > 1)
+					{
+						// The segmented download takes over the stream for its first segment
+						InputStream head = in;
+						in = null;
+						n = new SegmentedDownload(musicService, head, offset, offset + contentLength, segmentCount).download();
+					}
+					else
+					{
+						out = new FileOutputStream(partialFile, partial);
+						n = copy(in, out);
+						out.flush();
+						out.close();
 					}
 
-					out = new FileOutputStream(partialFile, partial);
-					long n = copy(in, out);
 					Log.i(TAG, String.format("Downloaded %d bytes to %s", n, partialFile));
-					out.flush();
-					out.close();
 
 					if (isCancelled())
 					{
@@ -459,6 +562,8 @@ public class DownloadFile
 					wifiLock.release();
 				}
 
+				filesChanged();
+				notifyProgress();
 				new CacheCleaner(context, DownloadServiceImpl.getInstance()).cleanSpace();
 
 				if (DownloadServiceImpl.getInstance() != null)
@@ -490,6 +595,52 @@ public class DownloadFile
 			}
 		}
 
+		/**
+		 * Returns how many concurrent range requests should be used for the rest of the file.
+		 * Only files sent unmodified by the server can be split, which is recognised by the
+		 * response covering exactly the rest of the original file size.
+		 */
+		private int getSegmentCount(HttpResponse response, long offset)
+		{
+			int segments = Util.getDownloadSegments(context);
+			Long size = song.getSize();
+
+			if (segments <= 1 || contentLength == null || size == null || offset + contentLength != size)
+			{
+				return 1;
+			}
+
+			if (offset == 0L)
+			{
+				Header acceptRanges = response.getFirstHeader("Accept-Ranges");
+
+				if (acceptRanges == null || !"bytes".equalsIgnoreCase(acceptRanges.getValue()))
+				{
+					return 1;
+				}
+			}
+
+			return (int) Math.max(1L, Math.min(segments, contentLength / MIN_SEGMENT_LENGTH));
+		}
+
+		private void abort(InputStream in)
+		{
+			// Closing a managed stream would read the rest of the response, abort the connection instead
+			if (in instanceof ConnectionReleaseTrigger)
+			{
+				try
+				{
+					((ConnectionReleaseTrigger) in).abortConnection();
+				}
+				catch (IOException x)
+				{
+					Log.w(TAG, "Failed to abort connection", x);
+				}
+			}
+
+			Util.close(in);
+		}
+
 		private long copy(final InputStream in, OutputStream out) throws IOException
 		{
 			// Start a thread that will close the input stream if the task is
@@ -526,6 +677,7 @@ public class DownloadFile
 			{
 				out.write(buffer, 0, n);
 				count += n;
+				notifyProgress();
 
 				long now = System.currentTimeMillis();
 				if (now - lastLog > 3000L)
@@ -536,5 +688,235 @@ public class DownloadFile
 			}
 			return count;
 		}
+
+		/**
+		 * Downloads the rest of the file with several concurrent range requests, each writing
+		 * its segment at its own offset in the partial file.
+		 */
+		private class SegmentedDownload
+		{
+			private final MusicService musicService;
+			private final Segment[] segments;
+			private final long start;
+			private final long end;
+			private volatile Exception failure;
+			private volatile boolean done;
+
+			public SegmentedDownload(MusicService musicService, InputStream head, long start, long end, int segmentCount)
+			{
+				this.musicService = musicService;
+				this.start = start;
+				this.end = end;
+
+				long segmentLength = (end - start + segmentCount - 1) / segmentCount;
+				segments = new Segment[segmentCount];
+
+				for (int i = 0; i < segmentCount; i++)
+				{
+					long segmentStart = start + i * segmentLength;
+					segments[i] = new Segment(segmentStart, Math.min(end, segmentStart + segmentLength));
+				}
+
+				segments[0].in = head;
+			}
+
+			public long download() throws Exception
+			{
+				Log.i(TAG, String.format("Downloading %s in %d segments", song, segments.length));
+				RandomAccessFile file = new RandomAccessFile(partialFile, "rw");
+
+				try
+				{
+					file.setLength(start);
+					final FileChannel channel = file.getChannel();
+					contiguousLength = start;
+					startWatchdog();
+
+					Thread[] threads = new Thread[segments.length];
+
+					for (int i = 1; i < segments.length; i++)
+					{
+						final Segment segment = segments[i];
+						threads[i] = new Thread(String.format("DownloadSegment_%d", i))
+						{
+							@Override
+							public void run()
+							{
+								segment.download(channel);
+							}
+						};
+						threads[i].start();
+					}
+
+					segments[0].download(channel);
+
+					for (int i = 1; i < threads.length; i++)
+					{
+						threads[i].join();
+					}
+
+					if (failure != null)
+					{
+						throw failure;
+					}
+
+					return getDownloadedCount();
+				}
+				finally
+				{
+					done = true;
+
+					for (Segment segment : segments)
+					{
+						abort(segment.in);
+					}
+
+					// Drop everything after the first gap, so that a later attempt can resume from the end of the file
+					long downloaded = getContiguousPosition();
+
+					if (downloaded < end)
+					{
+						file.setLength(downloaded);
+					}
+
+					file.close();
+					contiguousLength = -1L;
+				}
+			}
+
+			private void startWatchdog()
+			{
+				// Abort the connections if the task is cancelled, causing the segment reads to return.
+				new Thread()
+				{
+					@Override
+					public void run()
+					{
+						while (!done)
+						{
+							Util.sleepQuietly(3000L);
+
+							if (isCancelled())
+							{
+								for (Segment segment : segments)
+								{
+									abort(segment.in);
+								}
+
+								return;
+							}
+
+							if (!done)
+							{
+								Log.i(TAG, String.format("Downloaded %s of %s", Util.formatBytes(getDownloadedCount()), song));
+							}
+						}
+					}
+				}.start();
+			}
+
+			private long getDownloadedCount()
+			{
+				long count = 0L;
+
+				for (Segment segment : segments)
+				{
+					count += segment.position - segment.start;
+				}
+
+				return count;
+			}
+
+			private long getContiguousPosition()
+			{
+				long position = start;
+
+				for (Segment segment : segments)
+				{
+					position = segment.position;
+
+					if (position < segment.end)
+					{
+						break;
+					}
+				}
+
+				return position;
+			}
+
+			private synchronized void updateContiguousLength()
+			{
+				contiguousLength = getContiguousPosition();
+				notifyProgress();
+			}
+
+			private class Segment
+			{
+				private final long start;
+				private final long end;
+				private volatile long position;
+				private volatile InputStream in;
+
+				public Segment(long start, long end)
+				{
+					this.start = start;
+					this.end = end;
+					position = start;
+				}
+
+				public void download(FileChannel channel)
+				{
+					try
+					{
+						if (in == null)
+						{
+							HttpResponse response = musicService.getDownloadInputStream(context, song, start, end - start, bitRate, DownloadTask.this);
+
+							if (response.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT)
+							{
+								abort(response.getEntity().getContent());
+								throw new IOException(String.format("Range request for %s was not honored", song));
+							}
+
+							in = response.getEntity().getContent();
+						}
+
+						byte[] buffer = new byte[1024 * 16];
+
+						while (position < end && failure == null && !isCancelled())
+						{
+							int n = in.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+
+							if (n == -1)
+							{
+								throw new IOException(String.format("Unexpected end of segment at %d of %s", position, song));
+							}
+
+							ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, n);
+							long writePosition = position;
+
+							while (byteBuffer.hasRemaining())
+							{
+								writePosition += channel.write(byteBuffer, writePosition);
+							}
+
+							position = writePosition;
+							updateContiguousLength();
+						}
+					}
+					catch (Exception x)
+					{
+						if (failure == null && !isCancelled())
+						{
+							failure = x;
+						}
+					}
+					finally
+					{
+						abort(in);
+					}
+				}
+			}
+		}
 	}
-}
\ No newline at end of file
+}
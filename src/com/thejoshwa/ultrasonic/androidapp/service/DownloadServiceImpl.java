@@ -59,6 +59,7 @@ import com.thejoshwa.ultrasonic.androidapp.util.CancellableTask;
 import com.thejoshwa.ultrasonic.androidapp.util.Constants;
 import com.thejoshwa.ultrasonic.androidapp.util.FileUtil;
 import com.thejoshwa.ultrasonic.androidapp.util.LRUCache;
+import com.thejoshwa.ultrasonic.androidapp.util.MusicDirectoryTracker;
 import com.thejoshwa.ultrasonic.androidapp.util.ShufflePlayBuffer;
 import com.thejoshwa.ultrasonic.androidapp.util.SimpleServiceBinder;
 import com.thejoshwa.ultrasonic.androidapp.util.StreamProxy;
@@ -109,13 +110,13 @@ public class DownloadServiceImpl extends Service implements DownloadService
 
 	private final LRUCache<MusicDirectory.Entry, DownloadFile> downloadFileCache = new LRUCache<MusicDirectory.Entry, DownloadFile>(100);
 	private final List<DownloadFile> cleanupCandidates = new ArrayList<DownloadFile>();
+	private final List<DownloadFile> activeDownloads = new ArrayList<DownloadFile>();
 	private final Scrobbler scrobbler = new Scrobbler();
 	private final JukeboxService jukeboxService = new JukeboxService(this);
 	private Notification notification = new Notification(R.drawable.ic_stat_ultrasonic, null, System.currentTimeMillis());
 
 	private DownloadFile currentPlaying;
 	private DownloadFile nextPlaying;
-	private DownloadFile currentDownloading;
 	private CancellableTask bufferTask;
 	private CancellableTask nextPlayingTask;
 	private PlayerState playerState = IDLE;
@@ -262,6 +263,7 @@ public class DownloadServiceImpl extends Service implements DownloadService
 
 		instance = this;
 		lifecycleSupport.onCreate();
+		MusicDirectoryTracker.getInstance(this).start();
 	}
 
 	@Override
@@ -281,6 +283,7 @@ public class DownloadServiceImpl extends Service implements DownloadService
 		{
 			instance = null;
 			lifecycleSupport.onDestroy();
+			MusicDirectoryTracker.getInstance(this).stop();
 			mediaPlayer.release();
 
 			if (nextMediaPlayer != null)
@@ -585,11 +588,19 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	@Override
 	public synchronized void clearBackground()
 	{
-		if (currentDownloading != null && backgroundDownloadList.contains(currentDownloading))
+		Iterator<DownloadFile> iterator = activeDownloads.iterator();
+
+		while (iterator.hasNext())
 		{
-			currentDownloading.cancelDownload();
-			currentDownloading = null;
+			DownloadFile downloadFile = iterator.next();
+
+			if (backgroundDownloadList.contains(downloadFile))
+			{
+				downloadFile.cancelDownload();
+				iterator.remove();
+			}
 		}
+
 		backgroundDownloadList.clear();
 	}
 
@@ -623,11 +634,7 @@ public class DownloadServiceImpl extends Service implements DownloadService
 		reset();
 		downloadList.clear();
 		revision++;
-		if (currentDownloading != null)
-		{
-			currentDownloading.cancelDownload();
-			currentDownloading = null;
-		}
+		cancelDownloads();
 		setCurrentPlaying(null);
 
 		if (serialize)
@@ -647,10 +654,9 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	@Override
 	public synchronized void remove(DownloadFile downloadFile)
 	{
-		if (downloadFile == currentDownloading)
+		if (activeDownloads.remove(downloadFile))
 		{
-			currentDownloading.cancelDownload();
-			currentDownloading = null;
+			downloadFile.cancelDownload();
 		}
 		if (downloadFile == currentPlaying)
 		{
@@ -807,9 +813,14 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	}
 
 	@Override
-	public DownloadFile getCurrentDownloading()
+	public synchronized DownloadFile getCurrentDownloading()
 	{
-		return currentDownloading;
+		if (currentPlaying != null && activeDownloads.contains(currentPlaying))
+		{
+			return currentPlaying;
+		}
+
+		return activeDownloads.isEmpty() ? null : activeDownloads.get(0);
 	}
 
 	@Override
@@ -1435,11 +1446,8 @@ public class DownloadServiceImpl extends Service implements DownloadService
 
 			reset();
 
-			// Cancel current download, if necessary.
-			if (currentDownloading != null)
-			{
-				currentDownloading.cancelDownload();
-			}
+			// Cancel current downloads, if necessary.
+			cancelDownloads();
 		}
 		else
 		{
@@ -1937,95 +1945,181 @@ public class DownloadServiceImpl extends Service implements DownloadService
 			return;
 		}
 
-		// Need to download current playing?
-		if (currentPlaying != null && currentPlaying != currentDownloading && !currentPlaying.isWorkDone())
+		// Forget downloads that have finished, failed or were cancelled
+		Iterator<DownloadFile> iterator = activeDownloads.iterator();
+
+		while (iterator.hasNext())
+		{
+			DownloadFile downloadFile = iterator.next();
+
+			if (downloadFile.isWorkDone() || downloadFile.isFailed() || downloadFile.isDownloadCancelled())
+			{
+				iterator.remove();
+			}
+		}
+
+		removeCompletedBackgroundDownloads();
+
+		List<DownloadFile> candidates = getDownloadCandidates();
+		int maxDownloads = Util.getMaxConcurrentDownloads(this);
+
+		for (int i = 0; i < Math.min(maxDownloads, candidates.size()); i++)
 		{
-			// Cancel current download, if necessary.
-			if (currentDownloading != null)
+			DownloadFile downloadFile = candidates.get(i);
+
+			if (activeDownloads.contains(downloadFile))
 			{
-				currentDownloading.cancelDownload();
+				continue;
 			}
 
-			currentDownloading = currentPlaying;
-			currentDownloading.download();
-			cleanupCandidates.add(currentDownloading);
+			// A preempted download may still be writing its partial file, it is restarted once it has stopped
+			if (downloadFile.isDownloading())
+			{
+				continue;
+			}
+
+			// All workers are busy, preempt the download with the lowest priority
+			while (activeDownloads.size() >= maxDownloads)
+			{
+				DownloadFile lowest = getLowestPriorityDownload(candidates);
+				Log.i(TAG, String.format("Preempting download of %s for %s", lowest, downloadFile));
+				lowest.cancelDownload();
+				activeDownloads.remove(lowest);
+			}
+
+			activeDownloads.add(downloadFile);
+			downloadFile.download();
+			cleanupCandidates.add(downloadFile);
+
+			if (currentPlaying != null && downloadList.indexOf(downloadFile) == getCurrentPlayingIndex() + 1)
+			{
+				setNextPlayerState(DOWNLOADING);
+			}
 		}
 
-		// Find a suitable target for download.
-		else
+		// Delete obsolete .partial and .complete files.
+		cleanup();
+	}
+
+	/**
+	 * Returns the files that still need to be downloaded, in order of priority: the current song,
+	 * the next song and the rest of the preload window, then pinned songs and background downloads.
+	 */
+	private List<DownloadFile> getDownloadCandidates()
+	{
+		List<DownloadFile> candidates = new ArrayList<DownloadFile>();
+		List<DownloadFile> pinned = new ArrayList<DownloadFile>();
+
+		if (currentPlaying != null && !currentPlaying.isWorkDone())
 		{
-			if (currentDownloading == null || currentDownloading.isWorkDone() || currentDownloading.isFailed() && (!downloadList.isEmpty() || !backgroundDownloadList.isEmpty()))
+			candidates.add(currentPlaying);
+		}
+
+		int n = size();
+
+		if (n != 0)
+		{
+			int start = currentPlaying == null ? 0 : getCurrentPlayingIndex();
+			if (start == -1)
 			{
-				currentDownloading = null;
-				int n = size();
+				start = 0;
+			}
 
-				int preloaded = 0;
+			int preloadCount = Util.getPreloadCount(this);
+			int preloaded = 0;
+			int i = start;
+			do
+			{
+				DownloadFile downloadFile = downloadList.get(i);
 
-				if (n != 0)
+				if (downloadFile != currentPlaying)
 				{
-					int start = currentPlaying == null ? 0 : getCurrentPlayingIndex();
-					if (start == -1)
+					if (downloadFile.isWorkDone())
 					{
-						start = 0;
+						preloaded++;
 					}
-					int i = start;
-					do
+					else if (preloaded < preloadCount)
 					{
-						DownloadFile downloadFile = downloadList.get(i);
-						if (!downloadFile.isWorkDone())
-						{
-							if (downloadFile.shouldSave() || preloaded < Util.getPreloadCount(this))
-							{
-								currentDownloading = downloadFile;
-								currentDownloading.download();
-								cleanupCandidates.add(currentDownloading);
-								if (i == (start + 1))
-								{
-									setNextPlayerState(DOWNLOADING);
-								}
-								break;
-							}
-						}
-						else if (currentPlaying != downloadFile)
-						{
-							preloaded++;
-						}
-
-						i = (i + 1) % n;
-					} while (i != start);
+						candidates.add(downloadFile);
+						preloaded++;
+					}
+					else if (downloadFile.shouldSave())
+					{
+						pinned.add(downloadFile);
+					}
 				}
 
-				if ((preloaded + 1 == n || preloaded >= Util.getPreloadCount(this) || downloadList.isEmpty()) && !backgroundDownloadList.isEmpty())
+				i = (i + 1) % n;
+			} while (i != start);
+		}
+
+		candidates.addAll(pinned);
+
+		for (DownloadFile downloadFile : backgroundDownloadList)
+		{
+			if (!downloadFile.isWorkDone())
+			{
+				candidates.add(downloadFile);
+			}
+		}
+
+		return candidates;
+	}
+
+	private void removeCompletedBackgroundDownloads()
+	{
+		Iterator<DownloadFile> iterator = backgroundDownloadList.iterator();
+
+		while (iterator.hasNext())
+		{
+			DownloadFile downloadFile = iterator.next();
+
+			if (downloadFile.isWorkDone() && (!downloadFile.shouldSave() || downloadFile.isSaved()))
+			{
+				if (Util.getShouldScanMedia(this))
 				{
-					for (int i = 0; i < backgroundDownloadList.size(); i++)
-					{
-						DownloadFile downloadFile = backgroundDownloadList.get(i);
-						if (downloadFile.isWorkDone() && (!downloadFile.shouldSave() || downloadFile.isSaved()))
-						{
-							if (Util.getShouldScanMedia(this))
-							{
-								Util.scanMedia(this, downloadFile.getCompleteFile());
-							}
-
-							// Don't need to keep list like active song list
-							backgroundDownloadList.remove(i);
-							revision++;
-							i--;
-						}
-						else
-						{
-							currentDownloading = downloadFile;
-							currentDownloading.download();
-							cleanupCandidates.add(currentDownloading);
-							break;
-						}
-					}
+					Util.scanMedia(this, downloadFile.getCompleteFile());
 				}
+
+				// Don't need to keep list like active song list
+				iterator.remove();
+				revision++;
 			}
 		}
+	}
 
-		// Delete obsolete .partial and .complete files.
-		cleanup();
+	private DownloadFile getLowestPriorityDownload(List<DownloadFile> candidates)
+	{
+		DownloadFile lowest = null;
+		int lowestPriority = -1;
+
+		for (DownloadFile downloadFile : activeDownloads)
+		{
+			int priority = candidates.indexOf(downloadFile);
+
+			if (priority == -1)
+			{
+				priority = Integer.MAX_VALUE;
+			}
+
+			if (priority > lowestPriority)
+			{
+				lowest = downloadFile;
+				lowestPriority = priority;
+			}
+		}
+
+		return lowest;
+	}
+
+	private void cancelDownloads()
+	{
+		for (DownloadFile downloadFile : activeDownloads)
+		{
+			downloadFile.cancelDownload();
+		}
+
+		activeDownloads.clear();
 	}
 
 	private synchronized void checkShufflePlay()
@@ -2086,7 +2180,7 @@ public class DownloadServiceImpl extends Service implements DownloadService
 		while (iterator.hasNext())
 		{
 			DownloadFile downloadFile = iterator.next();
-			if (downloadFile != currentPlaying && downloadFile != currentDownloading)
+			if (downloadFile != currentPlaying && !activeDownloads.contains(downloadFile))
 			{
 				if (downloadFile.cleanup())
 				{
@@ -2145,7 +2239,7 @@ public class DownloadServiceImpl extends Service implements DownloadService
 		private boolean bufferComplete()
 		{
 			boolean completeFileAvailable = downloadFile.isWorkDone();
-			long size = partialFile.length();
+			long size = downloadFile.getDownloadedLength();
 
 			Log.i(TAG, String.format("Buffering %s (%d/%d, %s)", partialFile, size, expectedFileSize, completeFileAvailable));
 			return completeFileAvailable || size >= expectedFileSize;
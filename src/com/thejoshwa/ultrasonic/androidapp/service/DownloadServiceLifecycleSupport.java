@@ -31,11 +31,13 @@ import android.view.KeyEvent;
 
 import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory;
 import com.thejoshwa.ultrasonic.androidapp.domain.PlayerState;
+import com.thejoshwa.ultrasonic.androidapp.util.BinaryCodec;
 import com.thejoshwa.ultrasonic.androidapp.util.CacheCleaner;
+import com.thejoshwa.ultrasonic.androidapp.util.Codecs;
 import com.thejoshwa.ultrasonic.androidapp.util.FileUtil;
 import com.thejoshwa.ultrasonic.androidapp.util.Util;
 
-import java.io.Serializable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executors;
@@ -254,7 +256,7 @@ public class DownloadServiceLifecycleSupport
 		state.currentPlayingPosition = downloadService.getPlayerPosition();
 
 		Log.i(TAG, String.format("Serialized currentPlayingIndex: %d, currentPlayingPosition: %d", state.currentPlayingIndex, state.currentPlayingPosition));
-		FileUtil.serialize(downloadService, state, FILENAME_DOWNLOADS_SER);
+		FileUtil.serialize(downloadService, state, FILENAME_DOWNLOADS_SER, STATE_CODEC);
 	}
 
 	private void deserializeDownloadQueue()
@@ -264,7 +266,7 @@ public class DownloadServiceLifecycleSupport
 
 	private void deserializeDownloadQueueNow()
 	{
-		State state = FileUtil.deserialize(downloadService, FILENAME_DOWNLOADS_SER);
+		State state = FileUtil.deserialize(downloadService, FILENAME_DOWNLOADS_SER, STATE_CODEC);
 		if (state == null)
 		{
 			return;
@@ -349,15 +351,34 @@ public class DownloadServiceLifecycleSupport
 		}
 	}
 
-	private static class State implements Serializable
+	private static class State
 	{
-		private static final long serialVersionUID = -6346438781062572270L;
-
 		private List<MusicDirectory.Entry> songs = new ArrayList<MusicDirectory.Entry>();
 		private int currentPlayingIndex;
 		private int currentPlayingPosition;
 	}
 
+	private static final BinaryCodec<State> STATE_CODEC = new BinaryCodec<State>(1)
+	{
+		@Override
+		protected void write(Output out, State state) throws IOException
+		{
+			out.writeVarInt(state.currentPlayingIndex);
+			out.writeVarInt(state.currentPlayingPosition);
+			Codecs.writeEntries(out, state.songs);
+		}
+
+		@Override
+		protected State read(Input in) throws IOException
+		{
+			State state = new State();
+			state.currentPlayingIndex = in.readVarInt();
+			state.currentPlayingPosition = in.readVarInt();
+			state.songs = Codecs.readEntries(in);
+			return state;
+		}
+	};
+
 	private class SerializeTask extends AsyncTask<Void, Void, Void>
 	{
 		@Override
@@ -0,0 +1,26 @@
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+/**
+ * Executes the HTTP requests of {@link RESTMusicService}.
+ * <p/>
+ * Timeouts are taken from the parameters of the request. Once executed, the context holds the
+ * final request and target host under the {@link org.apache.http.protocol.ExecutionContext}
+ * attributes, so that redirects can be detected.
+ */
+public interface HttpTransport
+{
+	HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException;
+
+	/**
+	 * Sets the credentials sent to servers and proxies that require HTTP authentication.
+	 */
+	void setCredentials(String username, String password);
+
+	ConnectionPoolStatistics getStatistics();
+}
@@ -106,6 +106,8 @@ public interface MusicService
 
 	HttpResponse getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, int maxBitrate, CancellableTask task) throws Exception;
 
+	HttpResponse getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, long length, int maxBitrate, CancellableTask task) throws Exception;
+
 	Version getLocalVersion(Context context) throws Exception;
 
 	Version getLatestVersion(Context context, ProgressListener progressListener) throws Exception;
@@ -149,4 +151,9 @@ public interface MusicService
 	void updateShare(String id, String description, Long expires, Context context, ProgressListener progressListener) throws Exception;
 
 	Bitmap getAvatar(Context context, String username, int size, boolean saveToFile, boolean highQuality, ProgressListener progressListener) throws Exception;
+
+	/**
+	 * Returns a readable summary of the request and cache figures collected since the app was started.
+	 */
+	String getStatistics(Context context);
 }
\ No newline at end of file
@@ -0,0 +1,626 @@
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.media.MediaMetadataRetriever;
+import android.os.BatteryManager;
+import android.os.Process;
+import android.util.Log;
+
+import com.thejoshwa.ultrasonic.androidapp.R;
+import com.thejoshwa.ultrasonic.androidapp.util.BackgroundTask;
+import com.thejoshwa.ultrasonic.androidapp.util.BinaryCodec;
+import com.thejoshwa.ultrasonic.androidapp.util.FileUtil;
+import com.thejoshwa.ultrasonic.androidapp.util.MusicDirectoryTracker;
+import com.thejoshwa.ultrasonic.androidapp.util.ProgressListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The tags of the songs in the offline music directory. Tags are read once per file and kept by
+ * path together with the size of the file, so that they are read again only when the file changes.
+ * The modification time is not compared, since playing a song touches it to keep the song in the cache.
+ * <p/>
+ * The library is loaded from the cache directory on first use, and saved in the background a
+ * few seconds after it changed. Deleted files are dropped as they are reported by the
+ * {@link MusicDirectoryTracker}.
+ */
+public class OfflineLibrary
+{
+	private static final String TAG = OfflineLibrary.class.getSimpleName();
+	private static final String FILE_NAME = "offline_library.dat";
+	private static final long SAVE_DELAY_SECONDS = 5L;
+	private static final int BATCH_SIZE = 32;
+	private static final int QUEUED_FILES_PER_EXTRACTOR = 2;
+	private static final int HOT_BATTERY_TEMPERATURE = 400; // Tenths of a degree Celsius
+	private static OfflineLibrary instance;
+
+	private final Context context;
+	private final Map<String, Track> tracks;
+	private final ScheduledExecutorService saveExecutor = Executors.newSingleThreadScheduledExecutor();
+	private final ThreadPoolExecutor executor;
+	private final AtomicInteger failedReads = new AtomicInteger();
+	private boolean saveScheduled;
+
+	private OfflineLibrary(Context context)
+	{
+		this.context = context;
+
+		executor = new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				return new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						runnable.run();
+					}
+				}, "OfflineLibrary");
+			}
+		});
+
+		executor.allowCoreThreadTimeOut(true);
+
+		List<Track> saved = FileUtil.deserialize(context, FILE_NAME, CODEC);
+		tracks = new HashMap<String, Track>(saved == null ? 16 : saved.size() * 2);
+
+		if (saved != null)
+		{
+			for (Track track : saved)
+			{
+				tracks.put(track.path, track);
+			}
+		}
+
+		MusicDirectoryTracker.getInstance(context).addListener(new MusicDirectoryTracker.Listener()
+		{
+			@Override
+			public void fileChanged(MusicDirectoryTracker.TrackedFile previous, MusicDirectoryTracker.TrackedFile file)
+			{
+			}
+
+			@Override
+			public void fileDeleted(String path)
+			{
+				synchronized (OfflineLibrary.this)
+				{
+					if (tracks.remove(path) != null)
+					{
+						scheduleSave();
+					}
+				}
+			}
+		});
+	}
+
+	public static synchronized OfflineLibrary getInstance(Context context)
+	{
+		if (instance == null)
+		{
+			instance = new OfflineLibrary(context.getApplicationContext());
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Returns the tags of the given file, reading them from the file if it is not in the library or has changed.
+	 */
+	public Track getTrack(File file)
+	{
+		return getTracks(Collections.singletonList(file), null).get(0);
+	}
+
+	/**
+	 * Returns the tags of the given files, in the same order. The tags of new and changed files
+	 * are read by a pool of threads. If the progress listener is a cancelled {@link BackgroundTask},
+	 * the files that were not read yet are left out.
+	 */
+	public List<Track> getTracks(List<File> files, ProgressListener progressListener)
+	{
+		List<Candidate> candidates = new ArrayList<Candidate>(files.size());
+
+		for (File file : files)
+		{
+			candidates.add(new Candidate(file, file.length(), file.lastModified()));
+		}
+
+		return resolve(candidates, progressListener);
+	}
+
+	public List<Track> getTracks()
+	{
+		return getTracks((ProgressListener) null);
+	}
+
+	/**
+	 * Returns all songs in the offline music directory. The files are taken from the
+	 * {@link MusicDirectoryTracker}, and only the tags of new and changed files are read.
+	 */
+	public List<Track> getTracks(ProgressListener progressListener)
+	{
+		long start = System.currentTimeMillis();
+		List<MusicDirectoryTracker.TrackedFile> files = MusicDirectoryTracker.getInstance(context).getFiles();
+		List<Candidate> candidates = new ArrayList<Candidate>(files.size());
+		Set<String> paths = new HashSet<String>(files.size() * 2);
+
+		for (MusicDirectoryTracker.TrackedFile trackedFile : files)
+		{
+			File file = new File(trackedFile.getPath());
+
+			if (isTrackFile(file))
+			{
+				candidates.add(new Candidate(file, trackedFile.getSize(), trackedFile.getLastModified()));
+				paths.add(trackedFile.getPath());
+			}
+		}
+
+		synchronized (this)
+		{
+			if (tracks.keySet().retainAll(paths))
+			{
+				scheduleSave();
+			}
+		}
+
+		List<Track> result = resolve(candidates, progressListener);
+		Log.i(TAG, String.format("Found %d songs in %d ms", result.size(), System.currentTimeMillis() - start));
+		return result;
+	}
+
+	private List<Track> resolve(List<Candidate> candidates, ProgressListener progressListener)
+	{
+		List<Candidate> unread = new ArrayList<Candidate>();
+
+		synchronized (this)
+		{
+			for (Candidate candidate : candidates)
+			{
+				Track track = tracks.get(candidate.file.getPath());
+
+				if (track != null && track.size == candidate.size)
+				{
+					candidate.track = track;
+				}
+				else
+				{
+					unread.add(candidate);
+				}
+			}
+		}
+
+		if (unread.size() == 1)
+		{
+			Candidate candidate = unread.get(0);
+			candidate.track = readTrack(candidate.file, candidate.size, candidate.lastModified);
+			store(Collections.singletonList(candidate.track));
+		}
+		else if (!unread.isEmpty())
+		{
+			readTracks(unread, progressListener);
+		}
+
+		List<Track> result = new ArrayList<Track>(candidates.size());
+
+		for (Candidate candidate : candidates)
+		{
+			if (candidate.track != null)
+			{
+				result.add(candidate.track);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Reads the tags of the given files with a pool of extractors. Only a few files per extractor
+	 * are queued at a time, so that the scan can be cancelled and the pool resized while it runs.
+	 * The tags are stored in the library in batches.
+	 */
+	private void readTracks(List<Candidate> unread, ProgressListener progressListener)
+	{
+		long start = System.currentTimeMillis();
+		CompletionService<Candidate> completionService = new ExecutorCompletionService<Candidate>(executor);
+		List<Track> batch = new ArrayList<Track>(BATCH_SIZE);
+		int submitted = 0;
+		int completed = 0;
+		int extractorCount = setExtractorCount();
+
+		try
+		{
+			while (completed < unread.size())
+			{
+				while (submitted < unread.size() && submitted - completed < extractorCount * QUEUED_FILES_PER_EXTRACTOR && !isCancelled(progressListener))
+				{
+					final Candidate candidate = unread.get(submitted++);
+
+					completionService.submit(new Callable<Candidate>()
+					{
+						@Override
+						public Candidate call() throws Exception
+						{
+							candidate.track = readTrack(candidate.file, candidate.size, candidate.lastModified);
+							return candidate;
+						}
+					});
+				}
+
+				if (completed == submitted)
+				{
+					break;
+				}
+
+				batch.add(completionService.take().get().track);
+				completed++;
+
+				if (batch.size() == BATCH_SIZE || completed == submitted)
+				{
+					store(batch);
+					batch.clear();
+					extractorCount = setExtractorCount();
+
+					if (progressListener != null)
+					{
+						progressListener.updateProgress(context.getResources().getString(R.string.music_service_reading_tags, completed, unread.size()));
+					}
+				}
+			}
+		}
+		catch (Exception x)
+		{
+			Log.w(TAG, "Failed to read tags", x);
+		}
+		finally
+		{
+			store(batch);
+		}
+
+		Log.i(TAG, String.format("Read tags of %d of %d files in %d ms with %d extractors, %d failed", completed, unread.size(), System.currentTimeMillis() - start, extractorCount, failedReads.getAndSet(0)));
+	}
+
+	static boolean isCancelled(ProgressListener progressListener)
+	{
+		return progressListener instanceof BackgroundTask && ((BackgroundTask<?>) progressListener).isCancelled();
+	}
+
+	/**
+	 * Sizes the extractor pool to the number of cores, or less when the device is on battery or
+	 * hot. Returns the new size.
+	 */
+	private int setExtractorCount()
+	{
+		int count = Runtime.getRuntime().availableProcessors();
+		Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+
+		if (battery != null)
+		{
+			if (battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0) >= HOT_BATTERY_TEMPERATURE)
+			{
+				count = 1;
+			}
+			else if (battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0)
+			{
+				count = Math.max(count / 2, 1);
+			}
+		}
+
+		// The core size may never be larger than the maximum size
+		if (count > executor.getMaximumPoolSize())
+		{
+			executor.setMaximumPoolSize(count);
+			executor.setCorePoolSize(count);
+		}
+		else
+		{
+			executor.setCorePoolSize(count);
+			executor.setMaximumPoolSize(count);
+		}
+
+		return count;
+	}
+
+	private synchronized void store(List<Track> batch)
+	{
+		if (batch.isEmpty())
+		{
+			return;
+		}
+
+		for (Track track : batch)
+		{
+			tracks.put(track.path, track);
+		}
+
+		scheduleSave();
+	}
+
+	/**
+	 * Returns true if the given file is a completely downloaded song or video.
+	 */
+	static boolean isTrackFile(File file)
+	{
+		String name = file.getName();
+		return FileUtil.isMediaFile(file) && !name.endsWith(".partial") && !name.contains(".partial.");
+	}
+
+	private void scheduleSave()
+	{
+		if (saveScheduled)
+		{
+			return;
+		}
+
+		saveScheduled = true;
+
+		saveExecutor.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ArrayList<Track> snapshot;
+
+				synchronized (OfflineLibrary.this)
+				{
+					saveScheduled = false;
+					snapshot = new ArrayList<Track>(tracks.values());
+				}
+
+				FileUtil.serialize(context, snapshot, FILE_NAME, CODEC);
+			}
+		}, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+	}
+
+	private Track readTrack(File file, long size, long lastModified)
+	{
+		Track track = new Track(file.getPath(), size, lastModified);
+
+		try
+		{
+			MediaMetadataRetriever mmr = new MediaMetadataRetriever();
+
+			try
+			{
+				mmr.setDataSource(file.getPath());
+				track.artist = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
+				track.album = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM);
+				track.title = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
+				track.track = parseNumber(mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_CD_TRACK_NUMBER));
+				track.discNumber = parseNumber(mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DISC_NUMBER));
+				track.year = parseNumber(mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_YEAR));
+				track.genre = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_GENRE);
+				track.video = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_HAS_VIDEO) != null;
+
+				String duration = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+
+				if (duration != null)
+				{
+					track.duration = TimeUnit.MILLISECONDS.toSeconds(Long.parseLong(duration));
+				}
+			}
+			finally
+			{
+				mmr.release();
+			}
+		}
+		catch (Exception x)
+		{
+			failedReads.incrementAndGet();
+		}
+
+		File albumArt = FileUtil.getAlbumArtFile(file.getParentFile());
+
+		if (albumArt != null && albumArt.exists())
+		{
+			track.coverArt = albumArt.getPath();
+		}
+
+		return track;
+	}
+
+	/**
+	 * Parses numbers like "3" or "3/12", returning 0 if the value is not a number.
+	 */
+	private static Integer parseNumber(String value)
+	{
+		if (value == null)
+		{
+			return null;
+		}
+
+		int slashIndex = value.indexOf('/');
+
+		try
+		{
+			return Integer.parseInt((slashIndex > 0 ? value.substring(0, slashIndex) : value).trim());
+		}
+		catch (NumberFormatException x)
+		{
+			return 0;
+		}
+	}
+
+	private static class Candidate
+	{
+		private final File file;
+		private final long size;
+		private final long lastModified;
+		private Track track;
+
+		Candidate(File file, long size, long lastModified)
+		{
+			this.file = file;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * The tags of a song file. Tags that are missing from the file are null.
+	 */
+	public static class Track
+	{
+		private final String path;
+		private final long size;
+		private final long lastModified;
+		private String artist;
+		private String album;
+		private String title;
+		private Integer track;
+		private Integer discNumber;
+		private Integer year;
+		private String genre;
+		private Long duration;
+		private boolean video;
+		private String coverArt;
+
+		Track(String path, long size, long lastModified)
+		{
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		public String getPath()
+		{
+			return path;
+		}
+
+		public long getSize()
+		{
+			return size;
+		}
+
+		public long getLastModified()
+		{
+			return lastModified;
+		}
+
+		public String getArtist()
+		{
+			return artist;
+		}
+
+		public String getAlbum()
+		{
+			return album;
+		}
+
+		public String getTitle()
+		{
+			return title;
+		}
+
+		public Integer getTrack()
+		{
+			return track;
+		}
+
+		public Integer getDiscNumber()
+		{
+			return discNumber;
+		}
+
+		public Integer getYear()
+		{
+			return year;
+		}
+
+		public String getGenre()
+		{
+			return genre;
+		}
+
+		/**
+		 * Returns the duration in seconds.
+		 */
+		public Long getDuration()
+		{
+			return duration;
+		}
+
+		public boolean isVideo()
+		{
+			return video;
+		}
+
+		public String getCoverArt()
+		{
+			return coverArt;
+		}
+	}
+
+	private static final BinaryCodec<List<Track>> CODEC = new BinaryCodec<List<Track>>(1)
+	{
+		@Override
+		protected void write(Output out, List<Track> tracks) throws IOException
+		{
+			out.writeVarInt(tracks.size());
+
+			for (Track track : tracks)
+			{
+				out.writeString(track.path);
+				out.writeVarLong(track.size);
+				out.writeVarLong(track.lastModified);
+				out.writeString(track.artist);
+				out.writeString(track.album);
+				out.writeString(track.title);
+				out.writeInteger(track.track);
+				out.writeInteger(track.discNumber);
+				out.writeInteger(track.year);
+				out.writeString(track.genre);
+				out.writeLong(track.duration);
+				out.writeBoolean(track.video);
+				out.writeString(track.coverArt);
+			}
+		}
+
+		@Override
+		protected List<Track> read(Input in) throws IOException
+		{
+			int size = in.readSize();
+			List<Track> tracks = new ArrayList<Track>(size);
+
+			for (int i = 0; i < size; i++)
+			{
+				Track track = new Track(in.readString(), in.readVarLong(), in.readVarLong());
+				track.artist = in.readString();
+				track.album = in.readString();
+				track.title = in.readString();
+				track.track = in.readInteger();
+				track.discNumber = in.readInteger();
+				track.year = in.readInteger();
+				track.genre = in.readString();
+				track.duration = in.readLong();
+				track.video = in.readBoolean();
+				track.coverArt = in.readString();
+				tracks.add(track);
+			}
+
+			return tracks;
+		}
+	};
+}
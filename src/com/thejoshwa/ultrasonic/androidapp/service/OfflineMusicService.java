@@ -20,7 +20,6 @@ package com.thejoshwa.ultrasonic.androidapp.service;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.media.MediaMetadataRetriever;
 import android.util.Log;
 
 import com.thejoshwa.ultrasonic.androidapp.domain.Artist;
@@ -50,12 +49,12 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
-import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 /**
@@ -145,6 +144,8 @@ public class OfflineMusicService extends RESTMusicService
 		result.setName(dir.getName());
 
 		Collection<String> names = new HashSet<String>();
+		List<File> files = new ArrayList<File>();
+		List<File> songFiles = new ArrayList<File>();
 
 		for (File file : FileUtil.listMediaFiles(dir))
 		{
@@ -152,7 +153,33 @@ public class OfflineMusicService extends RESTMusicService
 			if (name != null & !names.contains(name))
 			{
 				names.add(name);
-				result.addChild(createEntry(context, file, name));
+				files.add(file);
+
+				if (file.isFile())
+				{
+					songFiles.add(file);
+				}
+			}
+		}
+
+		// Read the tags of all songs at once, so that new songs are read in parallel
+		Map<String, OfflineLibrary.Track> tracks = new HashMap<String, OfflineLibrary.Track>();
+
+		for (OfflineLibrary.Track track : OfflineLibrary.getInstance(context).getTracks(songFiles, progressListener))
+		{
+			tracks.put(track.getPath(), track);
+		}
+
+		// Song files without a track are left out, looked up in a set rather than the list
+		Set<File> songFileSet = new HashSet<File>(songFiles);
+
+		for (File file : files)
+		{
+			OfflineLibrary.Track track = tracks.get(file.getPath());
+
+			if (track != null || !songFileSet.contains(file))
+			{
+				result.addChild(createEntry(context, file, getName(file), track));
 			}
 		}
 
@@ -178,151 +205,73 @@ public class OfflineMusicService extends RESTMusicService
 	}
 
 	private static MusicDirectory.Entry createEntry(Context context, File file, String name)
+	{
+		return createEntry(context, file, name, file.isFile() ? OfflineLibrary.getInstance(context).getTrack(file) : null);
+	}
+
+	private static MusicDirectory.Entry createEntry(Context context, File file, String name, OfflineLibrary.Track track)
 	{
 		MusicDirectory.Entry entry = new MusicDirectory.Entry();
-		entry.setIsDirectory(file.isDirectory());
+		entry.setIsDirectory(track == null);
 		entry.setId(file.getPath());
 		entry.setParent(file.getParent());
-		entry.setSize(file.length());
+		entry.setSize(track != null ? track.getSize() : file.length());
 		String root = FileUtil.getMusicDirectory(context).getPath();
 		entry.setPath(file.getPath().replaceFirst(String.format("^%s/", root), ""));
 		entry.setTitle(name);
 
-		if (file.isFile())
+		if (track != null)
 		{
-			String artist = null;
-			String album = null;
-			String title = null;
-			String track = null;
-			String disc = null;
-			String year = null;
-			String genre = null;
-			String duration = null;
-			String hasVideo = null;
-
-			try
-			{
-				MediaMetadataRetriever mmr = new MediaMetadataRetriever();
-				mmr.setDataSource(file.getPath());
-				artist = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
-				album = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM);
-				title = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
-				track = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_CD_TRACK_NUMBER);
-				disc = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DISC_NUMBER);
-				year = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_YEAR);
-				genre = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_GENRE);
-				duration = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-				hasVideo = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_HAS_VIDEO);
-				mmr.release();
-			}
-			catch (Exception ignored)
-			{
-			}
-
-			entry.setArtist(artist != null ? artist : file.getParentFile().getParentFile().getName());
-			entry.setAlbum(album != null ? album : file.getParentFile().getName());
+			entry.setArtist(track.getArtist() != null ? track.getArtist() : file.getParentFile().getParentFile().getName());
+			entry.setAlbum(track.getAlbum() != null ? track.getAlbum() : file.getParentFile().getName());
 
-			if (title != null)
+			if (track.getTitle() != null)
 			{
-				entry.setTitle(title);
+				entry.setTitle(track.getTitle());
 			}
 
-			entry.setIsVideo(hasVideo != null);
+			entry.setIsVideo(track.isVideo());
 
-			Log.i("OfflineMusicService", String.format("Offline Stuff: %s", track));
-
-			if (track != null)
+			if (track.getTrack() != null)
 			{
-
-				int trackValue = 0;
-
-				try
-				{
-					int slashIndex = track.indexOf('/');
-
-					if (slashIndex > 0)
-					{
-						track = track.substring(0, slashIndex);
-					}
-
-					trackValue = Integer.parseInt(track);
-				}
-				catch (Exception ex)
-				{
-					Log.e("OfflineMusicService", String.format("Offline Stuff: %s", ex));
-				}
-
-				Log.i("OfflineMusicService", String.format("Offline Stuff: Setting Track: %d", trackValue));
-
-				entry.setTrack(trackValue);
+				entry.setTrack(track.getTrack());
 			}
 
-			if (disc != null)
+			if (track.getDiscNumber() != null)
 			{
-				int discValue = 0;
-
-				try
-				{
-					int slashIndex = disc.indexOf('/');
-
-					if (slashIndex > 0)
-					{
-						disc = disc.substring(0, slashIndex);
-					}
-
-					discValue = Integer.parseInt(disc);
-				}
-				catch (Exception ignored)
-				{
-				}
-
-				entry.setDiscNumber(discValue);
+				entry.setDiscNumber(track.getDiscNumber());
 			}
 
-			if (year != null)
+			if (track.getYear() != null)
 			{
-				int yearValue = 0;
-
-				try
-				{
-					yearValue = Integer.parseInt(year);
-				}
-				catch (Exception ignored)
-				{
-				}
-
-				entry.setYear(yearValue);
+				entry.setYear(track.getYear());
 			}
 
-			if (genre != null)
+			if (track.getGenre() != null)
 			{
-				entry.setGenre(genre);
+				entry.setGenre(track.getGenre());
 			}
 
-			if (duration != null)
+			if (track.getDuration() != null)
 			{
-				long durationValue = 0;
-
-				try
-				{
-					durationValue = Long.parseLong(duration);
-					durationValue = TimeUnit.MILLISECONDS.toSeconds(durationValue);
-				}
-				catch (Exception ignored)
-				{
-				}
-
-				entry.setDuration(durationValue);
+				entry.setDuration(track.getDuration());
 			}
 		}
 
 		entry.setSuffix(FileUtil.getExtension(file.getName().replace(".complete", "")));
 
-		File albumArt = FileUtil.getAlbumArtFile(context, entry);
-
-		if (albumArt.exists())
+		if (track != null && track.getCoverArt() != null)
 		{
-			entry.setCoverArt(albumArt.getPath());
+			entry.setCoverArt(track.getCoverArt());
+		}
+		else
+		{
+			File albumArt = FileUtil.getAlbumArtFile(context, entry);
+
+			if (albumArt.exists())
+			{
+				entry.setCoverArt(albumArt.getPath());
+			}
 		}
 
 		return entry;
@@ -347,7 +296,7 @@ public class OfflineMusicService extends RESTMusicService
 	{
 		try
 		{
-			Bitmap bitmap = FileUtil.getAlbumArtBitmap(context, entry, size, highQuality);
+			Bitmap bitmap = FileUtil.getAlbumArtBitmap(context, entry, size, highQuality, false);
 			return Util.scaleBitmap(bitmap, size);
 		}
 		catch (Exception e)
@@ -380,142 +329,39 @@ public class OfflineMusicService extends RESTMusicService
 		List<Artist> artists = new ArrayList<Artist>();
 		List<MusicDirectory.Entry> albums = new ArrayList<MusicDirectory.Entry>();
 		List<MusicDirectory.Entry> songs = new ArrayList<MusicDirectory.Entry>();
-		File root = FileUtil.getMusicDirectory(context);
-		int closeness;
+		OfflineLibrary library = OfflineLibrary.getInstance(context);
 
-		for (File artistFile : FileUtil.listFiles(root))
+		for (OfflineSearchIndex.Match match : OfflineSearchIndex.getInstance(context).search(criteria.getQuery(), criteria.getArtistCount(), criteria.getAlbumCount(), criteria.getSongCount(), progressListener))
 		{
-			String artistName = artistFile.getName();
-			if (artistFile.isDirectory())
+			File file = new File(match.getPath());
+
+			switch (match.getType())
 			{
-				if ((closeness = matchCriteria(criteria, artistName)) > 0)
-				{
+				case ARTIST:
 					Artist artist = new Artist();
-					artist.setId(artistFile.getPath());
-					artist.setIndex(artistFile.getName().substring(0, 1));
-					artist.setName(artistName);
-					artist.setCloseness(closeness);
+					artist.setId(match.getPath());
+					artist.setIndex(match.getName().substring(0, 1));
+					artist.setName(match.getName());
+					artist.setCloseness(match.getCloseness());
 					artists.add(artist);
-				}
-
-				recursiveAlbumSearch(artistName, artistFile, criteria, context, albums, songs);
-			}
-		}
-
-		Collections.sort(artists, new Comparator<Artist>()
-		{
-			@Override
-			public int compare(Artist lhs, Artist rhs)
-			{
-				if (lhs.getCloseness() == rhs.getCloseness())
-				{
-					return 0;
-				}
-
-				else return lhs.getCloseness() > rhs.getCloseness() ? -1 : 1;
-			}
-		});
-		Collections.sort(albums, new Comparator<MusicDirectory.Entry>()
-		{
-			@Override
-			public int compare(MusicDirectory.Entry lhs, MusicDirectory.Entry rhs)
-			{
-				if (lhs.getCloseness() == rhs.getCloseness())
-				{
-					return 0;
-				}
-
-				else return lhs.getCloseness() > rhs.getCloseness() ? -1 : 1;
-			}
-		});
-		Collections.sort(songs, new Comparator<MusicDirectory.Entry>()
-		{
-			@Override
-			public int compare(MusicDirectory.Entry lhs, MusicDirectory.Entry rhs)
-			{
-				if (lhs.getCloseness() == rhs.getCloseness())
-				{
-					return 0;
-				}
-
-				else return lhs.getCloseness() > rhs.getCloseness() ? -1 : 1;
-			}
-		});
-
-		return new SearchResult(artists, albums, songs);
-	}
-
-	private static void recursiveAlbumSearch(String artistName, File file, SearchCriteria criteria, Context context, List<MusicDirectory.Entry> albums, List<MusicDirectory.Entry> songs)
-	{
-		int closeness;
-
-		for (File albumFile : FileUtil.listMediaFiles(file))
-		{
-			if (albumFile.isDirectory())
-			{
-				String albumName = getName(albumFile);
-				if ((closeness = matchCriteria(criteria, albumName)) > 0)
-				{
-					MusicDirectory.Entry album = createEntry(context, albumFile, albumName);
-					album.setArtist(artistName);
-					album.setCloseness(closeness);
+					break;
+				case ALBUM:
+					MusicDirectory.Entry album = createEntry(context, file, match.getName(), null);
+					album.setArtist(match.getArtist());
+					album.setCloseness(match.getCloseness());
 					albums.add(album);
-				}
-
-				for (File songFile : FileUtil.listMediaFiles(albumFile))
-				{
-					String songName = getName(songFile);
-
-					if (songFile.isDirectory())
-					{
-						recursiveAlbumSearch(artistName, songFile, criteria, context, albums, songs);
-					}
-					else if ((closeness = matchCriteria(criteria, songName)) > 0)
-					{
-						MusicDirectory.Entry song = createEntry(context, albumFile, songName);
-						song.setArtist(artistName);
-						song.setAlbum(albumName);
-						song.setCloseness(closeness);
-						songs.add(song);
-					}
-				}
-			}
-			else
-			{
-				String songName = getName(albumFile);
-
-				if ((closeness = matchCriteria(criteria, songName)) > 0)
-				{
-					MusicDirectory.Entry song = createEntry(context, albumFile, songName);
-					song.setArtist(artistName);
-					song.setAlbum(songName);
-					song.setCloseness(closeness);
+					break;
+				default:
+					MusicDirectory.Entry song = createEntry(context, file, match.getName(), library.getTrack(file));
+					song.setArtist(match.getArtist());
+					song.setAlbum(match.getAlbum());
+					song.setCloseness(match.getCloseness());
 					songs.add(song);
-				}
+					break;
 			}
 		}
-	}
-
-	private static int matchCriteria(SearchCriteria criteria, String name)
-	{
-		String query = criteria.getQuery().toLowerCase();
-		String[] queryParts = COMPILE.split(query);
-		String[] nameParts = COMPILE.split(name.toLowerCase());
-
-		int closeness = 0;
 
-		for (String queryPart : queryParts)
-		{
-			for (String namePart : nameParts)
-			{
-				if (namePart.equals(queryPart))
-				{
-					closeness++;
-				}
-			}
-		}
-
-		return closeness;
+		return new SearchResult(artists, albums, songs);
 	}
 
 	@Override
@@ -754,21 +600,12 @@ public class OfflineMusicService extends RESTMusicService
 	@Override
 	public MusicDirectory getRandomSongs(int size, Context context, ProgressListener progressListener) throws Exception
 	{
-		File root = FileUtil.getMusicDirectory(context);
-		List<File> children = new LinkedList<File>();
-		listFilesRecursively(root, children);
 		MusicDirectory result = new MusicDirectory();
 
-		if (children.isEmpty())
+		for (OfflineLibrary.Track track : OfflineTrackTable.getInstance(context).getRandomTracks(size, null, null, false, progressListener))
 		{
-			return result;
-		}
-
-		Random random = new java.security.SecureRandom();
-		for (int i = 0; i < size; i++)
-		{
-			File file = children.get(random.nextInt(children.size()));
-			result.addChild(createEntry(context, file, getName(file)));
+			File file = new File(track.getPath());
+			result.addChild(createEntry(context, file, getName(file), track));
 		}
 
 		return result;
@@ -815,19 +652,4 @@ public class OfflineMusicService extends RESTMusicService
 	{
 		throw new OfflineException("Updating shares not available in offline mode");
 	}
-
-	private static void listFilesRecursively(File parent, List<File> children)
-	{
-		for (File file : FileUtil.listMediaFiles(parent))
-		{
-			if (file.isFile())
-			{
-				children.add(file);
-			}
-			else
-			{
-				listFilesRecursively(file, children);
-			}
-		}
-	}
 }
@@ -0,0 +1,653 @@
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.thejoshwa.ultrasonic.androidapp.util.BinaryCodec;
+import com.thejoshwa.ultrasonic.androidapp.util.FileUtil;
+import com.thejoshwa.ultrasonic.androidapp.util.MusicDirectoryTracker;
+import com.thejoshwa.ultrasonic.androidapp.util.ProgressListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * An inverted index of the artists, albums and songs in the offline music directory, used for
+ * offline search.
+ * <p/>
+ * Names are split into terms, which are lower-cased and stripped of diacritics. Every query term
+ * matches the terms it is a prefix of, so that partly typed words already give results. Articles
+ * like "the" are ignored in queries. The index is rebuilt in the background from the
+ * {@link OfflineLibrary} when the {@link MusicDirectoryTracker} reports that a song was added,
+ * removed or changed size, and saved in the cache directory.
+ */
+public class OfflineSearchIndex
+{
+	private static final String TAG = OfflineSearchIndex.class.getSimpleName();
+	private static final String FILE_NAME = "offline_search.dat";
+	private static final Pattern PATH_SEPARATOR = Pattern.compile("/");
+	private static final Pattern DIACRITICS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+	private static final Pattern TERM_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+	private static final Set<String> IGNORED_ARTICLES = new HashSet<String>(Arrays.asList("the", "a", "an", "el", "la", "los", "las", "le", "les"));
+
+	// Scores of a query term matching a term of the name, or of the artist and album of a song,
+	// and the bonus if the query is exactly the name
+	private static final int SCORE_NAME_EXACT = 6;
+	private static final int SCORE_NAME_PREFIX = 3;
+	private static final int SCORE_OTHER_EXACT = 2;
+	private static final int SCORE_OTHER_PREFIX = 1;
+	private static final int SCORE_WHOLE_NAME = 4;
+
+	private static OfflineSearchIndex instance;
+
+	private final Context context;
+	private final ExecutorService updateExecutor = Executors.newSingleThreadExecutor();
+	private Index index;
+	private volatile boolean changed = true;
+	private boolean updating;
+
+	private OfflineSearchIndex(Context context)
+	{
+		this.context = context;
+
+		MusicDirectoryTracker.getInstance(context).addListener(new MusicDirectoryTracker.Listener()
+		{
+			@Override
+			public void fileChanged(MusicDirectoryTracker.TrackedFile previous, MusicDirectoryTracker.TrackedFile file)
+			{
+				// A song that was only played keeps its size, and does not change the index
+				if ((previous == null || previous.getSize() != file.getSize()) && OfflineLibrary.isTrackFile(new File(file.getPath())))
+				{
+					changed = true;
+				}
+			}
+
+			@Override
+			public void fileDeleted(String path)
+			{
+				if (OfflineLibrary.isTrackFile(new File(path)))
+				{
+					changed = true;
+				}
+			}
+		});
+	}
+
+	public static synchronized OfflineSearchIndex getInstance(Context context)
+	{
+		if (instance == null)
+		{
+			instance = new OfflineSearchIndex(context.getApplicationContext());
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Returns the artists, albums and songs that match all terms of the query, best matches first.
+	 * The progress listener is told about the tags that are read if the index has to be built.
+	 */
+	public List<Match> search(String query, int maxArtists, int maxAlbums, int maxSongs, ProgressListener progressListener)
+	{
+		long start = System.currentTimeMillis();
+		Index index = getIndex(progressListener);
+		List<String> terms = getQueryTerms(query);
+		int documentCount = index.documents.size();
+		int[] scores = new int[documentCount];
+		int[] termScores = new int[documentCount];
+		int[] matchedTerms = new int[documentCount];
+
+		for (int i = 0; i < terms.size(); i++)
+		{
+			String term = terms.get(i);
+			int from = Arrays.binarySearch(index.terms, term);
+
+			for (int t = from < 0 ? -from - 1 : from; t < index.terms.length && index.terms[t].startsWith(term); t++)
+			{
+				boolean exact = index.terms[t].length() == term.length();
+
+				for (int posting : index.postings[t])
+				{
+					int document = posting >>> 1;
+					boolean name = (posting & 1) != 0;
+					int score = name ? (exact ? SCORE_NAME_EXACT : SCORE_NAME_PREFIX) : (exact ? SCORE_OTHER_EXACT : SCORE_OTHER_PREFIX);
+
+					// Every query term has to match, only the best match of each term counts
+					if (matchedTerms[document] == i)
+					{
+						matchedTerms[document] = i + 1;
+						termScores[document] = score;
+						scores[document] += score;
+					}
+					else if (matchedTerms[document] == i + 1 && score > termScores[document])
+					{
+						scores[document] += score - termScores[document];
+						termScores[document] = score;
+					}
+				}
+			}
+		}
+
+		List<Match> artists = new ArrayList<Match>();
+		List<Match> albums = new ArrayList<Match>();
+		List<Match> songs = new ArrayList<Match>();
+
+		for (int document = 0; !terms.isEmpty() && document < documentCount; document++)
+		{
+			if (matchedTerms[document] == terms.size())
+			{
+				Document matched = index.documents.get(document);
+				boolean wholeName = matched.nameTermCount == terms.size() && scores[document] == terms.size() * SCORE_NAME_EXACT;
+				int score = scores[document] + (wholeName ? SCORE_WHOLE_NAME : 0);
+				Match match = new Match(matched, score);
+
+				switch (matched.type)
+				{
+					case ARTIST:
+						artists.add(match);
+						break;
+					case ALBUM:
+						albums.add(match);
+						break;
+					default:
+						songs.add(match);
+						break;
+				}
+			}
+		}
+
+		List<Match> result = new ArrayList<Match>();
+		addBest(artists, maxArtists, result);
+		addBest(albums, maxAlbums, result);
+		addBest(songs, maxSongs, result);
+
+		Log.d(TAG, String.format("Searched %d entries for '%s' in %d ms", documentCount, query, System.currentTimeMillis() - start));
+		return result;
+	}
+
+	private static void addBest(List<Match> matches, int max, List<Match> result)
+	{
+		Collections.sort(matches, new Comparator<Match>()
+		{
+			@Override
+			public int compare(Match lhs, Match rhs)
+			{
+				if (lhs.score != rhs.score)
+				{
+					return lhs.score > rhs.score ? -1 : 1;
+				}
+
+				return lhs.document.name.compareToIgnoreCase(rhs.document.name);
+			}
+		});
+
+		result.addAll(matches.subList(0, Math.min(max, matches.size())));
+	}
+
+	/**
+	 * Returns the index. The first time the index is needed and none was saved, it is built while
+	 * the search waits. After that, when songs were added, changed or removed, the index is built
+	 * again in the background and the previous one is used until it is done.
+	 */
+	private synchronized Index getIndex(ProgressListener progressListener)
+	{
+		if (index == null)
+		{
+			index = FileUtil.deserialize(context, FILE_NAME, CODEC);
+
+			if (index == null)
+			{
+				changed = false;
+				index = update(progressListener);
+				return index;
+			}
+		}
+
+		if (changed && !updating)
+		{
+			changed = false;
+			updating = true;
+
+			// The saved index is checked against the music directory in the same way
+			updateExecutor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						update(null);
+					}
+					catch (Exception x)
+					{
+						Log.w(TAG, "Failed to update search index", x);
+					}
+					finally
+					{
+						synchronized (OfflineSearchIndex.this)
+						{
+							updating = false;
+						}
+					}
+				}
+			});
+		}
+
+		return index;
+	}
+
+	/**
+	 * Builds the index again if the songs in the music directory differ from those in the current index.
+	 */
+	private Index update(ProgressListener progressListener)
+	{
+		long signature = 0L;
+		int trackCount = 0;
+
+		// The signature changes when a song is added, removed or changes size
+		for (MusicDirectoryTracker.TrackedFile file : MusicDirectoryTracker.getInstance(context).getFiles())
+		{
+			if (OfflineLibrary.isTrackFile(new File(file.getPath())))
+			{
+				signature += (file.getPath().hashCode() * 31L + file.getSize()) * 31L + 1;
+				trackCount++;
+			}
+		}
+
+		Index current;
+
+		synchronized (this)
+		{
+			current = index;
+		}
+
+		if (current != null && current.signature == signature)
+		{
+			return current;
+		}
+
+		long start = System.currentTimeMillis();
+		List<OfflineLibrary.Track> tracks = OfflineLibrary.getInstance(context).getTracks(progressListener);
+		Index updated = build(tracks, signature);
+
+		// If reading the tags was cancelled, the index is incomplete and is built again next time
+		boolean complete = tracks.size() >= trackCount;
+
+		synchronized (this)
+		{
+			index = updated;
+			changed |= !complete;
+		}
+
+		if (complete)
+		{
+			FileUtil.serialize(context, updated, FILE_NAME, CODEC);
+		}
+
+		Log.i(TAG, String.format("Indexed %d entries with %d terms in %d ms", updated.documents.size(), updated.terms.length, System.currentTimeMillis() - start));
+		return updated;
+	}
+
+	private Index build(List<OfflineLibrary.Track> tracks, long signature)
+	{
+		String root = FileUtil.getMusicDirectory(context).getPath();
+		Builder builder = new Builder();
+		Set<String> directories = new HashSet<String>();
+
+		for (OfflineLibrary.Track track : tracks)
+		{
+			String[] parts = PATH_SEPARATOR.split(track.getPath().substring(root.length() + 1));
+
+			// Songs directly in the music directory don't belong to an artist
+			if (parts.length < 2)
+			{
+				continue;
+			}
+
+			// Every directory below an artist is an album
+			String artistName = parts[0];
+			String path = root + File.separator + artistName;
+
+			if (directories.add(path))
+			{
+				builder.add(new Document(Type.ARTIST, path, artistName, null, null));
+			}
+
+			for (int i = 1; i < parts.length - 1; i++)
+			{
+				path = path + File.separator + parts[i];
+
+				if (directories.add(path))
+				{
+					builder.add(new Document(Type.ALBUM, path, parts[i], artistName, null), artistName);
+				}
+			}
+
+			String songName = FileUtil.getBaseName(parts[parts.length - 1].replace(".complete", ""));
+			String albumName = parts.length > 2 ? parts[parts.length - 2] : songName;
+			Document song = new Document(Type.SONG, track.getPath(), songName, artistName, albumName);
+			builder.add(song, track.getTitle(), artistName, albumName, track.getArtist(), track.getAlbum());
+		}
+
+		return builder.build(signature);
+	}
+
+	private static List<String> getQueryTerms(String query)
+	{
+		List<String> terms = getTerms(query);
+		List<String> result = new ArrayList<String>(terms.size());
+
+		for (String term : terms)
+		{
+			if (!IGNORED_ARTICLES.contains(term))
+			{
+				result.add(term);
+			}
+		}
+
+		// A query of only articles is searched as it is
+		return result.isEmpty() ? terms : result;
+	}
+
+	/**
+	 * Splits the given text into lower-case terms without diacritics.
+	 */
+	private static List<String> getTerms(String text)
+	{
+		List<String> terms = new ArrayList<String>();
+
+		if (text == null)
+		{
+			return terms;
+		}
+
+		String normalized = DIACRITICS.matcher(Normalizer.normalize(text.toLowerCase(), Normalizer.Form.NFD)).replaceAll("");
+
+		for (String term : TERM_SEPARATOR.split(normalized))
+		{
+			if (term.length() > 0)
+			{
+				terms.add(term);
+			}
+		}
+
+		return terms;
+	}
+
+	public enum Type
+	{
+		ARTIST,
+		ALBUM,
+		SONG
+	}
+
+	/**
+	 * An artist, album or song found by a search. The closeness is higher for better matches.
+	 */
+	public static class Match
+	{
+		private final Document document;
+		private final int score;
+
+		Match(Document document, int score)
+		{
+			this.document = document;
+			this.score = score;
+		}
+
+		public Type getType()
+		{
+			return document.type;
+		}
+
+		public String getPath()
+		{
+			return document.path;
+		}
+
+		public String getName()
+		{
+			return document.name;
+		}
+
+		/**
+		 * Returns the name of the artist directory of an album or song.
+		 */
+		public String getArtist()
+		{
+			return document.artist;
+		}
+
+		/**
+		 * Returns the name of the album directory of a song.
+		 */
+		public String getAlbum()
+		{
+			return document.album;
+		}
+
+		public int getCloseness()
+		{
+			return score;
+		}
+	}
+
+	private static class Document
+	{
+		private final Type type;
+		private final String path;
+		private final String name;
+		private final String artist;
+		private final String album;
+		private int nameTermCount;
+
+		Document(Type type, String path, String name, String artist, String album)
+		{
+			this.type = type;
+			this.path = path;
+			this.name = name;
+			this.artist = artist;
+			this.album = album;
+		}
+	}
+
+	/**
+	 * The documents, the sorted terms, and for every term the documents containing it. Postings
+	 * are document numbers shifted left by one, with the lowest bit set if the term is in the name.
+	 */
+	private static class Index
+	{
+		private final long signature;
+		private final List<Document> documents;
+		private final String[] terms;
+		private final int[][] postings;
+
+		Index(long signature, List<Document> documents, String[] terms, int[][] postings)
+		{
+			this.signature = signature;
+			this.documents = documents;
+			this.terms = terms;
+			this.postings = postings;
+		}
+	}
+
+	private static class Builder
+	{
+		private final List<Document> documents = new ArrayList<Document>();
+		private final Map<String, Postings> postings = new HashMap<String, Postings>();
+
+		/**
+		 * Adds a document, with the terms of its name and of the other given texts.
+		 */
+		void add(Document document, String... others)
+		{
+			int number = documents.size();
+			Map<String, Integer> documentPostings = new HashMap<String, Integer>();
+			documents.add(document);
+
+			for (String other : others)
+			{
+				for (String term : getTerms(other))
+				{
+					documentPostings.put(term, number << 1);
+				}
+			}
+
+			for (String term : getTerms(document.name))
+			{
+				documentPostings.put(term, (number << 1) | 1);
+
+				if (!IGNORED_ARTICLES.contains(term))
+				{
+					document.nameTermCount++;
+				}
+			}
+
+			for (Map.Entry<String, Integer> entry : documentPostings.entrySet())
+			{
+				Postings termPostings = postings.get(entry.getKey());
+
+				if (termPostings == null)
+				{
+					termPostings = new Postings();
+					postings.put(entry.getKey(), termPostings);
+				}
+
+				termPostings.add(entry.getValue());
+			}
+		}
+
+		Index build(long signature)
+		{
+			String[] terms = postings.keySet().toArray(new String[postings.size()]);
+			Arrays.sort(terms);
+			int[][] termPostings = new int[terms.length][];
+
+			for (int i = 0; i < terms.length; i++)
+			{
+				termPostings[i] = postings.get(terms[i]).toArray();
+			}
+
+			return new Index(signature, documents, terms, termPostings);
+		}
+	}
+
+	private static class Postings
+	{
+		private int[] values = new int[4];
+		private int size;
+
+		void add(int value)
+		{
+			if (size == values.length)
+			{
+				values = Arrays.copyOf(values, size * 2);
+			}
+
+			values[size++] = value;
+		}
+
+		int[] toArray()
+		{
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	private static final BinaryCodec<Index> CODEC = new BinaryCodec<Index>(1)
+	{
+		@Override
+		protected void write(Output out, Index index) throws IOException
+		{
+			out.writeVarLong(index.signature);
+			out.writeVarInt(index.documents.size());
+
+			for (Document document : index.documents)
+			{
+				out.writeVarInt(document.type.ordinal());
+				out.writeString(document.path);
+				out.writeString(document.name);
+				out.writeString(document.artist);
+				out.writeString(document.album);
+				out.writeVarInt(document.nameTermCount);
+			}
+
+			out.writeVarInt(index.terms.length);
+
+			for (int i = 0; i < index.terms.length; i++)
+			{
+				out.writeString(index.terms[i]);
+				out.writeVarInt(index.postings[i].length);
+
+				// Postings are in ascending order, so only the differences are written
+				int previous = 0;
+
+				for (int posting : index.postings[i])
+				{
+					out.writeVarInt(posting - previous);
+					previous = posting;
+				}
+			}
+		}
+
+		@Override
+		protected Index read(Input in) throws IOException
+		{
+			long signature = in.readVarLong();
+			int documentCount = in.readSize();
+			List<Document> documents = new ArrayList<Document>(documentCount);
+			Type[] types = Type.values();
+
+			for (int i = 0; i < documentCount; i++)
+			{
+				int type = in.readVarInt();
+
+				if (type < 0 || type >= types.length)
+				{
+					throw new IOException(String.format("Invalid entry type %d", type));
+				}
+
+				Document document = new Document(types[type], in.readString(), in.readString(), in.readString(), in.readString());
+				document.nameTermCount = in.readVarInt();
+				documents.add(document);
+			}
+
+			int termCount = in.readSize();
+			String[] terms = new String[termCount];
+			int[][] postings = new int[termCount][];
+
+			for (int i = 0; i < termCount; i++)
+			{
+				terms[i] = in.readString();
+				postings[i] = new int[in.readSize()];
+				int previous = 0;
+
+				for (int j = 0; j < postings[i].length; j++)
+				{
+					previous += in.readVarInt();
+
+					if (previous >>> 1 >= documentCount)
+					{
+						throw new IOException(String.format("Invalid posting %d", previous));
+					}
+
+					postings[i][j] = previous;
+				}
+			}
+
+			return new Index(signature, documents, terms, postings);
+		}
+	};
+}
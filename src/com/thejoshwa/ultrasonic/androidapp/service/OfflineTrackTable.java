@@ -0,0 +1,422 @@
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.thejoshwa.ultrasonic.androidapp.util.LRUCache;
+import com.thejoshwa.ultrasonic.androidapp.util.MusicDirectoryTracker;
+import com.thejoshwa.ultrasonic.androidapp.util.ProgressListener;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * The songs of the offline library in an array sorted by path, used to pick random songs.
+ * <p/>
+ * Songs can be limited to a genre or a folder, and picked with equal chances per song or per
+ * album. Picks use an alias table, so that picking k songs takes O(k) once the table for a
+ * selection is built. Songs that were picked recently are not picked again, as long as there
+ * are enough other songs. The table is built again when the {@link MusicDirectoryTracker}
+ * reports that a song was added, removed or changed size. Songs that were only played keep
+ * their size and don't count.
+ */
+public class OfflineTrackTable
+{
+	private static final String TAG = OfflineTrackTable.class.getSimpleName();
+	private static final int RECENT_SONGS = 200;
+	private static final int MAX_ATTEMPTS_PER_SONG = 10;
+	private static final int ALIAS_TABLE_CACHE_SIZE = 10;
+	private static OfflineTrackTable instance;
+
+	private final Context context;
+	private final Random random = new Random();
+	private final Set<String> recent = new LinkedHashSet<String>();
+	private final LRUCache<String, AliasTable> aliasTables = new LRUCache<String, AliasTable>(ALIAS_TABLE_CACHE_SIZE);
+	private OfflineLibrary.Track[] tracks = new OfflineLibrary.Track[0];
+	private String[] paths = new String[0];
+	private Map<String, int[]> genres = new HashMap<String, int[]>();
+	private volatile boolean changed = true;
+
+	private OfflineTrackTable(Context context)
+	{
+		this.context = context;
+
+		MusicDirectoryTracker.getInstance(context).addListener(new MusicDirectoryTracker.Listener()
+		{
+			@Override
+			public void fileChanged(MusicDirectoryTracker.TrackedFile previous, MusicDirectoryTracker.TrackedFile file)
+			{
+				if ((previous == null || previous.getSize() != file.getSize()) && OfflineLibrary.isTrackFile(new File(file.getPath())))
+				{
+					changed = true;
+				}
+			}
+
+			@Override
+			public void fileDeleted(String path)
+			{
+				if (OfflineLibrary.isTrackFile(new File(path)))
+				{
+					changed = true;
+				}
+			}
+		});
+	}
+
+	public static synchronized OfflineTrackTable getInstance(Context context)
+	{
+		if (instance == null)
+		{
+			instance = new OfflineTrackTable(context.getApplicationContext());
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Returns up to the given number of different random songs.
+	 *
+	 * @param genre  only pick songs of this genre, or null for all genres
+	 * @param folder only pick songs below this folder, or null for the whole music directory
+	 * @param perAlbum give every album the same chance to be picked instead of every song
+	 */
+	public synchronized List<OfflineLibrary.Track> getRandomTracks(int size, String genre, File folder, boolean perAlbum, ProgressListener progressListener)
+	{
+		update(progressListener);
+
+		String key = String.format("%s %s %s", genre, folder, perAlbum);
+		AliasTable aliasTable = aliasTables.get(key);
+
+		if (aliasTable == null)
+		{
+			aliasTable = new AliasTable(select(genre, folder), perAlbum);
+			aliasTables.put(key, aliasTable);
+		}
+
+		List<OfflineLibrary.Track> result = new ArrayList<OfflineLibrary.Track>(size);
+		int count = Math.min(size, aliasTable.size());
+
+		// At most half of the other songs are avoided, so that a song that may be picked is found in a few attempts
+		int recentCount = Math.min(RECENT_SONGS, (aliasTable.size() - count) / 2);
+
+		Set<String> picked = new HashSet<String>(count * 2);
+
+		while (result.size() < count)
+		{
+			OfflineLibrary.Track track = pick(aliasTable, picked);
+			result.add(track);
+			picked.add(track.getPath());
+			recent.remove(track.getPath());
+			recent.add(track.getPath());
+			removeOldest(recentCount);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Picks a song that was not picked yet, and preferably not recently either.
+	 */
+	private OfflineLibrary.Track pick(AliasTable aliasTable, Set<String> picked)
+	{
+		OfflineLibrary.Track recentTrack = null;
+
+		for (int attempt = 0; attempt < MAX_ATTEMPTS_PER_SONG; attempt++)
+		{
+			OfflineLibrary.Track track = tracks[aliasTable.sample(random)];
+
+			if (!picked.contains(track.getPath()))
+			{
+				if (!recent.contains(track.getPath()))
+				{
+					return track;
+				}
+
+				if (recentTrack == null)
+				{
+					recentTrack = track;
+				}
+			}
+		}
+
+		if (recentTrack != null)
+		{
+			return recentTrack;
+		}
+
+		// Only songs that were already picked came up, take the next one that was not
+		int start = random.nextInt(aliasTable.size());
+
+		for (int i = 0; i < aliasTable.size(); i++)
+		{
+			OfflineLibrary.Track track = tracks[aliasTable.indices[(start + i) % aliasTable.size()]];
+
+			if (!picked.contains(track.getPath()))
+			{
+				return track;
+			}
+		}
+
+		throw new IllegalStateException("No songs left to pick");
+	}
+
+	private void removeOldest(int recentCount)
+	{
+		Iterator<String> iterator = recent.iterator();
+
+		while (recent.size() > Math.max(recentCount, 0) && iterator.hasNext())
+		{
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Builds the table again if songs were added, changed or removed.
+	 */
+	private void update(ProgressListener progressListener)
+	{
+		if (!changed)
+		{
+			return;
+		}
+
+		changed = false;
+		long start = System.currentTimeMillis();
+		List<OfflineLibrary.Track> libraryTracks = new ArrayList<OfflineLibrary.Track>();
+
+		for (OfflineLibrary.Track track : OfflineLibrary.getInstance(context).getTracks(progressListener))
+		{
+			if (!track.isVideo())
+			{
+				libraryTracks.add(track);
+			}
+		}
+
+		// If reading the tags was cancelled, the table is incomplete and is built again next time
+		if (OfflineLibrary.isCancelled(progressListener))
+		{
+			changed = true;
+		}
+
+		Collections.sort(libraryTracks, new Comparator<OfflineLibrary.Track>()
+		{
+			@Override
+			public int compare(OfflineLibrary.Track lhs, OfflineLibrary.Track rhs)
+			{
+				return lhs.getPath().compareTo(rhs.getPath());
+			}
+		});
+
+		tracks = libraryTracks.toArray(new OfflineLibrary.Track[libraryTracks.size()]);
+		paths = new String[tracks.length];
+		Map<String, List<Integer>> genreLists = new HashMap<String, List<Integer>>();
+
+		for (int i = 0; i < tracks.length; i++)
+		{
+			paths[i] = tracks[i].getPath();
+
+			if (tracks[i].getGenre() != null)
+			{
+				String genre = tracks[i].getGenre().toLowerCase();
+				List<Integer> genreList = genreLists.get(genre);
+
+				if (genreList == null)
+				{
+					genreList = new ArrayList<Integer>();
+					genreLists.put(genre, genreList);
+				}
+
+				genreList.add(i);
+			}
+		}
+
+		genres = new HashMap<String, int[]>(genreLists.size() * 2);
+
+		for (Map.Entry<String, List<Integer>> entry : genreLists.entrySet())
+		{
+			int[] indices = new int[entry.getValue().size()];
+
+			for (int i = 0; i < indices.length; i++)
+			{
+				indices[i] = entry.getValue().get(i);
+			}
+
+			genres.put(entry.getKey(), indices);
+		}
+
+		aliasTables.clear();
+		Log.i(TAG, String.format("Built table of %d songs in %d genres in %d ms", tracks.length, genres.size(), System.currentTimeMillis() - start));
+	}
+
+	/**
+	 * Returns the indices of the songs of the given genre below the given folder. The songs below
+	 * a folder are a range of the table, since it is sorted by path.
+	 */
+	private int[] select(String genre, File folder)
+	{
+		int from = 0;
+		int to = tracks.length;
+
+		if (folder != null)
+		{
+			String prefix = folder.getPath() + File.separator;
+			from = Arrays.binarySearch(paths, prefix);
+			from = from < 0 ? -from - 1 : from;
+			to = from;
+
+			while (to < paths.length && paths[to].startsWith(prefix))
+			{
+				to++;
+			}
+		}
+
+		if (genre == null)
+		{
+			int[] indices = new int[to - from];
+
+			for (int i = 0; i < indices.length; i++)
+			{
+				indices[i] = from + i;
+			}
+
+			return indices;
+		}
+
+		int[] genreIndices = genres.get(genre.toLowerCase());
+
+		if (genreIndices == null)
+		{
+			return new int[0];
+		}
+
+		int[] indices = new int[genreIndices.length];
+		int count = 0;
+
+		for (int index : genreIndices)
+		{
+			if (index >= from && index < to)
+			{
+				indices[count++] = index;
+			}
+		}
+
+		return Arrays.copyOf(indices, count);
+	}
+
+	/**
+	 * Picks from a set of songs with given weights in constant time, using Vose's alias method.
+	 */
+	private class AliasTable
+	{
+		private final int[] indices;
+		private final double[] probabilities;
+		private final int[] aliases;
+
+		AliasTable(int[] indices, boolean perAlbum)
+		{
+			int n = indices.length;
+			this.indices = indices;
+			probabilities = new double[n];
+			aliases = new int[n];
+
+			if (n == 0)
+			{
+				return;
+			}
+
+			double[] weights = new double[n];
+			Map<String, Integer> albumSizes = new HashMap<String, Integer>();
+
+			if (perAlbum)
+			{
+				for (int index : indices)
+				{
+					String album = new File(tracks[index].getPath()).getParent();
+					Integer albumSize = albumSizes.get(album);
+					albumSizes.put(album, albumSize == null ? 1 : albumSize + 1);
+				}
+			}
+
+			double totalWeight = 0.0;
+
+			for (int i = 0; i < n; i++)
+			{
+				weights[i] = perAlbum ? 1.0 / albumSizes.get(new File(tracks[indices[i]].getPath()).getParent()) : 1.0;
+				totalWeight += weights[i];
+			}
+
+			int[] small = new int[n];
+			int[] large = new int[n];
+			int smallCount = 0;
+			int largeCount = 0;
+
+			for (int i = 0; i < n; i++)
+			{
+				probabilities[i] = weights[i] * n / totalWeight;
+
+				if (probabilities[i] < 1.0)
+				{
+					small[smallCount++] = i;
+				}
+				else
+				{
+					large[largeCount++] = i;
+				}
+			}
+
+			while (smallCount > 0 && largeCount > 0)
+			{
+				int less = small[--smallCount];
+				int more = large[--largeCount];
+				aliases[less] = more;
+				probabilities[more] = probabilities[more] + probabilities[less] - 1.0;
+
+				if (probabilities[more] < 1.0)
+				{
+					small[smallCount++] = more;
+				}
+				else
+				{
+					large[largeCount++] = more;
+				}
+			}
+
+			// What is left over is 1 apart from rounding errors
+			while (largeCount > 0)
+			{
+				probabilities[large[--largeCount]] = 1.0;
+			}
+
+			while (smallCount > 0)
+			{
+				probabilities[small[--smallCount]] = 1.0;
+			}
+		}
+
+		int size()
+		{
+			return indices.length;
+		}
+
+		/**
+		 * Returns the table index of a random song.
+		 */
+		int sample(Random random)
+		{
+			int i = random.nextInt(indices.length);
+			return indices[random.nextDouble() < probabilities[i] ? i : aliases[i]];
+		}
+	}
+}
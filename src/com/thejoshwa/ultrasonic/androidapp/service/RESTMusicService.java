@@ -34,8 +34,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.http.Header;
@@ -43,19 +46,9 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.params.ConnPerRouteBean;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.scheme.SocketFactory;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.params.BasicHttpParams;
@@ -107,9 +100,8 @@ import com.thejoshwa.ultrasonic.androidapp.service.parser.SearchResultParser;
 import com.thejoshwa.ultrasonic.androidapp.service.parser.ShareParser;
 import com.thejoshwa.ultrasonic.androidapp.service.parser.UserInfoParser;
 import com.thejoshwa.ultrasonic.androidapp.service.parser.VersionParser;
-import com.thejoshwa.ultrasonic.androidapp.service.ssl.SSLSocketFactory;
-import com.thejoshwa.ultrasonic.androidapp.service.ssl.TrustSelfSignedStrategy;
 import com.thejoshwa.ultrasonic.androidapp.util.CancellableTask;
+import com.thejoshwa.ultrasonic.androidapp.util.Codecs;
 import com.thejoshwa.ultrasonic.androidapp.util.Constants;
 import com.thejoshwa.ultrasonic.androidapp.util.FileUtil;
 import com.thejoshwa.ultrasonic.androidapp.util.ProgressListener;
@@ -137,52 +129,90 @@ public class RESTMusicService implements MusicService
 	 */
 	private static final String VERSION_URL = "http://subsonic.org/backend/version.view";
 
-	private static final int HTTP_REQUEST_MAX_ATTEMPTS = 5;
+	private static final int MAX_CONNECTIONS = 20;
+	private static final int MAX_CONNECTIONS_PER_ROUTE = 20;
+	private static final long KEEP_ALIVE_MILLIS = 30000L;
 	private static final long REDIRECTION_CHECK_INTERVAL_MILLIS = 60L * 60L * 1000L;
 
-	private final DefaultHttpClient httpClient;
+	// Methods whose responses are requested in the more compact JSON format when the server supports it
+	private static final Collection<String> JSON_METHODS = new HashSet<String>(Arrays.asList("getIndexes", "getArtists", "getMusicDirectory", "getArtist", "getAlbum", "search2", "search3", "getPlaylist", "getPlaylists", "getAlbumList", "getAlbumList2", "getRandomSongs", "getStarred", "getStarred2", "getSongsByGenre", "getVideos"));
+	private static final String JSON_MIN_SERVER_VERSION = "1.8";
+
+	// Media is already compressed, and byte ranges of a stream must refer to the unencoded file
+	private static final Collection<String> UNCOMPRESSED_METHODS = new HashSet<String>(Arrays.asList("stream", "download", "getCoverArt", "getAvatar"));
+
+	private final HttpTransport apacheTransport;
+	private HttpTransport urlConnectionTransport;
 	private long redirectionLastChecked;
 	private int redirectionNetworkType = -1;
 	private String redirectFrom;
 	private String redirectTo;
-	private final ThreadSafeClientConnManager connManager;
+	private final RequestStatistics requestStatistics = new RequestStatistics();
+	private final RetryPolicy retryPolicy = new RetryPolicy(5, 500L, 4000L);
+	private final Map<String, CircuitBreaker> circuitBreakers = new HashMap<String, CircuitBreaker>();
 
 	public RESTMusicService()
 	{
+		apacheTransport = new ApacheHttpTransport(MAX_CONNECTIONS, MAX_CONNECTIONS_PER_ROUTE, KEEP_ALIVE_MILLIS, SOCKET_CONNECT_TIMEOUT, SOCKET_READ_TIMEOUT_DEFAULT);
+	}
 
-		// Create and initialize default HTTP parameters
-		HttpParams params = new BasicHttpParams();
-		ConnManagerParams.setMaxTotalConnections(params, 20);
-		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(20));
-		HttpConnectionParams.setConnectionTimeout(params, SOCKET_CONNECT_TIMEOUT);
-		HttpConnectionParams.setSoTimeout(params, SOCKET_READ_TIMEOUT_DEFAULT);
+	private HttpTransport getTransport(Context context)
+	{
+		if (!Util.getShouldUseSystemHttpClient(context))
+		{
+			return apacheTransport;
+		}
 
-		// Turn off stale checking.  Our connections break all the time anyway,
-		// and it's not worth it to pay the penalty of checking every time.
-		HttpConnectionParams.setStaleCheckingEnabled(params, false);
+		// Created when first selected, as it configures the platform client of the whole process
+		synchronized (this)
+		{
+			if (urlConnectionTransport == null)
+			{
+				urlConnectionTransport = new UrlConnectionHttpTransport(MAX_CONNECTIONS_PER_ROUTE, SOCKET_CONNECT_TIMEOUT, SOCKET_READ_TIMEOUT_DEFAULT);
+			}
 
-		// Create and initialize scheme registry
-		SchemeRegistry schemeRegistry = new SchemeRegistry();
-		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-		schemeRegistry.register(new Scheme("https", createSSLSocketFactory(), 443));
+			return urlConnectionTransport;
+		}
+	}
 
-		// Create an HttpClient with the ThreadSafeClientConnManager.
-		// This connection manager must be used if more than one thread will
-		// be using the HttpClient.
-		connManager = new ThreadSafeClientConnManager(params, schemeRegistry);
-		httpClient = new DefaultHttpClient(connManager, params);
+	/**
+	 * Returns the connection usage figures of the HTTP client currently in use.
+	 */
+	public ConnectionPoolStatistics getConnectionPoolStatistics(Context context)
+	{
+		return getTransport(context).getStatistics();
 	}
 
-	private static SocketFactory createSSLSocketFactory()
+	/**
+	 * Returns the latency, failure and response size figures collected for the REST requests made so far.
+	 */
+	public RequestStatistics getRequestStatistics()
 	{
-		try
-		{
-			return new SSLSocketFactory(new TrustSelfSignedStrategy(), SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
-		}
-		catch (Throwable x)
+		return requestStatistics;
+	}
+
+	@Override
+	public String getStatistics(Context context)
+	{
+		return String.format("%s\nConnectionPoolStatistics\n  %s", getRequestStatistics(), getConnectionPoolStatistics(context));
+	}
+
+	private CircuitBreaker getCircuitBreaker(String url)
+	{
+		int end = url.indexOf("/rest/");
+		String server = end == -1 ? url : url.substring(0, end);
+
+		synchronized (circuitBreakers)
 		{
-			Log.e(TAG, "Failed to create custom SSL socket factory, using default.", x);
-			return org.apache.http.conn.ssl.SSLSocketFactory.getSocketFactory();
+			CircuitBreaker circuitBreaker = circuitBreakers.get(server);
+
+			if (circuitBreaker == null)
+			{
+				circuitBreaker = new CircuitBreaker(server, 3, 15000L, 300000L);
+				circuitBreakers.put(server, circuitBreaker);
+			}
+
+			return circuitBreaker;
 		}
 	}
 
@@ -277,13 +307,13 @@ public class RESTMusicService implements MusicService
 	private static Indexes readCachedIndexes(Context context, String musicFolderId)
 	{
 		String filename = getCachedIndexesFilename(context, musicFolderId);
-		return FileUtil.deserialize(context, filename);
+		return FileUtil.deserialize(context, filename, Codecs.INDEXES);
 	}
 
 	private static void writeCachedIndexes(Context context, Indexes indexes, String musicFolderId)
 	{
 		String filename = getCachedIndexesFilename(context, musicFolderId);
-		FileUtil.serialize(context, indexes, filename);
+		FileUtil.serialize(context, indexes, filename, Codecs.INDEXES);
 	}
 
 	private static String getCachedIndexesFilename(Context context, String musicFolderId)
@@ -324,13 +354,13 @@ public class RESTMusicService implements MusicService
 	private static Indexes readCachedArtists(Context context)
 	{
 		String filename = getCachedArtistsFilename(context);
-		return FileUtil.deserialize(context, filename);
+		return FileUtil.deserialize(context, filename, Codecs.INDEXES);
 	}
 
 	private static void writeCachedArtists(Context context, Indexes artists)
 	{
 		String filename = getCachedArtistsFilename(context);
-		FileUtil.serialize(context, artists, filename);
+		FileUtil.serialize(context, artists, filename, Codecs.INDEXES);
 	}
 
 	private static String getCachedArtistsFilename(Context context)
@@ -342,13 +372,13 @@ public class RESTMusicService implements MusicService
 	private static ArrayList<MusicFolder> readCachedMusicFolders(Context context)
 	{
 		String filename = getCachedMusicFoldersFilename(context);
-		return FileUtil.deserialize(context, filename);
+		return FileUtil.deserialize(context, filename, Codecs.MUSIC_FOLDERS);
 	}
 
 	private static void writeCachedMusicFolders(Context context, List<MusicFolder> musicFolders)
 	{
 		String filename = getCachedMusicFoldersFilename(context);
-		FileUtil.serialize(context, new ArrayList<MusicFolder>(musicFolders), filename);
+		FileUtil.serialize(context, new ArrayList<MusicFolder>(musicFolders), filename, Codecs.MUSIC_FOLDERS);
 	}
 
 	private static String getCachedMusicFoldersFilename(Context context)
@@ -872,6 +902,16 @@ public class RESTMusicService implements MusicService
 		}
 	}
 
+	/**
+	 * Returns whether JSON responses can be requested, which needs a server version that is known
+	 * from an earlier (XML) response. The parsers accept XML anyway, should the server not comply.
+	 */
+	private static boolean isJsonSupported(Context context)
+	{
+		Version serverVersion = Util.getServerRestVersion(context);
+		return serverVersion != null && serverVersion.compareTo(new Version(JSON_MIN_SERVER_VERSION)) >= 0;
+	}
+
 	private static boolean checkServerVersion(Context context, String version)
 	{
 		Version serverVersion = Util.getServerRestVersion(context);
@@ -892,7 +932,7 @@ public class RESTMusicService implements MusicService
 		synchronized (entry)
 		{
 			// Use cached file, if existing.
-			Bitmap bitmap = FileUtil.getAlbumArtBitmap(context, entry, size, highQuality);
+			Bitmap bitmap = FileUtil.getAlbumArtBitmap(context, entry, size, highQuality, false);
 			boolean serverScaling = Util.isServerScalingEnabled(context);
 
 			if (bitmap == null)
@@ -961,7 +1001,12 @@ public class RESTMusicService implements MusicService
 	@Override
 	public HttpResponse getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, int maxBitrate, CancellableTask task) throws Exception
 	{
+		return getDownloadInputStream(context, song, offset, 0L, maxBitrate, task);
+	}
 
+	@Override
+	public HttpResponse getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, long length, int maxBitrate, CancellableTask task) throws Exception
+	{
 		String url = Util.getRestUrl(context, "stream");
 
 		// Set socket read timeout. Note: The timeout increases as the offset gets larger. This is
@@ -971,10 +1016,14 @@ public class RESTMusicService implements MusicService
 		int timeout = (int) (SOCKET_READ_TIMEOUT_DOWNLOAD + offset * TIMEOUT_MILLIS_PER_OFFSET_BYTE);
 		HttpConnectionParams.setSoTimeout(params, timeout);
 
-		// Add "Range" header if offset is given.
+		// Add "Range" header if offset or length is given.
 		Collection<Header> headers = new ArrayList<Header>();
 
-		if (offset > 0)
+		if (length > 0)
+		{
+			headers.add(new BasicHeader("Range", String.format("bytes=%d-%d", offset, offset + length - 1)));
+		}
+		else if (offset > 0)
 		{
 			headers.add(new BasicHeader("Range", String.format("bytes=%d-", offset)));
 		}
@@ -1134,6 +1183,12 @@ public class RESTMusicService implements MusicService
 		}
 
 		String url = Util.getRestUrl(context, method);
+
+		if (JSON_METHODS.contains(method) && isJsonSupported(context))
+		{
+			url += "&f=json";
+		}
+
 		return getReaderForURL(context, url, requestParams, parameterNames, parameterValues, progressListener);
 	}
 
@@ -1145,7 +1200,7 @@ public class RESTMusicService implements MusicService
 			throw new RuntimeException(String.format("No entity received for URL %s", url));
 		}
 
-		InputStream in = entity.getContent();
+		InputStream in = requestStatistics.wrapBody(RequestStatistics.getMethod(url), entity);
 		return new InputStreamReader(in, Constants.UTF_8);
 	}
 
@@ -1156,7 +1211,7 @@ public class RESTMusicService implements MusicService
 
 	private HttpResponse getResponseForURL(Context context, String url, HttpParams requestParams, List<String> parameterNames, List<Object> parameterValues, Iterable<Header> headers, ProgressListener progressListener, CancellableTask task) throws Exception
 	{
-		Log.d(TAG, String.format("Connections in pool: %d", connManager.getConnectionsInPool()));
+		Log.d(TAG, String.format("Connection pool: %s", getConnectionPoolStatistics(context)));
 
 		// If not too many parameters, extract them to the URL rather than
 		// relying on the HTTP POST request being
@@ -1193,15 +1248,38 @@ public class RESTMusicService implements MusicService
 		Log.i(TAG, String.format("Using URL %s", url));
 
 		int networkTimeout = Util.getNetworkTimeout(context);
-		HttpParams newParams = httpClient.getParams();
-		HttpConnectionParams.setSoTimeout(newParams, networkTimeout);
-		httpClient.setParams(newParams);
+		HttpTransport transport = getTransport(context);
 		final AtomicReference<Boolean> cancelled = new AtomicReference<Boolean>(false);
 		int attempts = 0;
+		String method = RequestStatistics.getMethod(url);
+		boolean compress = !UNCOMPRESSED_METHODS.contains(method);
+		CircuitBreaker circuitBreaker = getCircuitBreaker(url);
+		long start = System.currentTimeMillis();
 
 		while (true)
 		{
 			attempts++;
+			boolean probe;
+
+			try
+			{
+				probe = circuitBreaker.checkRequest();
+			}
+			catch (CircuitBreaker.OpenException x)
+			{
+				if (attempts == 1)
+				{
+					requestStatistics.recordRejection(method);
+				}
+				else
+				{
+					// The circuit opened while retrying this request
+					requestStatistics.recordFailure(method, attempts - 1);
+				}
+
+				throw x;
+			}
+
 			HttpContext httpContext = new BasicHttpContext();
 			final HttpPost request = new HttpPost(url);
 
@@ -1245,11 +1323,18 @@ public class RESTMusicService implements MusicService
 				request.setEntity(new UrlEncodedFormEntity(params, Constants.UTF_8));
 			}
 
+			// The timeout is set on each request, as the parameters of the client are shared between threads
 			if (requestParams != null)
 			{
 				request.setParams(requestParams);
 				Log.d(TAG, String.format("Socket read timeout: %d ms.", HttpConnectionParams.getSoTimeout(requestParams)));
 			}
+			else
+			{
+				HttpParams params = new BasicHttpParams();
+				HttpConnectionParams.setSoTimeout(params, networkTimeout);
+				request.setParams(params);
+			}
 
 			if (headers != null)
 			{
@@ -1259,16 +1344,37 @@ public class RESTMusicService implements MusicService
 				}
 			}
 
+			if (compress)
+			{
+				request.addHeader("Accept-Encoding", "gzip, deflate");
+			}
+
 			// Set credentials to get through apache proxies that require authentication.
 			SharedPreferences preferences = Util.getPreferences(context);
 			int instance = preferences.getInt(Constants.PREFERENCES_KEY_SERVER_INSTANCE, 1);
 			String username = preferences.getString(Constants.PREFERENCES_KEY_USERNAME + instance, null);
 			String password = preferences.getString(Constants.PREFERENCES_KEY_PASSWORD + instance, null);
-			httpClient.getCredentialsProvider().setCredentials(new AuthScope(AuthScope.ANY_HOST, AuthScope.ANY_PORT), new UsernamePasswordCredentials(username, password));
+			transport.setCredentials(username, password);
 
 			try
 			{
-				HttpResponse response = httpClient.execute(request, httpContext);
+				HttpResponse response = transport.execute(request, httpContext);
+				int statusCode = response.getStatusLine().getStatusCode();
+
+				// A server or proxy that answers 5xx is as unavailable as one that does not answer
+				if (statusCode >= 500)
+				{
+					throw new RetryPolicy.ServerErrorException(statusCode, response.getStatusLine().getReasonPhrase());
+				}
+
+				circuitBreaker.recordSuccess();
+
+				if (compress)
+				{
+					response.setEntity(DecompressingEntity.wrap(response.getEntity()));
+				}
+
+				requestStatistics.recordResponse(method, System.currentTimeMillis() - start, attempts);
 				detectRedirect(originalUrl, context, httpContext);
 				return response;
 			}
@@ -1276,20 +1382,45 @@ public class RESTMusicService implements MusicService
 			{
 				request.abort();
 
-				if (attempts >= HTTP_REQUEST_MAX_ATTEMPTS || cancelled.get())
+				if (cancelled.get())
 				{
+					requestStatistics.recordFailure(method, attempts);
+					throw x;
+				}
+
+				// The breaker counts requests, not attempts, so it only hears about a request once
+				// its retries are used up. A failed probe is not retried, so that it reopens the circuit.
+				if (probe || !retryPolicy.shouldRetry(method, x, attempts))
+				{
+					circuitBreaker.recordFailure(probe);
+					requestStatistics.recordFailure(method, attempts);
+					throw x;
+				}
+
+				// Other requests opened the circuit meanwhile, the retry would only be rejected after the delay
+				if (circuitBreaker.isOpen())
+				{
+					requestStatistics.recordFailure(method, attempts);
 					throw x;
 				}
 
 				if (progressListener != null)
 				{
-					String msg = context.getResources().getString(R.string.music_service_retry, attempts, HTTP_REQUEST_MAX_ATTEMPTS - 1);
+					String msg = context.getResources().getString(R.string.music_service_retry, attempts, retryPolicy.getMaxAttempts() - 1);
 					progressListener.updateProgress(msg);
 				}
 
-				Log.w(TAG, String.format("Got IOException (%d), will retry", attempts), x);
+				long delay = retryPolicy.getDelay(attempts);
+				Log.w(TAG, String.format("Got IOException (%d), will retry in %d ms", attempts, delay), x);
 				increaseTimeouts(requestParams);
-				Util.sleepQuietly(2000L);
+				Util.sleepQuietly(delay);
+				requestStatistics.recordRetryDelay(method, delay);
+
+				if (cancelled.get())
+				{
+					requestStatistics.recordFailure(method, attempts);
+					throw x;
+				}
 			}
 		}
 	}
@@ -0,0 +1,195 @@
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.util.Log;
+
+import com.thejoshwa.ultrasonic.androidapp.util.Util;
+
+import org.apache.http.HttpEntity;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects timing and volume figures for the REST requests made by {@link RESTMusicService},
+ * grouped by REST method, so that client performance can be compared between versions.
+ */
+public class RequestStatistics
+{
+	private static final String TAG = RequestStatistics.class.getSimpleName();
+
+	private final Map<String, MethodStatistics> methods = new TreeMap<String, MethodStatistics>();
+
+	/**
+	 * Returns the REST method name of a request URL, such as <code>getIndexes</code>.
+	 */
+	public static String getMethod(String url)
+	{
+		int start = url.indexOf("rest/");
+		int end = url.indexOf(".view", start);
+
+		if (start == -1 || end == -1)
+		{
+			return url;
+		}
+
+		return url.substring(start + "rest/".length(), end);
+	}
+
+	public synchronized void recordResponse(String method, long latencyMillis, int attempts)
+	{
+		MethodStatistics statistics = get(method);
+		statistics.requestCount++;
+		statistics.retryCount += attempts - 1;
+		statistics.latencyMillis += latencyMillis;
+	}
+
+	public synchronized void recordFailure(String method, int attempts)
+	{
+		MethodStatistics statistics = get(method);
+		statistics.failureCount++;
+		statistics.retryCount += attempts - 1;
+	}
+
+	public synchronized void recordRetryDelay(String method, long delayMillis)
+	{
+		get(method).retryDelayMillis += delayMillis;
+	}
+
+	/**
+	 * Records a request that was not sent because the circuit breaker of its server was open.
+	 */
+	public synchronized void recordRejection(String method)
+	{
+		get(method).rejectionCount++;
+	}
+
+	/**
+	 * Records a consumed response body, where <code>transferredBytes</code> is the number of
+	 * bytes received, which is smaller than <code>bytes</code> if the body was compressed.
+	 */
+	public synchronized void recordBody(String method, long bytes, long transferredBytes, long readMillis)
+	{
+		MethodStatistics statistics = get(method);
+		statistics.bodyCount++;
+		statistics.bodyBytes += bytes;
+		statistics.transferredBytes += transferredBytes;
+		statistics.bodyMillis += readMillis;
+		Log.d(TAG, String.format("Read %s (%s transferred) of %s response in %d ms", Util.formatBytes(bytes), Util.formatBytes(transferredBytes), method, readMillis));
+	}
+
+	/**
+	 * Wraps the content of a response body, recording how many bytes were read from it, how many
+	 * were transferred and how long it took to consume (read and parse) it, once it is closed.
+	 */
+	public InputStream wrapBody(final String method, HttpEntity entity) throws IOException
+	{
+		final long start = System.currentTimeMillis();
+		final DecompressingEntity compressed = entity instanceof DecompressingEntity ? (DecompressingEntity) entity : null;
+
+		return new FilterInputStream(entity.getContent())
+		{
+			private long count;
+			private boolean closed;
+
+			@Override
+			public int read() throws IOException
+			{
+				int b = super.read();
+
+				if (b != -1)
+				{
+					count++;
+				}
+
+				return b;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException
+			{
+				int n = super.read(buffer, offset, length);
+
+				if (n > 0)
+				{
+					count += n;
+				}
+
+				return n;
+			}
+
+			@Override
+			public long skip(long n) throws IOException
+			{
+				long skipped = super.skip(n);
+				count += skipped;
+				return skipped;
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				if (!closed)
+				{
+					closed = true;
+					recordBody(method, count, compressed == null ? count : compressed.getCompressedLength(), System.currentTimeMillis() - start);
+				}
+
+				super.close();
+			}
+		};
+	}
+
+	public synchronized void reset()
+	{
+		methods.clear();
+	}
+
+	private MethodStatistics get(String method)
+	{
+		MethodStatistics statistics = methods.get(method);
+
+		if (statistics == null)
+		{
+			statistics = new MethodStatistics();
+			methods.put(method, statistics);
+		}
+
+		return statistics;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder builder = new StringBuilder("RequestStatistics");
+
+		for (Map.Entry<String, MethodStatistics> entry : methods.entrySet())
+		{
+			builder.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+		}
+
+		return builder.toString();
+	}
+
+	private static class MethodStatistics
+	{
+		private long requestCount;
+		private long failureCount;
+		private long retryCount;
+		private long retryDelayMillis;
+		private long rejectionCount;
+		private long latencyMillis;
+		private long bodyCount;
+		private long bodyBytes;
+		private long transferredBytes;
+		private long bodyMillis;
+
+		@Override
+		public String toString()
+		{
+			return String.format("requests=%d, failures=%d, retries=%d (%d ms), rejections=%d, avgLatency=%d ms, avgBody=%s in %d ms, transferred=%s of %s", requestCount, failureCount, retryCount, retryDelayMillis, rejectionCount, requestCount == 0 ? 0 : latencyMillis / requestCount, Util.formatBytes(bodyCount == 0 ? 0 : bodyBytes / bodyCount), bodyCount == 0 ? 0 : bodyMillis / bodyCount, Util.formatBytes(transferredBytes), Util.formatBytes(bodyBytes));
+		}
+	}
+}
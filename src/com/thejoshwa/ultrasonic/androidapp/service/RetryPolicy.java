@@ -0,0 +1,94 @@
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Decides whether a failed REST request is retried, and how long to wait before the next attempt.
+ * <p/>
+ * The delay grows exponentially with the number of attempts, with random jitter so that
+ * concurrent requests do not retry in lockstep. Requests that change state on the server are
+ * only retried if they failed before they could have been received.
+ */
+public class RetryPolicy
+{
+	// Requests that must not be repeated once the server may have processed them
+	private static final Collection<String> NON_IDEMPOTENT_METHODS = new HashSet<String>(Arrays.asList("scrobble", "createPlaylist", "createShare", "addChatMessage", "jukeboxControl", "createBookmark"));
+
+	private final int maxAttempts;
+	private final long initialDelayMillis;
+	private final long maxDelayMillis;
+	private final Random random = new Random();
+
+	public RetryPolicy(int maxAttempts, long initialDelayMillis, long maxDelayMillis)
+	{
+		this.maxAttempts = maxAttempts;
+		this.initialDelayMillis = initialDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	public int getMaxAttempts()
+	{
+		return maxAttempts;
+	}
+
+	public boolean shouldRetry(String method, IOException x, int attempts)
+	{
+		if (attempts >= maxAttempts || x instanceof CircuitBreaker.OpenException)
+		{
+			return false;
+		}
+
+		return !NON_IDEMPOTENT_METHODS.contains(method) || isNotSent(x);
+	}
+
+	/**
+	 * Returns the time to wait after the given number of failed attempts: half of the
+	 * exponentially growing delay, plus a random part of up to the other half.
+	 */
+	public long getDelay(int attempts)
+	{
+		long delay = initialDelayMillis << Math.min(attempts - 1, 16);
+		delay = Math.min(delay, maxDelayMillis);
+
+		return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+	}
+
+	private static boolean isNotSent(IOException x)
+	{
+		if (x instanceof ServerErrorException)
+		{
+			// A proxy answers 503 when the server is down, and the server when it is too busy to take the request
+			return ((ServerErrorException) x).getStatusCode() == 503;
+		}
+
+		return x instanceof ConnectException || x instanceof ConnectTimeoutException || x instanceof UnknownHostException;
+	}
+
+	/**
+	 * Thrown for a response with a 5xx status, so that it counts as a failed attempt.
+	 */
+	public static class ServerErrorException extends IOException
+	{
+		private static final long serialVersionUID = -6409861423390538371L;
+		private final int statusCode;
+
+		public ServerErrorException(int statusCode, String reason)
+		{
+			super(String.format("Server error %d %s", statusCode, reason));
+			this.statusCode = statusCode;
+		}
+
+		public int getStatusCode()
+		{
+			return statusCode;
+		}
+	}
+}
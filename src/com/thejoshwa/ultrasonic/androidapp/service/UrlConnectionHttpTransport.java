@@ -0,0 +1,332 @@
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.util.Base64;
+import android.util.Log;
+
+import com.thejoshwa.ultrasonic.androidapp.service.ssl.SSLSocketFactory;
+import com.thejoshwa.ultrasonic.androidapp.service.ssl.TrustSelfSignedStrategy;
+import com.thejoshwa.ultrasonic.androidapp.util.Constants;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * {@link HttpTransport} backed by the platform {@link HttpURLConnection}, which keeps a shared
+ * pool of keep-alive connections and negotiates newer protocols where the platform supports them.
+ * <p/>
+ * The pool is configured through the <code>http.keepAlive</code> and <code>http.maxConnections</code>
+ * system properties, so it is shared with any other user of the platform client in this process.
+ */
+public class UrlConnectionHttpTransport implements HttpTransport
+{
+	private static final String TAG = UrlConnectionHttpTransport.class.getSimpleName();
+
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final javax.net.ssl.SSLSocketFactory sslSocketFactory;
+	private final ConnectionPoolStatistics statistics = new ConnectionPoolStatistics(false);
+	private volatile String authorization;
+
+	public UrlConnectionHttpTransport(int maxConnectionsPerRoute, int connectTimeout, int readTimeout)
+	{
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", String.valueOf(maxConnectionsPerRoute));
+
+		javax.net.ssl.SSLSocketFactory factory = null;
+
+		try
+		{
+			factory = SSLSocketFactory.createSSLContext(new TrustSelfSignedStrategy()).getSocketFactory();
+		}
+		catch (Throwable x)
+		{
+			Log.e(TAG, "Failed to create custom SSL socket factory, using default.", x);
+		}
+
+		sslSocketFactory = factory;
+	}
+
+	@Override
+	public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException
+	{
+		Lease lease = connect(request, null);
+
+		// Like the Apache client, only send credentials when the server asks for them
+		String credentials = authorization;
+
+		if (lease.connection.getResponseCode() == HttpStatus.SC_UNAUTHORIZED && credentials != null && isRepeatable(request))
+		{
+			lease.disconnect();
+			lease = connect(request, credentials);
+		}
+
+		URL url = lease.connection.getURL();
+		context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, new HttpHost(url.getHost(), url.getPort(), url.getProtocol()));
+		context.setAttribute(ExecutionContext.HTTP_REQUEST, new HttpGet(url.toString()));
+
+		return createResponse(lease);
+	}
+
+	/**
+	 * Sends the request and waits for the status line. The platform client does not tell when a
+	 * pooled connection is handed out, so only the lease itself is counted, not the time waited for it.
+	 */
+	private Lease connect(HttpUriRequest request, String credentials) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection) request.getURI().toURL().openConnection();
+		final Lease lease = new Lease(connection);
+
+		if (connection instanceof HttpsURLConnection && sslSocketFactory != null)
+		{
+			((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+			((HttpsURLConnection) connection).setHostnameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+		}
+
+		int requestConnectTimeout = HttpConnectionParams.getConnectionTimeout(request.getParams());
+		int requestReadTimeout = HttpConnectionParams.getSoTimeout(request.getParams());
+		connection.setConnectTimeout(requestConnectTimeout > 0 ? requestConnectTimeout : connectTimeout);
+		connection.setReadTimeout(requestReadTimeout > 0 ? requestReadTimeout : readTimeout);
+		connection.setRequestMethod(request.getMethod());
+
+		for (Header header : request.getAllHeaders())
+		{
+			connection.addRequestProperty(header.getName(), header.getValue());
+		}
+
+		if (credentials != null)
+		{
+			connection.setRequestProperty("Authorization", credentials);
+		}
+
+		if (request instanceof AbortableHttpRequest)
+		{
+			// Aborting the request closes the connection, also while the response is being read
+			((AbortableHttpRequest) request).setReleaseTrigger(new ConnectionReleaseTrigger()
+			{
+				@Override
+				public void releaseConnection()
+				{
+					lease.disconnect();
+				}
+
+				@Override
+				public void abortConnection()
+				{
+					lease.disconnect();
+				}
+			});
+		}
+
+		HttpEntity entity = request instanceof HttpEntityEnclosingRequest ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+		boolean connected = false;
+
+		try
+		{
+			if (entity != null)
+			{
+				connection.setDoOutput(true);
+
+				if (entity.getContentType() != null)
+				{
+					connection.setRequestProperty("Content-Type", entity.getContentType().getValue());
+				}
+
+				if (entity.getContentLength() >= 0)
+				{
+					connection.setFixedLengthStreamingMode((int) entity.getContentLength());
+				}
+
+				OutputStream out = connection.getOutputStream();
+
+				try
+				{
+					entity.writeTo(out);
+				}
+				finally
+				{
+					out.close();
+				}
+			}
+
+			connection.getResponseCode();
+			connected = true;
+			lease.acquire();
+			return lease;
+		}
+		finally
+		{
+			if (!connected)
+			{
+				connection.disconnect();
+			}
+		}
+	}
+
+	private static boolean isRepeatable(HttpUriRequest request)
+	{
+		HttpEntity entity = request instanceof HttpEntityEnclosingRequest ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+		return entity == null || entity.isRepeatable();
+	}
+
+	private HttpResponse createResponse(final Lease lease) throws IOException
+	{
+		HttpURLConnection connection = lease.connection;
+		int statusCode = connection.getResponseCode();
+		BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, statusCode, connection.getResponseMessage()));
+
+		for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet())
+		{
+			// The status line is returned with a null name
+			if (header.getKey() == null)
+			{
+				continue;
+			}
+
+			for (String value : header.getValue())
+			{
+				response.addHeader(header.getKey(), value);
+			}
+		}
+
+		InputStream in;
+
+		try
+		{
+			in = statusCode >= HttpStatus.SC_BAD_REQUEST ? connection.getErrorStream() : connection.getInputStream();
+		}
+		catch (IOException x)
+		{
+			lease.disconnect();
+			throw x;
+		}
+
+		if (in == null)
+		{
+			in = new ByteArrayInputStream(new byte[0]);
+		}
+
+		BasicHttpEntity entity = new BasicHttpEntity();
+		entity.setContent(new FilterInputStream(in)
+		{
+			@Override
+			public void close() throws IOException
+			{
+				lease.release();
+				super.close();
+			}
+		});
+
+		Header contentLength = response.getFirstHeader("Content-Length");
+		entity.setContentLength(contentLength == null ? -1 : parseLong(contentLength.getValue()));
+		entity.setContentType(response.getFirstHeader("Content-Type"));
+		entity.setContentEncoding(response.getFirstHeader("Content-Encoding"));
+		response.setEntity(entity);
+		return response;
+	}
+
+	private static long parseLong(String value)
+	{
+		try
+		{
+			return Long.parseLong(value.trim());
+		}
+		catch (NumberFormatException x)
+		{
+			return -1;
+		}
+	}
+
+	@Override
+	public void setCredentials(String username, String password)
+	{
+		if (username == null)
+		{
+			authorization = null;
+			return;
+		}
+
+		try
+		{
+			String credentials = String.format("%s:%s", username, password == null ? "" : password);
+			authorization = "Basic " + Base64.encodeToString(credentials.getBytes(Constants.UTF_8), Base64.NO_WRAP);
+		}
+		catch (IOException x)
+		{
+			authorization = null;
+		}
+	}
+
+	@Override
+	public ConnectionPoolStatistics getStatistics()
+	{
+		return statistics;
+	}
+
+	/**
+	 * A connection that is counted as leased from the moment its response arrives until its
+	 * response body is closed or the request is aborted, whichever comes first.
+	 */
+	private class Lease
+	{
+		private final HttpURLConnection connection;
+		private final AtomicBoolean leased = new AtomicBoolean();
+
+		Lease(HttpURLConnection connection)
+		{
+			this.connection = connection;
+		}
+
+		void acquire()
+		{
+			if (leased.compareAndSet(false, true))
+			{
+				statistics.leased();
+			}
+		}
+
+		void release()
+		{
+			if (leased.compareAndSet(true, false))
+			{
+				statistics.released();
+			}
+		}
+
+		void disconnect()
+		{
+			connection.disconnect();
+			release();
+		}
+	}
+}
@@ -28,6 +28,7 @@ import com.thejoshwa.ultrasonic.androidapp.util.Util;
 
 import org.xmlpull.v1.XmlPullParser;
 
+import java.io.BufferedReader;
 import java.io.Reader;
 
 /**
@@ -38,6 +39,7 @@ public abstract class AbstractParser
 
 	private final Context context;
 	private XmlPullParser parser;
+	private JsonPullParser jsonParser;
 	private boolean rootElementFound;
 
 	public AbstractParser(Context context)
@@ -93,12 +95,21 @@ public abstract class AbstractParser
 
 	protected String getText()
 	{
-		return parser.getText();
+		return jsonParser != null ? jsonParser.getText() : parser.getText();
 	}
 
 	protected String get(String name)
 	{
-		return parser.getAttributeValue(null, name);
+		return jsonParser != null ? jsonParser.getAttributeValue(name) : parser.getAttributeValue(null, name);
+	}
+
+	/**
+	 * Returns whether the attributes of an element can also be read at its end tag. JSON members
+	 * that follow the children of an element are only known there.
+	 */
+	protected boolean hasEndTagAttributes()
+	{
+		return jsonParser != null;
 	}
 
 	protected boolean getBoolean(String name)
@@ -132,19 +143,56 @@ public abstract class AbstractParser
 
 	protected void init(Reader reader) throws Exception
 	{
-		parser = Xml.newPullParser();
-		parser.setInput(reader);
 		rootElementFound = false;
+		BufferedReader bufferedReader = new BufferedReader(reader);
+
+		// Responses requested in JSON are read as JSON, anything else (such as XML from older servers) as XML
+		if (isJson(bufferedReader))
+		{
+			jsonParser = new JsonPullParser(bufferedReader);
+			parser = null;
+		}
+		else
+		{
+			jsonParser = null;
+			parser = Xml.newPullParser();
+			parser.setInput(bufferedReader);
+		}
+	}
+
+	private static boolean isJson(BufferedReader reader) throws Exception
+	{
+		final int lookahead = 256;
+		reader.mark(lookahead);
+
+		try
+		{
+			for (int i = 0; i < lookahead; i++)
+			{
+				int c = reader.read();
+
+				if (c == -1 || !Character.isWhitespace(c))
+				{
+					return c == '{';
+				}
+			}
+
+			return false;
+		}
+		finally
+		{
+			reader.reset();
+		}
 	}
 
 	protected int nextParseEvent() throws Exception
 	{
-		return parser.next();
+		return jsonParser != null ? jsonParser.next() : parser.next();
 	}
 
 	protected String getElementName()
 	{
-		String name = parser.getName();
+		String name = jsonParser != null ? jsonParser.getName() : parser.getName();
 		if ("subsonic-response".equals(name))
 		{
 			rootElementFound = true;
@@ -24,6 +24,7 @@ import android.util.Log;
 import com.thejoshwa.ultrasonic.androidapp.R;
 import com.thejoshwa.ultrasonic.androidapp.domain.Artist;
 import com.thejoshwa.ultrasonic.androidapp.domain.Indexes;
+import com.thejoshwa.ultrasonic.androidapp.util.IndexesProgressListener;
 import com.thejoshwa.ultrasonic.androidapp.util.ProgressListener;
 
 import org.xmlpull.v1.XmlPullParser;
@@ -60,6 +61,8 @@ public class IndexesParser extends AbstractParser
 		int eventType;
 		String index = "#";
 		boolean changed = false;
+		int publishedArtists = 0;
+		int publishedShortcuts = 0;
 
 		do
 		{
@@ -106,6 +109,33 @@ public class IndexesParser extends AbstractParser
 					handleError();
 				}
 			}
+			else if (eventType == XmlPullParser.END_TAG && ("indexes".equals(getElementName()) || "artists".equals(getElementName())) && hasEndTagAttributes())
+			{
+				// JSON may write these after the indexes
+				if (lastModified == null)
+				{
+					lastModified = getLong("lastModified");
+				}
+
+				if (ignoredArticles == null)
+				{
+					ignoredArticles = get("ignoredArticles");
+				}
+			}
+			else if (eventType == XmlPullParser.END_TAG && "index".equals(getElementName()) && progressListener instanceof IndexesProgressListener)
+			{
+				// Publish the completed index, so that it can be shown while the rest is parsed
+				List<Artist> chunk = new ArrayList<Artist>(shortcuts.size() - publishedShortcuts + artists.size() - publishedArtists);
+				chunk.addAll(shortcuts.subList(publishedShortcuts, shortcuts.size()));
+				chunk.addAll(artists.subList(publishedArtists, artists.size()));
+				publishedShortcuts = shortcuts.size();
+				publishedArtists = artists.size();
+
+				if (!chunk.isEmpty())
+				{
+					((IndexesProgressListener) progressListener).updateArtists(chunk);
+				}
+			}
 		} while (eventType != XmlPullParser.END_DOCUMENT);
 
 		validate();
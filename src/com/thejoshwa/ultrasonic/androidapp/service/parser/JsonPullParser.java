@@ -0,0 +1,234 @@
+package com.thejoshwa.ultrasonic.androidapp.service.parser;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Streams a JSON response (requested with <code>f=json</code>) as the element events of the
+ * equivalent XML response, so that the same parsers read both formats.
+ * <p/>
+ * Every object becomes an element named after its key, with its plain members as attributes,
+ * and every object in an array becomes a repeated element. The start tag of an element carries
+ * the plain members that come before its first child. JSON does not keep members in order, so
+ * members that follow the children, such as the ignored articles of an index, are only known
+ * once the element ends, and are returned as the attributes of its end tag.
+ */
+class JsonPullParser
+{
+	private final JsonReader reader;
+	private final LinkedList<Frame> stack = new LinkedList<Frame>();
+	private Map<String, String> attributes = Collections.emptyMap();
+	private String name;
+	private boolean started;
+
+	public JsonPullParser(Reader reader)
+	{
+		this.reader = new JsonReader(reader);
+	}
+
+	public int next() throws IOException
+	{
+		while (true)
+		{
+			if (stack.isEmpty())
+			{
+				if (started)
+				{
+					return XmlPullParser.END_DOCUMENT;
+				}
+
+				// The document itself is an object without a name
+				started = true;
+				reader.beginObject();
+				stack.push(new Frame(null, false));
+				continue;
+			}
+
+			Frame frame = stack.peek();
+
+			if (frame.array)
+			{
+				if (!reader.hasNext())
+				{
+					reader.endArray();
+					stack.pop();
+				}
+				else if (reader.peek() == JsonToken.BEGIN_OBJECT)
+				{
+					return startElement(frame.name);
+				}
+				else
+				{
+					reader.skipValue();
+				}
+
+				continue;
+			}
+
+			String key = frame.pendingName;
+			frame.pendingName = null;
+
+			if (key == null)
+			{
+				if (!reader.hasNext())
+				{
+					reader.endObject();
+					stack.pop();
+
+					if (frame.name == null)
+					{
+						continue;
+					}
+
+					return setElement(frame, XmlPullParser.END_TAG);
+				}
+
+				key = reader.nextName();
+			}
+
+			JsonToken token = reader.peek();
+
+			if (token == JsonToken.BEGIN_OBJECT)
+			{
+				return startElement(key);
+			}
+
+			if (token == JsonToken.BEGIN_ARRAY)
+			{
+				beginArray(key);
+			}
+			else
+			{
+				readAttribute(frame.attributes, key, token);
+			}
+		}
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public String getAttributeValue(String attributeName)
+	{
+		return attributes.get(attributeName);
+	}
+
+	public String getText()
+	{
+		// Text content of an element is written as its "value" member
+		return attributes.get("value");
+	}
+
+	private int setElement(Frame frame, int event)
+	{
+		name = frame.name;
+		attributes = frame.attributes;
+		return event;
+	}
+
+	private int startElement(String elementName) throws IOException
+	{
+		reader.beginObject();
+		Frame frame = new Frame(elementName, false);
+		stack.push(frame);
+
+		// Plain members are read up to the first child, the rest is streamed by next()
+		while (reader.hasNext())
+		{
+			String member = reader.nextName();
+			JsonToken token = reader.peek();
+
+			if (token == JsonToken.BEGIN_OBJECT)
+			{
+				frame.pendingName = member;
+				return startTag(frame);
+			}
+
+			if (token == JsonToken.BEGIN_ARRAY)
+			{
+				if (beginArray(member))
+				{
+					return startTag(frame);
+				}
+			}
+			else
+			{
+				readAttribute(frame.attributes, member, token);
+			}
+		}
+
+		// Without children all members are known, next() only has to end the object
+		return setElement(frame, XmlPullParser.START_TAG);
+	}
+
+	private int startTag(Frame frame)
+	{
+		// Later members are added to the frame, the start tag only sees those read so far
+		name = frame.name;
+		attributes = new HashMap<String, String>(frame.attributes);
+		return XmlPullParser.START_TAG;
+	}
+
+	/**
+	 * Begins the array in the given member, and returns whether it holds elements. Arrays of plain
+	 * values, such as the allowed users of a playlist, have no XML equivalent here and are skipped.
+	 */
+	private boolean beginArray(String member) throws IOException
+	{
+		reader.beginArray();
+
+		if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT)
+		{
+			stack.push(new Frame(member, true));
+			return true;
+		}
+
+		while (reader.hasNext())
+		{
+			reader.skipValue();
+		}
+
+		reader.endArray();
+		return false;
+	}
+
+	private void readAttribute(Map<String, String> elementAttributes, String member, JsonToken token) throws IOException
+	{
+		if (token == JsonToken.NULL)
+		{
+			reader.nextNull();
+		}
+		else if (token == JsonToken.BOOLEAN)
+		{
+			elementAttributes.put(member, String.valueOf(reader.nextBoolean()));
+		}
+		else
+		{
+			elementAttributes.put(member, reader.nextString());
+		}
+	}
+
+	private static final class Frame
+	{
+		private final String name;
+		private final boolean array;
+		private final Map<String, String> attributes = new HashMap<String, String>();
+		private String pendingName;
+
+		private Frame(String name, boolean array)
+		{
+			this.name = name;
+			this.array = array;
+		}
+	}
+}
@@ -22,49 +22,77 @@ import android.content.Context;
 
 import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory;
 import com.thejoshwa.ultrasonic.androidapp.util.Constants;
+import com.thejoshwa.ultrasonic.androidapp.util.LRUCache;
 
 /**
  * @author Sindre Mehus
  */
 public class MusicDirectoryEntryParser extends AbstractParser
 {
+	private static final int MAX_SHARED_STRINGS = 4096;
+
+	// Attribute values that repeat across entries, such as artist and album names, are shared between all parsed entries
+	private static final LRUCache<String, String> sharedStrings = new LRUCache<String, String>(MAX_SHARED_STRINGS);
 
 	public MusicDirectoryEntryParser(Context context)
 	{
 		super(context);
 	}
 
+	/**
+	 * Returns the value of the attribute, sharing the string instance with earlier entries that had the same value.
+	 */
+	protected String getShared(String name)
+	{
+		String value = get(name);
+
+		if (value == null)
+		{
+			return null;
+		}
+
+		String shared = sharedStrings.get(value);
+
+		if (shared != null)
+		{
+			return shared;
+		}
+
+		sharedStrings.put(value, value);
+		return value;
+	}
+
 	protected MusicDirectory.Entry parseEntry(String artist, boolean isAlbum, int bookmarkPosition)
 	{
 		MusicDirectory.Entry entry = new MusicDirectory.Entry();
 		entry.setId(get("id"));
-		entry.setParent(get("parent"));
+		entry.setParent(getShared("parent"));
 		entry.setTitle(isAlbum ? get("name") : get("title"));
 		entry.setIsDirectory(getBoolean("isDir") || isAlbum);
-		entry.setCoverArt(get("coverArt"));
-		entry.setArtist(get("artist"));
-		entry.setArtistId(get("artistId"));
+		entry.setCoverArt(getShared("coverArt"));
+		entry.setArtist(getShared("artist"));
+		entry.setArtistId(getShared("artistId"));
 		entry.setYear(getInteger("year"));
 		entry.setCreated(get("created"));
 		entry.setStarred(getValueExists(Constants.STARRED));
 
 		if (!entry.isDirectory())
 		{
-			entry.setAlbum(get("album"));
-			entry.setAlbumId(get("albumId"));
+			entry.setAlbum(getShared("album"));
+			entry.setAlbumId(getShared("albumId"));
 			entry.setTrack(getInteger("track"));
-			entry.setGenre(get("genre"));
-			entry.setContentType(get("contentType"));
-			entry.setSuffix(get("suffix"));
-			entry.setTranscodedContentType(get("transcodedContentType"));
-			entry.setTranscodedSuffix(get("transcodedSuffix"));
+			entry.setGenre(getShared("genre"));
+			entry.setContentType(getShared("contentType"));
+			entry.setSuffix(getShared("suffix"));
+			entry.setTranscodedContentType(getShared("transcodedContentType"));
+			entry.setTranscodedSuffix(getShared("transcodedSuffix"));
 			entry.setSize(getLong("size"));
 			entry.setDuration(getInteger("duration"));
 			entry.setBitRate(getInteger("bitRate"));
 			entry.setPath(get("path"));
 			entry.setIsVideo(getBoolean("isVideo"));
 			entry.setDiscNumber(getInteger("discNumber"));
-			entry.setType(get("type"));
+			entry.setType(getShared("type"));
 			entry.setBookmarkPosition(bookmarkPosition);
 		}
 		else if (!"".equals(artist))
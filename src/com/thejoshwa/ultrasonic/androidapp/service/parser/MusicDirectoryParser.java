@@ -75,6 +75,16 @@ public class MusicDirectoryParser extends MusicDirectoryEntryParser
 					handleError();
 				}
 			}
+			else if (eventType == XmlPullParser.END_TAG && dir.getName() == null && hasEndTagAttributes())
+			{
+				String name = getElementName();
+
+				// JSON may write the name after the children
+				if ("directory".equals(name) || "artist".equals(name))
+				{
+					dir.setName(get("name"));
+				}
+			}
 		} while (eventType != XmlPullParser.END_DOCUMENT);
 
 		validate();
@@ -182,6 +182,15 @@ public class SSLSocketFactory implements LayeredSocketFactory
 		return sslcontext;
 	}
 
+	/**
+	 * Creates a TLS context that trusts the certificates accepted by the given strategy,
+	 * in addition to those trusted by default.
+	 */
+	public static SSLContext createSSLContext(final TrustStrategy trustStrategy) throws NoSuchAlgorithmException, KeyStoreException, UnrecoverableKeyException, KeyManagementException
+	{
+		return createSSLContext(TLS, null, null, null, trustStrategy);
+	}
+
 	/**
 	 * @since 4.1
 	 */
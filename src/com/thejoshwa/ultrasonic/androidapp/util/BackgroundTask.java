@@ -61,6 +61,14 @@ public abstract class BackgroundTask<T> implements ProgressListener
 
 	protected abstract void done(T result);
 
+	/**
+	 * Returns true if the result of the task is no longer needed.
+	 */
+	public boolean isCancelled()
+	{
+		return false;
+	}
+
 	protected void error(Throwable error)
 	{
 		Log.w(TAG, String.format("Got exception: %s", error), error);
@@ -0,0 +1,280 @@
+package com.thejoshwa.ultrasonic.androidapp.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary format for the objects that are persisted in the cache directory,
+ * used instead of Java serialization by {@link FileUtil#serialize(android.content.Context, Object, String, BinaryCodec)}.
+ * <p/>
+ * Numbers are written as variable length integers and every distinct string is written once,
+ * later occurrences refer to the string table by index. A file starts with a magic number and
+ * the codec version, files written by another version are not read.
+ */
+public abstract class BinaryCodec<T>
+{
+	private static final int MAGIC = 0x55534243;
+	private static final int STRING_NULL = 0;
+	private static final int STRING_NEW = 1;
+	private static final int STRING_REFERENCE = 2;
+
+	private final int version;
+
+	protected BinaryCodec(int version)
+	{
+		this.version = version;
+	}
+
+	protected abstract void write(Output out, T value) throws IOException;
+
+	protected abstract T read(Input in) throws IOException;
+
+	public void encode(T value, OutputStream out) throws IOException
+	{
+		Output output = new Output();
+		output.writeInt(MAGIC);
+		output.writeVarInt(version);
+		write(output, value);
+		out.write(output.buffer, 0, output.length);
+	}
+
+	public T decode(ByteBuffer buffer) throws IOException
+	{
+		try
+		{
+			Input input = new Input(buffer);
+
+			if (input.readInt() != MAGIC)
+			{
+				throw new IOException("Not a binary codec file");
+			}
+
+			int fileVersion = input.readVarInt();
+
+			if (fileVersion != version)
+			{
+				throw new IOException(String.format("Unsupported version %d, expected %d", fileVersion, version));
+			}
+
+			return read(input);
+		}
+		catch (BufferUnderflowException x)
+		{
+			throw new IOException("Truncated file");
+		}
+	}
+
+	public static class Output
+	{
+		private final Map<String, Integer> strings = new HashMap<String, Integer>();
+		private byte[] buffer = new byte[8192];
+		private int length;
+
+		private void ensureCapacity(int count)
+		{
+			if (length + count > buffer.length)
+			{
+				byte[] newBuffer = new byte[Math.max(buffer.length * 2, length + count)];
+				System.arraycopy(buffer, 0, newBuffer, 0, length);
+				buffer = newBuffer;
+			}
+		}
+
+		private void writeByte(int b)
+		{
+			ensureCapacity(1);
+			buffer[length++] = (byte) b;
+		}
+
+		private void writeInt(int value)
+		{
+			writeByte(value >>> 24);
+			writeByte(value >>> 16);
+			writeByte(value >>> 8);
+			writeByte(value);
+		}
+
+		public void writeVarLong(long value)
+		{
+			// Zigzag encoding keeps small negative numbers short
+			long zigzag = (value << 1) ^ (value >> 63);
+
+			while ((zigzag & ~0x7FL) != 0)
+			{
+				writeByte((int) ((zigzag & 0x7F) | 0x80));
+				zigzag >>>= 7;
+			}
+
+			writeByte((int) zigzag);
+		}
+
+		public void writeVarInt(int value)
+		{
+			writeVarLong(value);
+		}
+
+		public void writeBoolean(boolean value)
+		{
+			writeByte(value ? 1 : 0);
+		}
+
+		public void writeInteger(Integer value)
+		{
+			writeLong(value == null ? null : Long.valueOf(value));
+		}
+
+		public void writeLong(Long value)
+		{
+			if (value == null)
+			{
+				writeBoolean(false);
+			}
+			else
+			{
+				writeBoolean(true);
+				writeVarLong(value);
+			}
+		}
+
+		public void writeString(String value) throws IOException
+		{
+			if (value == null)
+			{
+				writeVarInt(STRING_NULL);
+				return;
+			}
+
+			Integer index = strings.get(value);
+
+			if (index != null)
+			{
+				writeVarInt(STRING_REFERENCE + index);
+				return;
+			}
+
+			strings.put(value, strings.size());
+			byte[] bytes = value.getBytes(Constants.UTF_8);
+			writeVarInt(STRING_NEW);
+			writeVarInt(bytes.length);
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buffer, length, bytes.length);
+			length += bytes.length;
+		}
+	}
+
+	public static class Input
+	{
+		private final List<String> strings = new ArrayList<String>();
+		private final ByteBuffer buffer;
+
+		private Input(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		private int readInt()
+		{
+			return buffer.getInt();
+		}
+
+		public long readVarLong() throws IOException
+		{
+			long zigzag = 0L;
+
+			for (int shift = 0; shift < 64; shift += 7)
+			{
+				byte b = buffer.get();
+				zigzag |= (long) (b & 0x7F) << shift;
+
+				if ((b & 0x80) == 0)
+				{
+					return (zigzag >>> 1) ^ -(zigzag & 1);
+				}
+			}
+
+			throw new IOException("Malformed variable length integer");
+		}
+
+		public int readVarInt() throws IOException
+		{
+			return (int) readVarLong();
+		}
+
+		public boolean readBoolean()
+		{
+			return buffer.get() != 0;
+		}
+
+		public Integer readInteger() throws IOException
+		{
+			return readBoolean() ? readVarInt() : null;
+		}
+
+		public Long readLong() throws IOException
+		{
+			return readBoolean() ? readVarLong() : null;
+		}
+
+		public String readString() throws IOException
+		{
+			int tag = readVarInt();
+
+			if (tag == STRING_NULL)
+			{
+				return null;
+			}
+
+			if (tag >= STRING_REFERENCE)
+			{
+				int index = tag - STRING_REFERENCE;
+
+				if (index >= strings.size())
+				{
+					throw new IOException(String.format("Invalid string reference %d", index));
+				}
+
+				return strings.get(index);
+			}
+
+			if (tag != STRING_NEW)
+			{
+				throw new IOException(String.format("Invalid string tag %d", tag));
+			}
+
+			int byteCount = readVarInt();
+
+			if (byteCount < 0 || byteCount > buffer.remaining())
+			{
+				throw new IOException(String.format("Invalid string length %d", byteCount));
+			}
+
+			byte[] bytes = new byte[byteCount];
+			buffer.get(bytes);
+			String value = new String(bytes, Constants.UTF_8);
+			strings.add(value);
+			return value;
+		}
+
+		/**
+		 * Reads a collection size, which is checked against the remaining bytes so that a
+		 * corrupt file cannot cause a huge allocation.
+		 */
+		public int readSize() throws IOException
+		{
+			int size = readVarInt();
+
+			if (size < 0 || size > buffer.remaining())
+			{
+				throw new IOException(String.format("Invalid size %d", size));
+			}
+
+			return size;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package com.thejoshwa.ultrasonic.androidapp.util;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Holds bitmaps that were evicted from the ImageLoader memory cache so that
+ * BitmapFactory can decode new images into them through {@link BitmapFactory.Options#inBitmap}
+ * instead of allocating a fresh pixel buffer for every cover.
+ */
+public class BitmapPool
+{
+	private final long maxBytes;
+	private final LinkedList<Bitmap> bitmaps = new LinkedList<Bitmap>();
+	private long bytes;
+	private long reuseCount;
+	private long missCount;
+
+	public BitmapPool(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	public synchronized void put(Bitmap bitmap)
+	{
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable())
+		{
+			return;
+		}
+
+		int size = getByteCount(bitmap);
+
+		if (size > maxBytes)
+		{
+			return;
+		}
+
+		bitmaps.addLast(bitmap);
+		bytes += size;
+
+		while (bytes > maxBytes)
+		{
+			bytes -= getByteCount(bitmaps.removeFirst());
+		}
+	}
+
+	/**
+	 * Prepares decode options, whose out fields were filled by a bounds-only decode,
+	 * so that the decoded bitmap is mutable and, if possible, reuses a pooled bitmap.
+	 */
+	public void prepare(BitmapFactory.Options options)
+	{
+		options.inMutable = true;
+		options.inPurgeable = false;
+		options.inBitmap = get(options);
+	}
+
+	public synchronized void clear()
+	{
+		bitmaps.clear();
+		bytes = 0L;
+	}
+
+	public synchronized long getReuseCount()
+	{
+		return reuseCount;
+	}
+
+	public synchronized long getMissCount()
+	{
+		return missCount;
+	}
+
+	private synchronized Bitmap get(BitmapFactory.Options options)
+	{
+		Iterator<Bitmap> iterator = bitmaps.iterator();
+
+		while (iterator.hasNext())
+		{
+			Bitmap candidate = iterator.next();
+
+			if (candidate.isRecycled())
+			{
+				iterator.remove();
+				bytes -= getByteCount(candidate);
+				continue;
+			}
+
+			if (canUseForInBitmap(candidate, options))
+			{
+				iterator.remove();
+				bytes -= getByteCount(candidate);
+				reuseCount++;
+				return candidate;
+			}
+		}
+
+		missCount++;
+		return null;
+	}
+
+	private static boolean canUseForInBitmap(Bitmap candidate, BitmapFactory.Options options)
+	{
+		int sampleSize = Math.max(options.inSampleSize, 1);
+		Bitmap.Config config = options.inPreferredConfig == null ? Bitmap.Config.ARGB_8888 : options.inPreferredConfig;
+
+		if (candidate.getConfig() != config)
+		{
+			return false;
+		}
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+		{
+			int width = (options.outWidth + sampleSize - 1) / sampleSize;
+			int height = (options.outHeight + sampleSize - 1) / sampleSize;
+			return (long) width * height * getBytesPerPixel(config) <= getAllocationByteCount(candidate);
+		}
+
+		// Before KitKat only bitmaps of exactly the same size can be reused, without sub-sampling
+		return sampleSize == 1 && candidate.getWidth() == options.outWidth && candidate.getHeight() == options.outHeight;
+	}
+
+	private static int getBytesPerPixel(Bitmap.Config config)
+	{
+		switch (config)
+		{
+			case ALPHA_8:
+				return 1;
+			case RGB_565:
+			case ARGB_4444:
+				return 2;
+			default:
+				return 4;
+		}
+	}
+
+	@SuppressLint("NewApi")
+	private static int getAllocationByteCount(Bitmap bitmap)
+	{
+		return bitmap.getAllocationByteCount();
+	}
+
+	public static int getByteCount(Bitmap bitmap)
+	{
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+		{
+			return getAllocationByteCount(bitmap);
+		}
+
+		return bitmap.getByteCount();
+	}
+}
@@ -77,8 +77,10 @@ public class CacheCleaner
 		}
 	}
 
-	private static void deleteEmptyDirs(Iterable<File> dirs, Collection<File> doNotDelete)
+	private void deleteEmptyDirs(Iterable<File> dirs, Collection<File> doNotDelete)
 	{
+		MusicDirectoryTracker tracker = MusicDirectoryTracker.getInstance(context);
+
 		for (File dir : dirs)
 		{
 			if (doNotDelete.contains(dir))
@@ -102,11 +104,13 @@ public class CacheCleaner
 				{
 					Util.delete(dir);
 				}
+
+				tracker.update(dir);
 			}
 		}
 	}
 
-	private long getMinimumDelete(List<File> files)
+	private long getMinimumDelete(List<MusicDirectoryTracker.TrackedFile> files)
 	{
 		if (files.isEmpty())
 		{
@@ -116,9 +120,9 @@ public class CacheCleaner
 		long cacheSizeBytes = Util.getCacheSizeMB(context) * 1024L * 1024L;
 		long bytesUsedBySubsonic = 0L;
 
-		for (File file : files)
+		for (MusicDirectoryTracker.TrackedFile file : files)
 		{
-			bytesUsedBySubsonic += file.length();
+			bytesUsedBySubsonic += file.getSize();
 		}
 
 		// Ensure that file system is not more than 95% full.
@@ -140,28 +144,31 @@ public class CacheCleaner
 		return bytesToDelete;
 	}
 
-	private static void deleteFiles(Collection<File> files, Collection<File> doNotDelete, long bytesToDelete, boolean deletePartials)
+	private void deleteFiles(Collection<MusicDirectoryTracker.TrackedFile> files, Collection<File> doNotDelete, long bytesToDelete, boolean deletePartials)
 	{
 		if (files.isEmpty())
 		{
 			return;
 		}
 
+		MusicDirectoryTracker tracker = MusicDirectoryTracker.getInstance(context);
 		long bytesDeleted = 0L;
-		for (File file : files)
+		for (MusicDirectoryTracker.TrackedFile trackedFile : files)
 		{
+			File file = new File(trackedFile.getPath());
+
 			if (!deletePartials && bytesDeleted > bytesToDelete) break;
 
 			if (bytesToDelete > bytesDeleted || (deletePartials && (file.getName().endsWith(".partial") || file.getName().contains(".partial."))))
 			{
 				if (!doNotDelete.contains(file) && !file.getName().equals(Constants.ALBUM_ART_FILE))
 				{
-					long size = file.length();
-
 					if (Util.delete(file))
 					{
-						bytesDeleted += size;
+						bytesDeleted += trackedFile.getSize();
 					}
+
+					tracker.update(file);
 				}
 			}
 		}
@@ -169,11 +176,16 @@ public class CacheCleaner
 		Log.i(TAG, String.format("Deleted           : %s", Util.formatBytes(bytesDeleted)));
 	}
 
-	private static void findCandidatesForDeletion(File file, List<File> files, List<File> dirs)
+	private void findCandidatesForDeletion(List<MusicDirectoryTracker.TrackedFile> files, List<File> dirs)
 	{
-		if (file.isFile())
+		MusicDirectoryTracker tracker = MusicDirectoryTracker.getInstance(context);
+
+		// Downloads that just finished are reported to the tracker in the background
+		tracker.flush();
+
+		for (MusicDirectoryTracker.TrackedFile file : tracker.getFiles())
 		{
-			String name = file.getName();
+			String name = new File(file.getPath()).getName();
 			boolean isCacheFile = name.endsWith(".partial") || name.contains(".partial.") || name.endsWith(".complete") || name.contains(".complete.");
 
 			if (isCacheFile)
@@ -181,31 +193,33 @@ public class CacheCleaner
 				files.add(file);
 			}
 		}
-		else
+
+		dirs.addAll(tracker.getDirectories());
+
+		// Depth-first, subdirectories come before their parents
+		Collections.sort(dirs, new Comparator<File>()
 		{
-			// Depth-first
-			for (File child : FileUtil.listFiles(file))
+			@Override
+			public int compare(File a, File b)
 			{
-				findCandidatesForDeletion(child, files, dirs);
+				return b.getPath().length() - a.getPath().length();
 			}
-
-			dirs.add(file);
-		}
+		});
 	}
 
-	private static void sortByAscendingModificationTime(List<File> files)
+	private static void sortByAscendingModificationTime(List<MusicDirectoryTracker.TrackedFile> files)
 	{
-		Collections.sort(files, new Comparator<File>()
+		Collections.sort(files, new Comparator<MusicDirectoryTracker.TrackedFile>()
 		{
 			@Override
-			public int compare(File a, File b)
+			public int compare(MusicDirectoryTracker.TrackedFile a, MusicDirectoryTracker.TrackedFile b)
 			{
-				if (a.lastModified() < b.lastModified())
+				if (a.getLastModified() < b.getLastModified())
 				{
 					return -1;
 				}
 
-				if (a.lastModified() > b.lastModified())
+				if (a.getLastModified() > b.getLastModified())
 				{
 					return 1;
 				}
@@ -243,10 +257,10 @@ public class CacheCleaner
 			try
 			{
 				Thread.currentThread().setName("BackgroundCleanup");
-				List<File> files = new ArrayList<File>();
+				List<MusicDirectoryTracker.TrackedFile> files = new ArrayList<MusicDirectoryTracker.TrackedFile>();
 				List<File> dirs = new ArrayList<File>();
 
-				findCandidatesForDeletion(FileUtil.getMusicDirectory(context), files, dirs);
+				findCandidatesForDeletion(files, dirs);
 				sortByAscendingModificationTime(files);
 
 				Set<File> filesToNotDelete = findFilesToNotDelete();
@@ -277,9 +291,9 @@ public class CacheCleaner
 			try
 			{
 				Thread.currentThread().setName("BackgroundSpaceCleanup");
-				List<File> files = new ArrayList<File>();
+				List<MusicDirectoryTracker.TrackedFile> files = new ArrayList<MusicDirectoryTracker.TrackedFile>();
 				List<File> dirs = new ArrayList<File>();
-				findCandidatesForDeletion(FileUtil.getMusicDirectory(context), files, dirs);
+				findCandidatesForDeletion(files, dirs);
 
 				long bytesToDelete = getMinimumDelete(files);
 				if (bytesToDelete > 0L)
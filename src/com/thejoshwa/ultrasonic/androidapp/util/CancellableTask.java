@@ -75,12 +75,13 @@ public abstract class CancellableTask
 
 	public void start()
 	{
+		// Running from here on, so that the task is not started twice before its thread runs
+		running.set(true);
 		thread.set(new Thread()
 		{
 			@Override
 			public void run()
 			{
-				running.set(true);
 				Log.i(TAG, String.format("Starting thread for %s", CancellableTask.this));
 				try
 				{
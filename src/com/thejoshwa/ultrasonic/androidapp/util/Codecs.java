@@ -0,0 +1,229 @@
+package com.thejoshwa.ultrasonic.androidapp.util;
+
+import com.thejoshwa.ultrasonic.androidapp.domain.Artist;
+import com.thejoshwa.ultrasonic.androidapp.domain.Indexes;
+import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory;
+import com.thejoshwa.ultrasonic.androidapp.domain.MusicFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * {@link BinaryCodec} instances for the domain objects that are cached on disk.
+ * The version of a codec must be increased whenever its format changes.
+ */
+public final class Codecs
+{
+	private static final int ENTRY_DIRECTORY = 1;
+	private static final int ENTRY_VIDEO = 1 << 1;
+	private static final int ENTRY_STARRED = 1 << 2;
+
+	public static final BinaryCodec<Indexes> INDEXES = new BinaryCodec<Indexes>(1)
+	{
+		@Override
+		protected void write(Output out, Indexes indexes) throws IOException
+		{
+			out.writeVarLong(indexes.getLastModified());
+			out.writeString(indexes.getIgnoredArticles());
+			writeArtists(out, indexes.getShortcuts());
+			writeArtists(out, indexes.getArtists());
+		}
+
+		@Override
+		protected Indexes read(Input in) throws IOException
+		{
+			long lastModified = in.readVarLong();
+			String ignoredArticles = in.readString();
+			List<Artist> shortcuts = readArtists(in);
+			List<Artist> artists = readArtists(in);
+			return new Indexes(lastModified, ignoredArticles, shortcuts, artists);
+		}
+	};
+
+	public static final BinaryCodec<ArrayList<MusicFolder>> MUSIC_FOLDERS = new BinaryCodec<ArrayList<MusicFolder>>(1)
+	{
+		@Override
+		protected void write(Output out, ArrayList<MusicFolder> musicFolders) throws IOException
+		{
+			out.writeVarInt(musicFolders.size());
+
+			for (MusicFolder musicFolder : musicFolders)
+			{
+				out.writeString(musicFolder.getId());
+				out.writeString(musicFolder.getName());
+			}
+		}
+
+		@Override
+		protected ArrayList<MusicFolder> read(Input in) throws IOException
+		{
+			int size = in.readSize();
+			ArrayList<MusicFolder> musicFolders = new ArrayList<MusicFolder>(size);
+
+			for (int i = 0; i < size; i++)
+			{
+				musicFolders.add(new MusicFolder(in.readString(), in.readString()));
+			}
+
+			return musicFolders;
+		}
+	};
+
+	public static final BinaryCodec<MusicDirectory> MUSIC_DIRECTORY = new BinaryCodec<MusicDirectory>(1)
+	{
+		@Override
+		protected void write(Output out, MusicDirectory directory) throws IOException
+		{
+			out.writeString(directory.getName());
+			writeEntries(out, directory.getChildren());
+		}
+
+		@Override
+		protected MusicDirectory read(Input in) throws IOException
+		{
+			MusicDirectory directory = new MusicDirectory();
+			directory.setName(in.readString());
+			directory.addAll(readEntries(in));
+			return directory;
+		}
+	};
+
+	private Codecs()
+	{
+	}
+
+	private static void writeArtists(BinaryCodec.Output out, List<Artist> artists) throws IOException
+	{
+		out.writeVarInt(artists.size());
+
+		for (Artist artist : artists)
+		{
+			out.writeString(artist.getId());
+			out.writeString(artist.getName());
+			out.writeString(artist.getIndex());
+			out.writeString(artist.getCoverArt());
+			out.writeLong(artist.getAlbumCount());
+			out.writeVarInt(artist.getCloseness());
+		}
+	}
+
+	private static List<Artist> readArtists(BinaryCodec.Input in) throws IOException
+	{
+		int size = in.readSize();
+		List<Artist> artists = new ArrayList<Artist>(size);
+
+		for (int i = 0; i < size; i++)
+		{
+			Artist artist = new Artist();
+			artist.setId(in.readString());
+			artist.setName(in.readString());
+			artist.setIndex(in.readString());
+			artist.setCoverArt(in.readString());
+			artist.setAlbumCount(in.readLong());
+			artist.setCloseness(in.readVarInt());
+			artists.add(artist);
+		}
+
+		return artists;
+	}
+
+	public static void writeEntries(BinaryCodec.Output out, List<MusicDirectory.Entry> entries) throws IOException
+	{
+		out.writeVarInt(entries.size());
+
+		for (MusicDirectory.Entry entry : entries)
+		{
+			int flags = 0;
+
+			if (entry.isDirectory())
+			{
+				flags |= ENTRY_DIRECTORY;
+			}
+
+			if (entry.isVideo())
+			{
+				flags |= ENTRY_VIDEO;
+			}
+
+			if (entry.getStarred())
+			{
+				flags |= ENTRY_STARRED;
+			}
+
+			Date created = entry.getCreated();
+
+			out.writeVarInt(flags);
+			out.writeString(entry.getId());
+			out.writeString(entry.getParent());
+			out.writeString(entry.getTitle());
+			out.writeString(entry.getAlbum());
+			out.writeString(entry.getAlbumId());
+			out.writeString(entry.getArtist());
+			out.writeString(entry.getArtistId());
+			out.writeInteger(entry.getTrack());
+			out.writeInteger(entry.getYear());
+			out.writeString(entry.getGenre());
+			out.writeString(entry.getContentType());
+			out.writeString(entry.getSuffix());
+			out.writeString(entry.getTranscodedContentType());
+			out.writeString(entry.getTranscodedSuffix());
+			out.writeString(entry.getCoverArt());
+			out.writeLong(entry.getSize());
+			out.writeLong(entry.getSongCount());
+			out.writeInteger(entry.getDuration());
+			out.writeInteger(entry.getBitRate());
+			out.writeString(entry.getPath());
+			out.writeInteger(entry.getDiscNumber());
+			out.writeString(entry.getType());
+			out.writeLong(created == null ? null : created.getTime());
+			out.writeVarInt(entry.getCloseness());
+			out.writeVarInt(entry.getBookmarkPosition());
+		}
+	}
+
+	public static List<MusicDirectory.Entry> readEntries(BinaryCodec.Input in) throws IOException
+	{
+		int size = in.readSize();
+		List<MusicDirectory.Entry> entries = new ArrayList<MusicDirectory.Entry>(size);
+
+		for (int i = 0; i < size; i++)
+		{
+			MusicDirectory.Entry entry = new MusicDirectory.Entry();
+			int flags = in.readVarInt();
+			entry.setIsDirectory((flags & ENTRY_DIRECTORY) != 0);
+			entry.setIsVideo((flags & ENTRY_VIDEO) != 0);
+			entry.setStarred((flags & ENTRY_STARRED) != 0);
+			entry.setId(in.readString());
+			entry.setParent(in.readString());
+			entry.setTitle(in.readString());
+			entry.setAlbum(in.readString());
+			entry.setAlbumId(in.readString());
+			entry.setArtist(in.readString());
+			entry.setArtistId(in.readString());
+			entry.setTrack(in.readInteger());
+			entry.setYear(in.readInteger());
+			entry.setGenre(in.readString());
+			entry.setContentType(in.readString());
+			entry.setSuffix(in.readString());
+			entry.setTranscodedContentType(in.readString());
+			entry.setTranscodedSuffix(in.readString());
+			entry.setCoverArt(in.readString());
+			entry.setSize(in.readLong());
+			entry.setSongCount(in.readLong());
+			entry.setDuration(in.readInteger());
+			entry.setBitRate(in.readInteger());
+			entry.setPath(in.readString());
+			entry.setDiscNumber(in.readInteger());
+			entry.setType(in.readString());
+			Long created = in.readLong();
+			entry.setCreated(created == null ? null : new Date(created));
+			entry.setCloseness(in.readVarInt());
+			entry.setBookmarkPosition(in.readVarInt());
+			entries.add(entry);
+		}
+
+		return entries;
+	}
+}
@@ -109,6 +109,7 @@ public final class Constants
 	public static final String PREFERENCES_KEY_GAPLESS_PLAYBACK = "gaplessPlayback";
 	public static final String PREFERENCES_KEY_PLAYBACK_CONTROL_SETTINGS = "playbackControlSettings";
 	public static final String PREFERENCES_KEY_CLEAR_SEARCH_HISTORY = "clearSearchHistory";
+	public static final String PREFERENCES_KEY_SHOW_STATISTICS = "showStatistics";
 	public static final String PREFERENCES_KEY_TEST_CONNECTION = "testConnection";
 	public static final String PREFERENCES_KEY_DOWNLOAD_TRANSITION = "transitionToDownloadOnPlay";
 	public static final String PREFERENCES_KEY_INCREMENT_TIME = "incrementTime";
@@ -130,6 +131,10 @@ public final class Constants
 	public static final String PREFERENCES_KEY_SHOW_ALL_SONGS_BY_ARTIST = "showAllSongsByArtist";
 	public static final String PREFERENCES_KEY_SCAN_MEDIA = "scanMedia";
 	public static final String PREFERENCES_KEY_IMAGE_LOADER_CONCURRENCY = "imageLoaderConcurrency";
+	public static final String PREFERENCES_KEY_DOWNLOAD_SEGMENTS = "downloadSegments";
+	public static final String PREFERENCES_KEY_MAX_DOWNLOADS_WIFI = "maxDownloadsWifi";
+	public static final String PREFERENCES_KEY_MAX_DOWNLOADS_MOBILE = "maxDownloadsMobile";
+	public static final String PREFERENCES_KEY_SYSTEM_HTTP_CLIENT = "useSystemHttpClient";
 
 	// Name of the preferences file.
 	public static final String PREFERENCES_FILE_NAME = "com.thejoshwa.ultrasonic.androidapp_preferences";
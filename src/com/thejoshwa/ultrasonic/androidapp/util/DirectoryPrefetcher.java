@@ -0,0 +1,242 @@
+package com.thejoshwa.ultrasonic.androidapp.util;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+import android.widget.AbsListView;
+import android.widget.ListAdapter;
+
+import com.thejoshwa.ultrasonic.androidapp.service.MusicService;
+import com.thejoshwa.ultrasonic.androidapp.service.MusicServiceFactory;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Loads the directories behind the rows that are visible in a list, or just below them, in the
+ * background, so that they are already in the music service cache when a row is opened.
+ * <p/>
+ * At most two requests run at once, with background priority. Requests for rows that have
+ * left the viewport are dropped if they have not started, and all of them are when the list is flung.
+ * Requests that have started are left to finish, so that they are not sent twice.
+ */
+public abstract class DirectoryPrefetcher<T> implements AbsListView.OnScrollListener
+{
+	private static final String TAG = DirectoryPrefetcher.class.getSimpleName();
+	private static final int MAX_CONCURRENT_REQUESTS = 2;
+	private static final int LOOKAHEAD_ROWS = 5;
+
+	private final Context context;
+	private final Class<T> type;
+	private final ThreadPoolExecutor executor;
+	private final Map<String, Prefetch> pending = new HashMap<String, Prefetch>();
+	private final Set<String> prefetched = new HashSet<String>();
+	private int scrollState = SCROLL_STATE_IDLE;
+
+	protected DirectoryPrefetcher(Context context, Class<T> type)
+	{
+		this.context = context.getApplicationContext();
+		this.type = type;
+
+		executor = new ThreadPoolExecutor(MAX_CONCURRENT_REQUESTS, MAX_CONCURRENT_REQUESTS, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				return new Thread(runnable, "DirectoryPrefetcher");
+			}
+		});
+
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Returns the key of the directory behind the given item, or null if it should not be prefetched.
+	 */
+	protected abstract String getKey(T item);
+
+	protected abstract void load(MusicService musicService, T item, Context context) throws Exception;
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState)
+	{
+		this.scrollState = scrollState;
+
+		if (scrollState == SCROLL_STATE_FLING)
+		{
+			cancel();
+		}
+		else if (scrollState == SCROLL_STATE_IDLE)
+		{
+			prefetch(view, view.getFirstVisiblePosition(), view.getChildCount());
+		}
+	}
+
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount)
+	{
+		if (scrollState != SCROLL_STATE_FLING)
+		{
+			prefetch(view, firstVisibleItem, visibleItemCount);
+		}
+	}
+
+	private void prefetch(AbsListView view, int firstVisibleItem, int visibleItemCount)
+	{
+		ListAdapter adapter = view.getAdapter();
+
+		if (adapter == null || executor.isShutdown() || Util.isOffline(context))
+		{
+			return;
+		}
+
+		Map<String, T> window = new HashMap<String, T>();
+		int end = Math.min(firstVisibleItem + visibleItemCount + LOOKAHEAD_ROWS, adapter.getCount());
+
+		for (int position = Math.max(firstVisibleItem, 0); position < end; position++)
+		{
+			Object item = adapter.getItem(position);
+			String key = type.isInstance(item) ? getKey(type.cast(item)) : null;
+
+			if (key != null)
+			{
+				window.put(key, type.cast(item));
+			}
+		}
+
+		synchronized (pending)
+		{
+			boolean cancelled = false;
+
+			for (Iterator<Map.Entry<String, Prefetch>> iterator = pending.entrySet().iterator(); iterator.hasNext(); )
+			{
+				Map.Entry<String, Prefetch> entry = iterator.next();
+
+				// A request that has started is left to finish, so that it is not sent again
+				if (!window.containsKey(entry.getKey()) && entry.getValue().drop())
+				{
+					cancelled = true;
+					iterator.remove();
+				}
+			}
+
+			if (cancelled)
+			{
+				executor.purge();
+			}
+
+			for (Map.Entry<String, T> entry : window.entrySet())
+			{
+				schedule(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private void schedule(String key, T item)
+	{
+		if (prefetched.contains(key) || pending.containsKey(key))
+		{
+			return;
+		}
+
+		Prefetch prefetch = new Prefetch(key, item);
+		pending.put(key, prefetch);
+		prefetch.future = executor.submit(prefetch);
+	}
+
+	public void cancel()
+	{
+		synchronized (pending)
+		{
+			for (Iterator<Prefetch> iterator = pending.values().iterator(); iterator.hasNext(); )
+			{
+				if (iterator.next().drop())
+				{
+					iterator.remove();
+				}
+			}
+
+			executor.purge();
+		}
+	}
+
+	public void shutdown()
+	{
+		cancel();
+		executor.shutdown();
+	}
+
+	/**
+	 * Loads one directory, unless it is dropped before it starts.
+	 */
+	private class Prefetch implements Runnable
+	{
+		private final String key;
+		private final T item;
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		private Future<?> future;
+
+		Prefetch(String key, T item)
+		{
+			this.key = key;
+			this.item = item;
+		}
+
+		/**
+		 * Drops the request if it has not started yet, and returns whether it was dropped.
+		 */
+		boolean drop()
+		{
+			if (!claimed.compareAndSet(false, true))
+			{
+				return false;
+			}
+
+			future.cancel(false);
+			return true;
+		}
+
+		@Override
+		public void run()
+		{
+			if (!claimed.compareAndSet(false, true))
+			{
+				return;
+			}
+
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+			try
+			{
+				load(MusicServiceFactory.getMusicService(context), item, context);
+				Log.d(TAG, String.format("Prefetched %s", key));
+			}
+			catch (Exception x)
+			{
+				Log.d(TAG, String.format("Failed to prefetch %s", key), x);
+			}
+			finally
+			{
+				synchronized (pending)
+				{
+					// The request may have been replaced after it was dropped, that one is not ours to remove
+					if (pending.get(key) == this)
+					{
+						pending.remove(key);
+					}
+
+					prefetched.add(key);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package com.thejoshwa.ultrasonic.androidapp.util;
+
+import android.util.Log;
+
+import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory;
+import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory.Entry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the songs below a directory, loading up to a fixed number of subdirectories at once.
+ * <p/>
+ * Songs are returned, and optionally handed to a {@link Listener} while loading, in the same
+ * order as a depth-first walk of the tree: the songs of a directory come before the songs of
+ * its subdirectories. Subdirectories that come first in that order are also loaded first.
+ */
+public abstract class DirectoryTreeFetcher
+{
+	private static final String TAG = DirectoryTreeFetcher.class.getSimpleName();
+	private static final long CANCEL_CHECK_INTERVAL = 250L;
+
+	private final int maxConcurrentRequests;
+	private final int maxSongs;
+	private final AtomicInteger songCount = new AtomicInteger();
+	private volatile boolean cancelled;
+
+	protected DirectoryTreeFetcher(int maxConcurrentRequests, int maxSongs)
+	{
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		this.maxSongs = maxSongs;
+	}
+
+	/**
+	 * Loads the given subdirectory, or returns null if it should be skipped.
+	 */
+	protected abstract MusicDirectory load(Entry directory) throws Exception;
+
+	/**
+	 * Returns true if the songs are no longer needed. Subclasses may combine this with the state of the task using the fetcher.
+	 */
+	protected boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	public void cancel()
+	{
+		cancelled = true;
+	}
+
+	public List<Entry> fetch(MusicDirectory root) throws Exception
+	{
+		return fetch(root, null);
+	}
+
+	/**
+	 * Returns the songs below the given directory. The listener, if any, is called on the calling
+	 * thread with the songs of each directory as soon as all directories before it have been loaded.
+	 * If the fetch is cancelled, the songs found until then are returned.
+	 */
+	public List<Entry> fetch(MusicDirectory root, Listener listener) throws Exception
+	{
+		long start = System.currentTimeMillis();
+		songCount.set(0);
+
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(maxConcurrentRequests, maxConcurrentRequests, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				return new Thread(runnable, "DirectoryTreeFetcher");
+			}
+		});
+
+		List<Entry> songs = new ArrayList<Entry>();
+
+		try
+		{
+			Node node = new Node(null, new int[0], executor);
+			node.loaded(root);
+			collect(node, songs, listener);
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		Log.i(TAG, String.format("Fetched %d songs in %d ms%s", songs.size(), System.currentTimeMillis() - start, isCancelled() ? " (cancelled)" : ""));
+		return songs;
+	}
+
+	private void collect(Node node, List<Entry> songs, Listener listener) throws Exception
+	{
+		while (!node.await(CANCEL_CHECK_INTERVAL))
+		{
+			if (isCancelled())
+			{
+				return;
+			}
+		}
+
+		if (isCancelled())
+		{
+			return;
+		}
+
+		if (node.error != null)
+		{
+			throw node.error;
+		}
+
+		if (!node.songs.isEmpty())
+		{
+			songs.addAll(node.songs);
+
+			if (listener != null)
+			{
+				listener.songsFetched(Collections.unmodifiableList(node.songs));
+			}
+		}
+
+		for (Node child : node.children)
+		{
+			collect(child, songs, listener);
+		}
+	}
+
+	/**
+	 * Receives the songs of each directory, in tree order.
+	 */
+	public interface Listener
+	{
+		void songsFetched(List<Entry> songs);
+	}
+
+	/**
+	 * A directory of the tree. Queued nodes are ordered by their path, so that the executor
+	 * picks the directory that comes first in the order the songs are returned.
+	 */
+	private class Node implements Runnable, Comparable<Node>
+	{
+		private final Entry directory;
+		private final int[] path;
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private final List<Entry> songs = new ArrayList<Entry>();
+		private final List<Node> children = new ArrayList<Node>();
+		private final ThreadPoolExecutor executor;
+		private Exception error;
+
+		Node(Entry directory, int[] path, ThreadPoolExecutor executor)
+		{
+			this.directory = directory;
+			this.path = path;
+			this.executor = executor;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				loaded(isCancelled() ? null : load(directory));
+			}
+			catch (Exception x)
+			{
+				error = x;
+				latch.countDown();
+			}
+		}
+
+		void loaded(MusicDirectory musicDirectory)
+		{
+			if (musicDirectory != null)
+			{
+				for (Entry song : musicDirectory.getChildren(false, true))
+				{
+					if (!song.isVideo())
+					{
+						songs.add(song);
+					}
+				}
+
+				// Stop descending once enough songs were found, the songs found so far are still returned
+				if (songCount.addAndGet(songs.size()) <= maxSongs && !isCancelled())
+				{
+					List<Entry> directories = musicDirectory.getChildren(true, false);
+
+					for (int i = 0; i < directories.size(); i++)
+					{
+						int[] childPath = new int[path.length + 1];
+						System.arraycopy(path, 0, childPath, 0, path.length);
+						childPath[path.length] = i;
+
+						children.add(new Node(directories.get(i), childPath, executor));
+					}
+				}
+			}
+
+			// Publish the children before queuing them, they are read by the collecting thread
+			latch.countDown();
+
+			for (Node child : children)
+			{
+				executor.execute(child);
+			}
+		}
+
+		boolean await(long millis) throws InterruptedException
+		{
+			return latch.await(millis, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Node other)
+		{
+			for (int i = 0; i < Math.min(path.length, other.path.length); i++)
+			{
+				if (path[i] != other.path[i])
+				{
+					return path[i] < other.path[i] ? -1 : 1;
+				}
+			}
+
+			return path.length < other.path.length ? -1 : path.length > other.path.length ? 1 : 0;
+		}
+	}
+}
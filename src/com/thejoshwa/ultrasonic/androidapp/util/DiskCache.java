@@ -0,0 +1,156 @@
+package com.thejoshwa.ultrasonic.androidapp.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent second tier for parsed server responses, stored below the app cache directory.
+ * <p/>
+ * Entries are keyed by server URL and key, expire after a fixed time to live and the
+ * least recently written entries are removed once the cache grows beyond its size limit.
+ */
+public class DiskCache<T>
+{
+	private static final String TAG = DiskCache.class.getSimpleName();
+
+	private final String name;
+	private final long maxBytes;
+	private final long ttlMillis;
+	private final BinaryCodec<T> codec;
+
+	public DiskCache(String name, BinaryCodec<T> codec, long maxBytes, long ttl, TimeUnit timeUnit)
+	{
+		this.name = name;
+		this.codec = codec;
+		this.maxBytes = maxBytes;
+		this.ttlMillis = timeUnit.toMillis(ttl);
+	}
+
+	public Item<T> get(Context context, String server, String key)
+	{
+		String fileName = getFileName(server, key);
+		File file = new File(context.getCacheDir(), fileName);
+
+		if (!file.isFile())
+		{
+			return null;
+		}
+
+		long timestamp = file.lastModified();
+
+		if (System.currentTimeMillis() - timestamp > ttlMillis)
+		{
+			Util.delete(file);
+			return null;
+		}
+
+		T value = FileUtil.deserialize(context, fileName, codec);
+		return value == null ? null : new Item<T>(value, timestamp);
+	}
+
+	public synchronized void put(Context context, String server, String key, T value)
+	{
+		File directory = new File(context.getCacheDir(), name);
+
+		if (!directory.exists() && !directory.mkdirs())
+		{
+			Log.w(TAG, String.format("Failed to create %s", directory));
+			return;
+		}
+
+		if (FileUtil.serialize(context, value, getFileName(server, key), codec))
+		{
+			trim(directory);
+		}
+	}
+
+	public synchronized void remove(Context context, String server, String key)
+	{
+		Util.delete(new File(context.getCacheDir(), getFileName(server, key)));
+	}
+
+	private void trim(File directory)
+	{
+		File[] files = directory.listFiles();
+
+		if (files == null)
+		{
+			return;
+		}
+
+		long size = 0L;
+
+		for (File file : files)
+		{
+			size += file.length();
+		}
+
+		if (size <= maxBytes)
+		{
+			return;
+		}
+
+		Arrays.sort(files, new Comparator<File>()
+		{
+			@Override
+			public int compare(File a, File b)
+			{
+				long lhs = a.lastModified();
+				long rhs = b.lastModified();
+				return lhs < rhs ? -1 : lhs == rhs ? 0 : 1;
+			}
+		});
+
+		for (File file : files)
+		{
+			if (size <= maxBytes)
+			{
+				break;
+			}
+
+			long length = file.length();
+
+			if (Util.delete(file))
+			{
+				size -= length;
+			}
+		}
+	}
+
+	private String getFileName(String server, String key)
+	{
+		return String.format("%s/%s.dat", name, Util.md5Hex(server + key));
+	}
+
+	public static class Item<T>
+	{
+		private final T value;
+		private final long timestamp;
+
+		public Item(T value, long timestamp)
+		{
+			this.value = value;
+			this.timestamp = timestamp;
+		}
+
+		public T getValue()
+		{
+			return value;
+		}
+
+		public long getTimestamp()
+		{
+			return timestamp;
+		}
+
+		public long getAge()
+		{
+			return System.currentTimeMillis() - timestamp;
+		}
+	}
+}
@@ -21,9 +21,12 @@ package com.thejoshwa.ultrasonic.androidapp.util;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
@@ -52,6 +55,7 @@ public class FileUtil
 	private static final List<String> MUSIC_FILE_EXTENSIONS = Arrays.asList("mp3", "ogg", "aac", "flac", "m4a", "wav", "wma");
 	private static final List<String> VIDEO_FILE_EXTENSIONS = Arrays.asList("flv", "mp4", "m4v", "wmv", "avi", "mov", "mpg", "mkv");
 	private static final List<String> PLAYLIST_FILE_EXTENSIONS = Collections.singletonList("m3u");
+	private static final long MEMORY_MAP_THRESHOLD = 64 * 1024L;
 	private static final File DEFAULT_MUSIC_DIR = createDirectory("music");
 
 	public static File getSongFile(Context context, MusicDirectory.Entry song)
@@ -180,11 +184,16 @@ public class FileUtil
 				opt.inPurgeable = true;
 				opt.inSampleSize = Util.calculateInSampleSize(opt, size, Util.getScaledHeight(opt.outHeight, opt.outWidth, size));
 				opt.inJustDecodeBounds = false;
+
+				if (imageLoader != null)
+				{
+					imageLoader.getBitmapPool().prepare(opt);
+				}
 			}
 
 			try
 			{
-				bitmap = BitmapFactory.decodeFile(avatarFile.getPath(), opt);
+				bitmap = decodeFile(avatarFile.getPath(), opt);
 			}
 			catch (Exception ex)
 			{
@@ -193,14 +202,6 @@ public class FileUtil
 
 			Log.i("getAvatarBitmap", String.valueOf(size));
 
-			if (bitmap != null)
-			{
-				if (imageLoader != null)
-				{
-					imageLoader.addImageToCache(bitmap, username, size);
-				}
-			}
-
 			return bitmap == null ? null : bitmap;
 		}
 
@@ -208,6 +209,17 @@ public class FileUtil
 	}
 
 	public static Bitmap getAlbumArtBitmap(Context context, MusicDirectory.Entry entry, int size, boolean highQuality)
+	{
+		return getAlbumArtBitmap(context, entry, size, highQuality, true);
+	}
+
+	/**
+	 * Returns the album art of the entry, decoding it from the album art file if it isn't in the image cache.
+	 *
+	 * @param keep true if the caller keeps the bitmap, which is then cached as shared so that it is
+	 *             never recycled. Otherwise it is left to the image loader to cache it when it shows it.
+	 */
+	public static Bitmap getAlbumArtBitmap(Context context, MusicDirectory.Entry entry, int size, boolean highQuality, boolean keep)
 	{
 		if (entry == null) return null;
 		
@@ -259,11 +271,16 @@ public class FileUtil
 				opt.inPurgeable = true;
 				opt.inSampleSize = Util.calculateInSampleSize(opt, size, Util.getScaledHeight(opt.outHeight, opt.outWidth, size));
 				opt.inJustDecodeBounds = false;
+
+				if (imageLoader != null)
+				{
+					imageLoader.getBitmapPool().prepare(opt);
+				}
 			}
 
 			try
 			{
-				bitmap = BitmapFactory.decodeFile(albumArtFile.getPath(), opt);
+				bitmap = decodeFile(albumArtFile.getPath(), opt);
 			}
 			catch (Exception ex)
 			{
@@ -274,7 +291,7 @@ public class FileUtil
 
 			if (bitmap != null)
 			{
-				if (imageLoader != null)
+				if (imageLoader != null && keep)
 				{
 					imageLoader.addImageToCache(bitmap, entry, size);
 				}
@@ -304,10 +321,47 @@ public class FileUtil
 			opt.inPurgeable = true;
 			opt.inSampleSize = Util.calculateInSampleSize(opt, size, Util.getScaledHeight(opt.outHeight, opt.outWidth, size));
 			opt.inJustDecodeBounds = false;
+
+			// Called by the decode threads, which must not start an image loader of their own
+			ImageLoader imageLoader = SubsonicTabActivity.getRunningImageLoader();
+
+			if (imageLoader != null)
+			{
+				imageLoader.getBitmapPool().prepare(opt);
+			}
 		}
 
 		Log.i("getSampledBitmap", String.valueOf(size));
-		return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opt);
+
+		try
+		{
+			return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opt);
+		}
+		catch (IllegalArgumentException ex)
+		{
+			if (opt.inBitmap == null)
+			{
+				throw ex;
+			}
+
+			// The pooled bitmap could not be reused, decode into a new one
+			opt.inBitmap = null;
+			return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opt);
+		}
+	}
+
+	private static Bitmap decodeFile(String path, BitmapFactory.Options opt)
+	{
+		Bitmap bitmap = BitmapFactory.decodeFile(path, opt);
+
+		// decodeFile() swallows the exception thrown when the pooled bitmap can't be reused, decode into a new one
+		if (bitmap == null && opt.inBitmap != null)
+		{
+			opt.inBitmap = null;
+			bitmap = BitmapFactory.decodeFile(path, opt);
+		}
+
+		return bitmap;
 	}
 
 	public static File getArtistDirectory(Context context, Artist artist)
@@ -516,7 +570,7 @@ public class FileUtil
 		return files;
 	}
 
-	private static boolean isMediaFile(File file)
+	public static boolean isMediaFile(File file)
 	{
 		String extension = getExtension(file.getName());
 		return MUSIC_FILE_EXTENSIONS.contains(extension) || VIDEO_FILE_EXTENSIONS.contains(extension);
@@ -557,23 +611,116 @@ public class FileUtil
 	public static <T extends Serializable> boolean serialize(Context context, T obj, String fileName)
 	{
 		File file = new File(context.getCacheDir(), fileName);
+		File tmp = new File(String.format("%s.tmp", file.getPath()));
 		ObjectOutputStream out = null;
 
 		try
 		{
-			out = new ObjectOutputStream(new FileOutputStream(file));
+			out = new ObjectOutputStream(new FileOutputStream(tmp));
 			out.writeObject(obj);
+			out.close();
+			replaceFile(tmp, file);
 			Log.i(TAG, String.format("Serialized object to %s", file));
 			return true;
 		}
 		catch (Throwable x)
 		{
 			Log.w(TAG, String.format("Failed to serialize object to %s", file));
+			Util.close(out);
+			Util.delete(tmp);
 			return false;
 		}
-		finally
+	}
+
+	/**
+	 * Writes an object in the binary format of the given codec. The file is written next to
+	 * its destination and renamed over it, so a crash while writing never leaves a partial file.
+	 */
+	public static <T> boolean serialize(Context context, T obj, String fileName, BinaryCodec<T> codec)
+	{
+		File file = new File(context.getCacheDir(), fileName);
+		File tmp = new File(String.format("%s.tmp", file.getPath()));
+		long start = System.currentTimeMillis();
+		FileOutputStream out = null;
+
+		try
+		{
+			out = new FileOutputStream(tmp);
+			codec.encode(obj, out);
+			out.close();
+			replaceFile(tmp, file);
+			Log.i(TAG, String.format("Serialized object to %s (%s) in %d ms", file, Util.formatBytes(file.length()), System.currentTimeMillis() - start));
+			return true;
+		}
+		catch (Throwable x)
 		{
+			Log.w(TAG, String.format("Failed to serialize object to %s", file), x);
 			Util.close(out);
+			Util.delete(tmp);
+			return false;
+		}
+	}
+
+	/**
+	 * Reads an object written by {@link #serialize(Context, Object, String, BinaryCodec)}.
+	 * Large files are memory mapped instead of being copied to the heap first.
+	 */
+	public static <T> T deserialize(Context context, String fileName, BinaryCodec<T> codec)
+	{
+		File file = new File(context.getCacheDir(), fileName);
+
+		if (!file.exists() || !file.isFile())
+		{
+			return null;
+		}
+
+		long start = System.currentTimeMillis();
+		FileInputStream in = null;
+
+		try
+		{
+			in = new FileInputStream(file);
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			ByteBuffer buffer;
+
+			if (size > MEMORY_MAP_THRESHOLD)
+			{
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			else
+			{
+				buffer = ByteBuffer.allocate((int) size);
+
+				while (buffer.hasRemaining() && channel.read(buffer) != -1)
+				{
+					// Read the whole file
+				}
+
+				buffer.flip();
+			}
+
+			T result = codec.decode(buffer);
+			Log.i(TAG, String.format("Deserialized object from %s (%s) in %d ms", file, Util.formatBytes(size), System.currentTimeMillis() - start));
+			return result;
+		}
+		catch (Throwable x)
+		{
+			Log.w(TAG, String.format("Failed to deserialize object from %s", file), x);
+			return null;
+		}
+		finally
+		{
+			Util.close(in);
+		}
+	}
+
+	private static void replaceFile(File from, File to) throws IOException
+	{
+		// Renaming over an existing file is atomic, but not supported by every file system
+		if (!from.renameTo(to) && !(to.delete() && from.renameTo(to)))
+		{
+			throw new IOException(String.format("Failed to rename %s to %s", from, to));
 		}
 	}
 
@@ -18,6 +18,7 @@
  */
 package com.thejoshwa.ultrasonic.androidapp.util;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
@@ -38,6 +39,9 @@ import com.thejoshwa.ultrasonic.androidapp.service.MusicServiceFactory;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -53,7 +57,13 @@ public class ImageLoader implements Runnable
 {
 	private static final String TAG = ImageLoader.class.getSimpleName();
 
-	private final LRUCache<String, Bitmap> cache = new LRUCache<String, Bitmap>(150);
+	private static final int MEMORY_CACHE_DIVIDER = 8;
+	private static final int BITMAP_POOL_DIVIDER = 32;
+
+	private final LRUCache<String, Bitmap> cache;
+	private final BitmapPool bitmapPool;
+	private final Set<Bitmap> sharedBitmaps = Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
+	private final Map<View, Bitmap> displayedBitmaps = new WeakHashMap<View, Bitmap>();
 	private final BlockingQueue<Task> queue;
 	private int imageSizeDefault;
 	private final int imageSizeLarge;
@@ -70,6 +80,29 @@ public class ImageLoader implements Runnable
 		this.concurrency = concurrency;
 		queue = new LinkedBlockingQueue<Task>(1000);
 
+		// Budget the memory cache in bytes, as a fraction of the heap available to the app
+		ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		long memoryClassBytes = activityManager.getMemoryClass() * 1024L * 1024L;
+		bitmapPool = new BitmapPool(memoryClassBytes / BITMAP_POOL_DIVIDER);
+		cache = new LRUCache<String, Bitmap>(memoryClassBytes / MEMORY_CACHE_DIVIDER, LRUCache.ReferenceType.STRONG, new LRUCache.Weigher<String, Bitmap>()
+		{
+			@Override
+			public int weigh(String key, Bitmap bitmap)
+			{
+				return BitmapPool.getByteCount(bitmap);
+			}
+		})
+		{
+			@Override
+			protected void entryRemoved(String key, Bitmap bitmap, boolean evicted)
+			{
+				if (evicted && isRecyclable(bitmap))
+				{
+					bitmapPool.put(bitmap);
+				}
+			}
+		};
+
 		Resources resources = context.getResources();
 		Drawable drawable = resources.getDrawable(R.drawable.unknown_album);
 
@@ -89,6 +122,19 @@ public class ImageLoader implements Runnable
 		return running.get() && !threads.isEmpty();
 	}
 
+	public BitmapPool getBitmapPool()
+	{
+		return bitmapPool;
+	}
+
+	/**
+	 * Returns a readable summary of the memory cache and bitmap pool figures.
+	 */
+	public String getStatistics()
+	{
+		return String.format("ImageLoader\n  bitmaps: %s\n  bitmapPool: reuses=%d, misses=%d", cache, bitmapPool.getReuseCount(), bitmapPool.getMissCount());
+	}
+
 	public void setConcurrency(int concurrency)
 	{
 		this.concurrency = concurrency;
@@ -287,6 +333,8 @@ public class ImageLoader implements Runnable
 			{
 				imageView.setImageBitmap(bitmap);
 			}
+
+			setDisplayedBitmap(view, bitmap);
 		}
 	}
 
@@ -326,6 +374,8 @@ public class ImageLoader implements Runnable
 			{
 				imageView.setImageBitmap(bitmap);
 			}
+
+			setDisplayedBitmap(view, bitmap);
 		}
 	}
 
@@ -350,17 +400,58 @@ public class ImageLoader implements Runnable
 			{
 				((ImageView) view).setImageResource(R.drawable.unknown_album);
 			}
+
+			setDisplayedBitmap(view, null);
 		}
 	}
 
+	/**
+	 * Adds a bitmap that is also handed out to a caller that keeps it. Such bitmaps are never
+	 * recycled into the bitmap pool, since they may still be in use elsewhere.
+	 */
 	public void addImageToCache(Bitmap bitmap, MusicDirectory.Entry entry, int size)
 	{
+		markShared(bitmap);
 		cache.put(getKey(entry.getCoverArt(), size), bitmap);
 	}
 
-	public void addImageToCache(Bitmap bitmap, String username, int size)
+	private void markShared(Bitmap bitmap)
+	{
+		synchronized (sharedBitmaps)
+		{
+			sharedBitmaps.add(bitmap);
+		}
+	}
+
+	private void setDisplayedBitmap(View view, Bitmap bitmap)
+	{
+		synchronized (displayedBitmaps)
+		{
+			if (bitmap == null)
+			{
+				displayedBitmaps.remove(view);
+			}
+			else
+			{
+				displayedBitmaps.put(view, bitmap);
+			}
+		}
+	}
+
+	private boolean isRecyclable(Bitmap bitmap)
 	{
-		cache.put(getKey(username, size), bitmap);
+		synchronized (sharedBitmaps)
+		{
+			if (sharedBitmaps.contains(bitmap))
+			{
+				return false;
+			}
+		}
+
+		synchronized (displayedBitmaps)
+		{
+			return !displayedBitmaps.containsValue(bitmap);
+		}
 	}
 
 	public void clear()
@@ -433,16 +524,20 @@ public class ImageLoader implements Runnable
 				final boolean isAvatar = this.username != null && this.entry == null;
 				final Bitmap bitmap = this.entry != null ? musicService.getCoverArt(view.getContext(), entry, size, saveToFile, highQuality, null) : musicService.getAvatar(view.getContext(), username, size, saveToFile, highQuality, null);
 
-				if (isAvatar)
-					addImageToCache(bitmap, username, size);
-				else
-					addImageToCache(bitmap, entry, size);
+				if (bitmap == null)
+				{
+					return;
+				}
 
+				// The bitmap enters the cache on the UI thread, together with the view showing it, so that
+				// it can't be recycled before it is shown, and the bitmap it replaces until it is gone
 				handler.post(new Runnable()
 				{
 					@Override
 					public void run()
 					{
+						cache.put(isAvatar ? getKey(username, size) : getKey(entry.getCoverArt(), size), bitmap);
+
 						if (isAvatar)
 						{
 							setAvatarImageBitmap(view, username, bitmap, crossFade);
@@ -0,0 +1,18 @@
+package com.thejoshwa.ultrasonic.androidapp.util;
+
+import com.thejoshwa.ultrasonic.androidapp.domain.Artist;
+
+import java.util.List;
+
+/**
+ * Progress listener that also receives the artists of an index while it is being parsed,
+ * so that they can be shown before the whole response has been read.
+ */
+public interface IndexesProgressListener extends ProgressListener
+{
+	/**
+	 * Called on the parsing thread with the shortcuts and artists parsed since the previous call,
+	 * in display order, each time an index has been completely parsed.
+	 */
+	void updateArtists(List<Artist> artists);
+}
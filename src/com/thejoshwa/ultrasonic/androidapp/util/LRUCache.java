@@ -18,100 +18,313 @@
  */
 package com.thejoshwa.ultrasonic.androidapp.util;
 
+import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
-import java.util.HashMap;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
+ * Least recently used cache, backed by an access-ordered {@link LinkedHashMap}
+ * so that lookups, insertions and evictions are all O(1).
+ * <p/>
+ * The capacity is expressed in weight units. Unless a {@link Weigher} is given,
+ * every entry weighs 1 and the capacity is simply the maximum number of entries.
+ *
  * @author Sindre Mehus
  */
 public class LRUCache<K, V>
 {
+	public enum ReferenceType
+	{
+		STRONG,
+		SOFT,
+		WEAK
+	}
 
-	private final int capacity;
-	private final Map<K, TimestampedValue> map;
+	public interface Weigher<K, V>
+	{
+		int weigh(K key, V value);
+	}
+
+	private final long capacity;
+	private final ReferenceType referenceType;
+	private final Weigher<K, V> weigher;
+	private final LinkedHashMap<K, ValueHolder<V>> map;
+
+	private long weight;
+	private long hitCount;
+	private long missCount;
+	private long loadCount;
+	private long evictionCount;
 
 	public LRUCache(int capacity)
 	{
-		map = new HashMap<K, TimestampedValue>(capacity);
+		this(capacity, ReferenceType.STRONG, null);
+	}
+
+	public LRUCache(int capacity, ReferenceType referenceType)
+	{
+		this(capacity, referenceType, null);
+	}
+
+	public LRUCache(long capacity, ReferenceType referenceType, Weigher<K, V> weigher)
+	{
+		if (capacity <= 0)
+		{
+			throw new IllegalArgumentException("capacity <= 0");
+		}
+
 		this.capacity = capacity;
+		this.referenceType = referenceType;
+		this.weigher = weigher;
+		map = new LinkedHashMap<K, ValueHolder<V>>(16, 0.75F, true);
 	}
 
 	public synchronized V get(K key)
 	{
-		TimestampedValue value = map.get(key);
+		ValueHolder<V> holder = map.get(key);
 
-		V result = null;
-		if (value != null)
+		if (holder != null)
 		{
-			value.updateTimestamp();
-			result = value.getValue();
+			V result = holder.get();
+
+			if (result != null)
+			{
+				hitCount++;
+				return result;
+			}
+
+			// Value was reclaimed by the garbage collector
+			map.remove(key);
+			weight -= holder.weight;
 		}
 
-		return result;
+		missCount++;
+		return null;
 	}
 
 	public synchronized void put(K key, V value)
 	{
-		if (map.size() >= capacity)
+		if (key == null || value == null)
+		{
+			throw new NullPointerException("key == null || value == null");
+		}
+
+		int valueWeight = weigh(key, value);
+		ValueHolder<V> previous = map.put(key, createHolder(value, valueWeight));
+		loadCount++;
+		weight += valueWeight;
+
+		if (previous != null)
+		{
+			weight -= previous.weight;
+			V previousValue = previous.get();
+
+			if (previousValue != null && previousValue != value)
+			{
+				entryRemoved(key, previousValue, false);
+			}
+		}
+
+		trimToCapacity();
+	}
+
+	public synchronized V remove(K key)
+	{
+		ValueHolder<V> holder = map.remove(key);
+
+		if (holder == null)
+		{
+			return null;
+		}
+
+		weight -= holder.weight;
+		V value = holder.get();
+
+		if (value != null)
 		{
-			removeOldest();
+			entryRemoved(key, value, false);
 		}
-		map.put(key, new TimestampedValue(value));
+
+		return value;
 	}
 
-	public void clear()
+	public synchronized void clear()
 	{
+		for (Map.Entry<K, ValueHolder<V>> entry : map.entrySet())
+		{
+			V value = entry.getValue().get();
+
+			if (value != null)
+			{
+				entryRemoved(entry.getKey(), value, false);
+			}
+		}
+
 		map.clear();
+		weight = 0L;
+	}
+
+	public synchronized int size()
+	{
+		return map.size();
+	}
+
+	public synchronized long weight()
+	{
+		return weight;
+	}
+
+	public long capacity()
+	{
+		return capacity;
+	}
+
+	public synchronized long getHitCount()
+	{
+		return hitCount;
+	}
+
+	public synchronized long getMissCount()
+	{
+		return missCount;
+	}
+
+	public synchronized long getLoadCount()
+	{
+		return loadCount;
 	}
 
-	private void removeOldest()
+	public synchronized long getEvictionCount()
 	{
-		K oldestKey = null;
-		long oldestTimestamp = Long.MAX_VALUE;
+		return evictionCount;
+	}
+
+	public synchronized float getHitRatio()
+	{
+		long requests = hitCount + missCount;
+		return requests == 0L ? 0.0F : (float) hitCount / requests;
+	}
+
+	public synchronized void resetStatistics()
+	{
+		hitCount = 0L;
+		missCount = 0L;
+		loadCount = 0L;
+		evictionCount = 0L;
+	}
 
-		for (Map.Entry<K, TimestampedValue> entry : map.entrySet())
+	/**
+	 * Called with the cache lock held whenever a live value leaves the cache,
+	 * either because it was evicted to make room (<code>evicted</code> is true)
+	 * or because it was replaced, removed or cleared.
+	 */
+	protected void entryRemoved(K key, V value, boolean evicted)
+	{
+	}
+
+	private void trimToCapacity()
+	{
+		Iterator<Map.Entry<K, ValueHolder<V>>> iterator = map.entrySet().iterator();
+
+		// Always keep the most recently inserted entry, even if it alone exceeds the capacity
+		while (weight > capacity && map.size() > 1 && iterator.hasNext())
 		{
-			K key = entry.getKey();
-			TimestampedValue value = entry.getValue();
-			if (value.getTimestamp() < oldestTimestamp)
+			Map.Entry<K, ValueHolder<V>> eldest = iterator.next();
+			iterator.remove();
+			weight -= eldest.getValue().weight;
+			evictionCount++;
+
+			V value = eldest.getValue().get();
+
+			if (value != null)
 			{
-				oldestTimestamp = value.getTimestamp();
-				oldestKey = key;
+				entryRemoved(eldest.getKey(), value, true);
 			}
 		}
+	}
+
+	private int weigh(K key, V value)
+	{
+		if (weigher == null)
+		{
+			return 1;
+		}
+
+		int result = weigher.weigh(key, value);
+
+		if (result < 0)
+		{
+			throw new IllegalStateException(String.format("Negative weight for %s: %d", key, result));
+		}
+
+		return result;
+	}
 
-		if (oldestKey != null)
+	private ValueHolder<V> createHolder(V value, int valueWeight)
+	{
+		switch (referenceType)
 		{
-			map.remove(oldestKey);
+			case SOFT:
+				return new ReferenceValueHolder<V>(new SoftReference<V>(value), valueWeight);
+			case WEAK:
+				return new ReferenceValueHolder<V>(new WeakReference<V>(value), valueWeight);
+			default:
+				return new StrongValueHolder<V>(value, valueWeight);
 		}
 	}
 
-	private final class TimestampedValue
+	@Override
+	public synchronized String toString()
 	{
+		return String.format("LRUCache[size=%d, weight=%d/%d, hits=%d, misses=%d, loads=%d, evictions=%d, hitRatio=%.0f%%]", map.size(), weight, capacity, hitCount, missCount, loadCount, evictionCount, getHitRatio() * 100.0F);
+	}
 
-		private final SoftReference<V> value;
-		private long timestamp;
+	private abstract static class ValueHolder<V>
+	{
+		final int weight;
 
-		public TimestampedValue(V value)
+		ValueHolder(int weight)
 		{
-			this.value = new SoftReference<V>(value);
-			updateTimestamp();
+			this.weight = weight;
 		}
 
-		public V getValue()
+		abstract V get();
+	}
+
+	private static final class StrongValueHolder<V> extends ValueHolder<V>
+	{
+		private final V value;
+
+		StrongValueHolder(V value, int weight)
 		{
-			return value.get();
+			super(weight);
+			this.value = value;
 		}
 
-		public long getTimestamp()
+		@Override
+		V get()
+		{
+			return value;
+		}
+	}
+
+	private static final class ReferenceValueHolder<V> extends ValueHolder<V>
+	{
+		private final Reference<V> reference;
+
+		ReferenceValueHolder(Reference<V> reference, int weight)
 		{
-			return timestamp;
+			super(weight);
+			this.reference = reference;
 		}
 
-		public void updateTimestamp()
+		@Override
+		V get()
 		{
-			timestamp = System.currentTimeMillis();
+			return reference.get();
 		}
 	}
-}
\ No newline at end of file
+}
@@ -82,7 +82,8 @@ public abstract class LoadingTask<T> extends BackgroundTask<T>
 	}
 
 	@SuppressLint("NewApi")
-	private boolean isCancelled()
+	@Override
+	public boolean isCancelled()
 	{
 		return Build.VERSION.SDK_INT >= 17 ? tabActivity.isDestroyed() || cancelled : cancelled;
 	}
@@ -159,7 +159,8 @@ public abstract class ModalBackgroundTask<T> extends BackgroundTask<T>
 		}
 	}
 
-	protected boolean isCancelled()
+	@Override
+	public boolean isCancelled()
 	{
 		return cancelled;
 	}
@@ -0,0 +1,618 @@
+package com.thejoshwa.ultrasonic.androidapp.util;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the files and directories in the music directory, so that they don't have to be
+ * listed recursively every time they are needed.
+ * <p/>
+ * Changes are reported with {@link #update(File)} by the code that writes, renames and deletes
+ * files, and picked up from {@link FileObserver} events for changes made by other apps. The state
+ * is saved in the cache directory. When it is loaded, only the directories whose modification
+ * time changed are listed again.
+ */
+public class MusicDirectoryTracker
+{
+	private static final String TAG = MusicDirectoryTracker.class.getSimpleName();
+	private static final String FILE_NAME = "music_directory.dat";
+	private static final long SAVE_DELAY_SECONDS = 5L;
+	private static final int OBSERVER_EVENTS = FileObserver.CREATE | FileObserver.CLOSE_WRITE | FileObserver.ATTRIB | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.DELETE;
+	private static MusicDirectoryTracker instance;
+
+	private final Context context;
+	private final Map<String, TrackedFile> files = new HashMap<String, TrackedFile>();
+	private final Map<String, TrackedDirectory> directories = new HashMap<String, TrackedDirectory>();
+	private final Map<String, FileObserver> observers = new HashMap<String, FileObserver>();
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+	private String root;
+	private boolean loaded;
+	private boolean started;
+	private boolean saveScheduled;
+
+	private MusicDirectoryTracker(Context context)
+	{
+		this.context = context;
+	}
+
+	public static synchronized MusicDirectoryTracker getInstance(Context context)
+	{
+		if (instance == null)
+		{
+			instance = new MusicDirectoryTracker(context.getApplicationContext());
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Brings the state up to date with the music directory and starts watching it, in the background.
+	 */
+	public void start()
+	{
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ensureStarted();
+			}
+		});
+	}
+
+	/**
+	 * Stops watching the music directory. The state is brought up to date again on next use.
+	 */
+	public synchronized void stop()
+	{
+		for (FileObserver observer : observers.values())
+		{
+			observer.stopWatching();
+		}
+
+		observers.clear();
+		started = false;
+	}
+
+	/**
+	 * Listeners are called for every change found after they were added, while the state is locked.
+	 */
+	public void addListener(Listener listener)
+	{
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Returns all files below the music directory.
+	 */
+	public synchronized List<TrackedFile> getFiles()
+	{
+		ensureStarted();
+		return new ArrayList<TrackedFile>(files.values());
+	}
+
+	/**
+	 * Returns all directories below the music directory, and the music directory itself.
+	 */
+	public synchronized List<File> getDirectories()
+	{
+		ensureStarted();
+		List<File> result = new ArrayList<File>(directories.size());
+
+		for (String path : directories.keySet())
+		{
+			result.add(new File(path));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Records that the given file or directory was created, changed, renamed or deleted. The
+	 * file is looked at in the background, so this can be called from the main thread.
+	 */
+	public void update(final File file)
+	{
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				apply(file);
+			}
+		});
+	}
+
+	/**
+	 * Waits until the changes recorded with {@link #update(File)} so far are applied, so that a
+	 * following {@link #getFiles()} sees them. Must not be called from the main thread.
+	 */
+	public void flush()
+	{
+		try
+		{
+			executor.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+				}
+			}).get();
+		}
+		catch (InterruptedException x)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException x)
+		{
+			Log.w(TAG, "Failed to wait for pending updates", x);
+		}
+	}
+
+	private synchronized void apply(File file)
+	{
+		if (!started || root == null || !(file.getPath().equals(root) || file.getPath().startsWith(root + File.separator)))
+		{
+			return;
+		}
+
+		if (file.isFile())
+		{
+			TrackedDirectory parent = directories.get(file.getParent());
+
+			if (parent == null)
+			{
+				apply(file.getParentFile());
+				return;
+			}
+
+			putFile(parent, file);
+			parent.lastModified = file.getParentFile().lastModified();
+		}
+		else if (file.isDirectory())
+		{
+			TrackedDirectory parent = directories.get(file.getParent());
+
+			if (parent == null && !file.getPath().equals(root))
+			{
+				apply(file.getParentFile());
+				return;
+			}
+
+			reconcile(file, true);
+
+			if (parent != null)
+			{
+				parent.directories.add(file.getPath());
+				parent.lastModified = file.getParentFile().lastModified();
+			}
+		}
+		else
+		{
+			remove(file.getPath());
+			TrackedDirectory parent = directories.get(file.getParent());
+
+			if (parent != null)
+			{
+				parent.lastModified = file.getParentFile().lastModified();
+			}
+		}
+
+		scheduleSave();
+	}
+
+	private synchronized void ensureStarted()
+	{
+		String musicDirectory = FileUtil.getMusicDirectory(context).getPath();
+
+		if (started && musicDirectory.equals(root))
+		{
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+
+		if (!loaded)
+		{
+			load();
+			loaded = true;
+		}
+
+		if (!musicDirectory.equals(root))
+		{
+			stop();
+			clear();
+			root = musicDirectory;
+		}
+
+		started = true;
+		int listed = reconcile(new File(root), false);
+		scheduleSave();
+
+		Log.i(TAG, String.format("Found %d files in %d directories in %d ms, %d directories listed", files.size(), directories.size(), System.currentTimeMillis() - start, listed));
+	}
+
+	/**
+	 * Compares a directory and its subdirectories with the state, listing only the directories
+	 * that changed, or all of them if forced. Returns the number of directories listed.
+	 */
+	private int reconcile(File dir, boolean force)
+	{
+		String path = dir.getPath();
+		TrackedDirectory directory = directories.get(path);
+		long lastModified = dir.lastModified();
+		int listed = 0;
+
+		if (directory == null)
+		{
+			directory = new TrackedDirectory(lastModified);
+			directories.put(path, directory);
+			force = true;
+		}
+
+		// Watch before listing, so that changes made while listing are not missed
+		observe(path);
+
+		if (force || directory.lastModified != lastModified)
+		{
+			Set<String> childFiles = new HashSet<String>();
+			Set<String> childDirectories = new HashSet<String>();
+			listed++;
+
+			for (File child : FileUtil.listFiles(dir))
+			{
+				if (child.isDirectory())
+				{
+					childDirectories.add(child.getPath());
+				}
+				else
+				{
+					childFiles.add(child.getPath());
+					putFile(directory, child);
+				}
+			}
+
+			for (String removed : subtract(directory.files, childFiles))
+			{
+				remove(removed);
+			}
+
+			for (String removed : subtract(directory.directories, childDirectories))
+			{
+				remove(removed);
+			}
+
+			directory.directories.addAll(childDirectories);
+			directory.lastModified = lastModified;
+		}
+
+		for (String child : new ArrayList<String>(directory.directories))
+		{
+			listed += reconcile(new File(child), force);
+		}
+
+		return listed;
+	}
+
+	private static Collection<String> subtract(Collection<String> from, Collection<String> paths)
+	{
+		List<String> result = new ArrayList<String>();
+
+		for (String path : from)
+		{
+			if (!paths.contains(path))
+			{
+				result.add(path);
+			}
+		}
+
+		return result;
+	}
+
+	private void putFile(TrackedDirectory parent, File file)
+	{
+		TrackedFile trackedFile = new TrackedFile(file.getPath(), file.length(), file.lastModified());
+		TrackedFile previous = files.put(trackedFile.path, trackedFile);
+		parent.files.add(trackedFile.path);
+
+		if (previous == null || previous.size != trackedFile.size || previous.lastModified != trackedFile.lastModified)
+		{
+			for (Listener listener : listeners)
+			{
+				listener.fileChanged(previous, trackedFile);
+			}
+		}
+	}
+
+	private void remove(String path)
+	{
+		TrackedDirectory parent = directories.get(new File(path).getParent());
+
+		if (files.remove(path) != null)
+		{
+			if (parent != null)
+			{
+				parent.files.remove(path);
+			}
+
+			for (Listener listener : listeners)
+			{
+				listener.fileDeleted(path);
+			}
+		}
+
+		TrackedDirectory directory = directories.get(path);
+
+		if (directory != null)
+		{
+			for (String child : new ArrayList<String>(directory.files))
+			{
+				remove(child);
+			}
+
+			for (String child : new ArrayList<String>(directory.directories))
+			{
+				remove(child);
+			}
+
+			directories.remove(path);
+
+			if (parent != null)
+			{
+				parent.directories.remove(path);
+			}
+
+			FileObserver observer = observers.remove(path);
+
+			if (observer != null)
+			{
+				observer.stopWatching();
+			}
+		}
+	}
+
+	private void clear()
+	{
+		for (String path : new ArrayList<String>(files.keySet()))
+		{
+			remove(path);
+		}
+
+		directories.clear();
+	}
+
+	private void observe(final String path)
+	{
+		if (observers.containsKey(path))
+		{
+			return;
+		}
+
+		FileObserver observer = new FileObserver(path, OBSERVER_EVENTS)
+		{
+			@Override
+			public void onEvent(int event, String name)
+			{
+				if (name != null)
+				{
+					update(new File(path, name));
+				}
+			}
+		};
+
+		observer.startWatching();
+		observers.put(path, observer);
+	}
+
+	private void scheduleSave()
+	{
+		if (saveScheduled)
+		{
+			return;
+		}
+
+		saveScheduled = true;
+
+		executor.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				State state;
+
+				synchronized (MusicDirectoryTracker.this)
+				{
+					saveScheduled = false;
+					state = new State(root, new ArrayList<TrackedFile>(files.values()), new HashMap<String, Long>(directories.size()));
+
+					for (Map.Entry<String, TrackedDirectory> entry : directories.entrySet())
+					{
+						state.directories.put(entry.getKey(), entry.getValue().lastModified);
+					}
+				}
+
+				FileUtil.serialize(context, state, FILE_NAME, STATE_CODEC);
+			}
+		}, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+	}
+
+	private void load()
+	{
+		State state = FileUtil.deserialize(context, FILE_NAME, STATE_CODEC);
+
+		if (state == null)
+		{
+			return;
+		}
+
+		root = state.root;
+
+		for (Map.Entry<String, Long> entry : state.directories.entrySet())
+		{
+			directories.put(entry.getKey(), new TrackedDirectory(entry.getValue()));
+		}
+
+		for (Map.Entry<String, TrackedDirectory> entry : directories.entrySet())
+		{
+			TrackedDirectory parent = directories.get(new File(entry.getKey()).getParent());
+
+			if (parent != null)
+			{
+				parent.directories.add(entry.getKey());
+			}
+		}
+
+		for (TrackedFile file : state.files)
+		{
+			TrackedDirectory parent = directories.get(new File(file.path).getParent());
+
+			if (parent != null)
+			{
+				files.put(file.path, file);
+				parent.files.add(file.path);
+			}
+		}
+	}
+
+	/**
+	 * Receives the changes to the files in the music directory.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called when a file is added, or its size or modification time changed. The previous
+		 * state is null for a new file. Playing a song only changes its modification time.
+		 */
+		void fileChanged(TrackedFile previous, TrackedFile file);
+
+		void fileDeleted(String path);
+	}
+
+	/**
+	 * A file in the music directory, with its size and modification time when it was last seen.
+	 */
+	public static class TrackedFile
+	{
+		private final String path;
+		private final long size;
+		private final long lastModified;
+
+		TrackedFile(String path, long size, long lastModified)
+		{
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		public String getPath()
+		{
+			return path;
+		}
+
+		public long getSize()
+		{
+			return size;
+		}
+
+		public long getLastModified()
+		{
+			return lastModified;
+		}
+	}
+
+	private static class TrackedDirectory
+	{
+		private long lastModified;
+		private final Set<String> files = new HashSet<String>();
+		private final Set<String> directories = new HashSet<String>();
+
+		TrackedDirectory(long lastModified)
+		{
+			this.lastModified = lastModified;
+		}
+	}
+
+	private static class State
+	{
+		private final String root;
+		private final List<TrackedFile> files;
+		private final Map<String, Long> directories;
+
+		State(String root, List<TrackedFile> files, Map<String, Long> directories)
+		{
+			this.root = root;
+			this.files = files;
+			this.directories = directories;
+		}
+	}
+
+	private static final BinaryCodec<State> STATE_CODEC = new BinaryCodec<State>(1)
+	{
+		@Override
+		protected void write(Output out, State state) throws IOException
+		{
+			out.writeString(state.root);
+			out.writeVarInt(state.directories.size());
+
+			for (Map.Entry<String, Long> entry : state.directories.entrySet())
+			{
+				out.writeString(entry.getKey());
+				out.writeVarLong(entry.getValue());
+			}
+
+			out.writeVarInt(state.files.size());
+
+			for (TrackedFile file : state.files)
+			{
+				out.writeString(file.path);
+				out.writeVarLong(file.size);
+				out.writeVarLong(file.lastModified);
+			}
+		}
+
+		@Override
+		protected State read(Input in) throws IOException
+		{
+			String root = in.readString();
+			int directoryCount = in.readSize();
+			Map<String, Long> directories = new HashMap<String, Long>(directoryCount * 2);
+
+			for (int i = 0; i < directoryCount; i++)
+			{
+				directories.put(in.readString(), in.readVarLong());
+			}
+
+			int fileCount = in.readSize();
+			List<TrackedFile> files = new ArrayList<TrackedFile>(fileCount);
+
+			for (int i = 0; i < fileCount; i++)
+			{
+				files.add(new TrackedFile(in.readString(), in.readVarLong(), in.readVarLong()));
+			}
+
+			return new State(root, files, directories);
+		}
+	};
+}
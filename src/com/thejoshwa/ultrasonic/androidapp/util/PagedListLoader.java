@@ -0,0 +1,208 @@
+package com.thejoshwa.ultrasonic.androidapp.util;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+import android.widget.AbsListView;
+
+import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory;
+import com.thejoshwa.ultrasonic.androidapp.service.MusicService;
+import com.thejoshwa.ultrasonic.androidapp.service.MusicServiceFactory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads a list, such as an album list, one page at a time. When the list is scrolled into the
+ * last half page of the loaded entries, the next page is loaded in the background and handed to
+ * {@link #pageLoaded}, so that it can be added to the adapter before the end of the list is reached.
+ * <p/>
+ * Pages are cached by list and offset for the directory cache time, so that reopening a list or
+ * loading a page again does not go to the server.
+ */
+public abstract class PagedListLoader implements AbsListView.OnScrollListener
+{
+	private static final String TAG = PagedListLoader.class.getSimpleName();
+	private static final int PAGE_CACHE_SIZE = 50;
+	private static final LRUCache<String, TimeLimitedCache<MusicDirectory>> pages = new LRUCache<String, TimeLimitedCache<MusicDirectory>>(PAGE_CACHE_SIZE);
+
+	private final Context context;
+	private final String key;
+	private final int pageSize;
+	private final boolean cacheable;
+	private final AbsListView.OnScrollListener scrollListener;
+	private final Handler handler = new Handler();
+	private int nextOffset;
+	private boolean loading;
+	private boolean complete;
+	private boolean failed;
+	private volatile boolean refresh;
+	private volatile boolean cancelled;
+
+	/**
+	 * @param key            identifies the list in the page cache, for example the album list type
+	 * @param pageSize       the number of entries requested per page
+	 * @param cacheable      false if every request returns different entries, like random albums
+	 * @param scrollListener a listener that scroll events are passed on to, or null
+	 */
+	protected PagedListLoader(Context context, String key, int pageSize, boolean cacheable, AbsListView.OnScrollListener scrollListener)
+	{
+		this.context = context.getApplicationContext();
+		this.key = key;
+		this.pageSize = pageSize;
+		this.cacheable = cacheable;
+		this.scrollListener = scrollListener;
+	}
+
+	protected abstract MusicDirectory loadPage(MusicService musicService, int offset, int size, Context context, ProgressListener progressListener) throws Exception;
+
+	/**
+	 * Called on the main thread with the entries of the next page.
+	 */
+	protected abstract void pageLoaded(List<MusicDirectory.Entry> entries, boolean hasMore);
+
+	/**
+	 * Called on the main thread if the next page failed to load. Loading is tried again when the list is scrolled.
+	 */
+	protected void pageFailed(Throwable error)
+	{
+		Log.w(TAG, String.format("Failed to load page %d of %s", nextOffset / Math.max(pageSize, 1), key), error);
+	}
+
+	/**
+	 * Returns the page at the given offset, from the cache if possible. Used for the first page,
+	 * which is loaded by the caller. If the first page is refreshed, the following pages are too.
+	 * The returned directory is a copy, so its entries can be added to.
+	 */
+	public MusicDirectory getPage(int offset, boolean refresh, ProgressListener progressListener) throws Exception
+	{
+		this.refresh |= refresh;
+		String pageKey = getPageKey(offset);
+		TimeLimitedCache<MusicDirectory> cache = this.refresh || !cacheable ? null : pages.get(pageKey);
+		MusicDirectory page = cache == null ? null : cache.get();
+
+		if (page == null)
+		{
+			page = loadPage(MusicServiceFactory.getMusicService(context), offset, pageSize, context, progressListener);
+
+			if (cacheable)
+			{
+				cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
+				cache.set(page);
+				pages.put(pageKey, cache);
+			}
+		}
+		else
+		{
+			Log.d(TAG, String.format("Using cached page %s", pageKey));
+		}
+
+		MusicDirectory copy = new MusicDirectory();
+		copy.setName(page.getName());
+		copy.addAll(page.getChildren());
+		return copy;
+	}
+
+	private String getPageKey(int offset)
+	{
+		return String.format("%s %s %d %d", Util.getRestUrl(context, null), key, pageSize, offset);
+	}
+
+	/**
+	 * Sets the offset of the page after the ones already shown, and whether there is one.
+	 */
+	public void setNextOffset(int nextOffset, boolean hasMore)
+	{
+		this.nextOffset = nextOffset;
+		complete = !hasMore;
+	}
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState)
+	{
+		if (scrollState == SCROLL_STATE_TOUCH_SCROLL)
+		{
+			failed = false;
+		}
+
+		if (scrollListener != null)
+		{
+			scrollListener.onScrollStateChanged(view, scrollState);
+		}
+	}
+
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount)
+	{
+		if (totalItemCount > 0 && firstVisibleItem + visibleItemCount >= totalItemCount - pageSize / 2)
+		{
+			loadNextPage();
+		}
+
+		if (scrollListener != null)
+		{
+			scrollListener.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+		}
+	}
+
+	private void loadNextPage()
+	{
+		if (loading || complete || failed || cancelled || pageSize <= 0)
+		{
+			return;
+		}
+
+		loading = true;
+		final int offset = nextOffset;
+
+		new Thread("PagedListLoader")
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					final MusicDirectory page = getPage(offset, refresh, null);
+
+					handler.post(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							loading = false;
+
+							if (!cancelled)
+							{
+								List<MusicDirectory.Entry> entries = page.getChildren();
+								setNextOffset(offset + pageSize, entries.size() >= pageSize);
+								pageLoaded(entries, !complete);
+							}
+						}
+					});
+				}
+				catch (final Throwable x)
+				{
+					handler.post(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							loading = false;
+							failed = true;
+
+							if (!cancelled)
+							{
+								pageFailed(x);
+							}
+						}
+					});
+				}
+			}
+		}.start();
+	}
+
+	public void cancel()
+	{
+		cancelled = true;
+	}
+}
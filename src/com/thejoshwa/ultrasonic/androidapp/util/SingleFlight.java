@@ -0,0 +1,128 @@
+package com.thejoshwa.ultrasonic.androidapp.util;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Coalesces concurrent requests for the same key, so that only the first caller
+ * executes the request and the others wait for and share its result.
+ * <p/>
+ * If the executing caller fails, the waiting callers receive the same exception,
+ * unless it was cancelled, in which case one of them executes the request again.
+ */
+public class SingleFlight<K, V>
+{
+	private final Map<K, Flight<V>> flights = new HashMap<K, Flight<V>>();
+	private long executedCount;
+	private long coalescedCount;
+
+	public V execute(K key, Callable<V> callable) throws Exception
+	{
+		while (true)
+		{
+			Flight<V> flight;
+			boolean leader = false;
+
+			synchronized (flights)
+			{
+				flight = flights.get(key);
+
+				if (flight == null)
+				{
+					flight = new Flight<V>();
+					flights.put(key, flight);
+					executedCount++;
+					leader = true;
+				}
+				else
+				{
+					coalescedCount++;
+				}
+			}
+
+			if (leader)
+			{
+				return lead(key, flight, callable);
+			}
+
+			flight.latch.await();
+
+			if (!flight.cancelled)
+			{
+				return flight.getResult();
+			}
+		}
+	}
+
+	public long getExecutedCount()
+	{
+		synchronized (flights)
+		{
+			return executedCount;
+		}
+	}
+
+	public long getCoalescedCount()
+	{
+		synchronized (flights)
+		{
+			return coalescedCount;
+		}
+	}
+
+	private V lead(K key, Flight<V> flight, Callable<V> callable) throws Exception
+	{
+		try
+		{
+			V result = callable.call();
+			flight.result = result;
+			return result;
+		}
+		catch (Exception x)
+		{
+			flight.failure = x;
+			flight.cancelled = x instanceof InterruptedException || x instanceof InterruptedIOException || Thread.currentThread().isInterrupted();
+			throw x;
+		}
+		catch (Error x)
+		{
+			flight.failure = x;
+			throw x;
+		}
+		finally
+		{
+			synchronized (flights)
+			{
+				flights.remove(key);
+			}
+
+			flight.latch.countDown();
+		}
+	}
+
+	private static final class Flight<V>
+	{
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private volatile V result;
+		private volatile Throwable failure;
+		private volatile boolean cancelled;
+
+		private V getResult() throws Exception
+		{
+			if (failure instanceof Error)
+			{
+				throw (Error) failure;
+			}
+
+			if (failure != null)
+			{
+				throw (Exception) failure;
+			}
+
+			return result;
+		}
+	}
+}
@@ -2,54 +2,69 @@ package com.thejoshwa.ultrasonic.androidapp.util;
 
 import android.util.Log;
 
-import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory;
 import com.thejoshwa.ultrasonic.androidapp.service.DownloadFile;
 import com.thejoshwa.ultrasonic.androidapp.service.DownloadService;
 
-import org.apache.http.HttpRequest;
-import org.apache.http.message.BasicHttpRequest;
-
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
 import java.net.URLDecoder;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
 import java.util.StringTokenizer;
-
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves partially downloaded files to the media player over HTTP.
+ * <p/>
+ * All connections are handled by a single thread running a selector loop. Each connection
+ * is a small state machine that reads a request, sends the response header and then sends
+ * the file with {@link FileChannel#transferTo}, parking itself until the download makes
+ * progress whenever it has caught up. Range requests and keep-alive are supported, so that
+ * seeking does not need a new connection.
+ */
 public class StreamProxy implements Runnable
 {
 	private static final String TAG = StreamProxy.class.getSimpleName();
+	private static final int MAX_CONNECTIONS = 4;
+	private static final int MAX_REQUEST_LENGTH = 8192;
+	private static final long SELECT_TIMEOUT = 5000L;
+	private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d*)-(\\d*)");
 
 	private Thread thread;
-	private boolean isRunning;
-	private ServerSocket socket;
+	private volatile boolean isRunning;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
 	private int port;
-	private DownloadService downloadService;
+	private final DownloadService downloadService;
+	private final LinkedList<Connection> connections = new LinkedList<Connection>();
 
 	public StreamProxy(DownloadService downloadService)
 	{
+		this.downloadService = downloadService;
 
 		// Create listening socket
 		try
 		{
-			socket = new ServerSocket(0, 0, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
-			socket.setSoTimeout(5000);
-			port = socket.getLocalPort();
-			this.downloadService = downloadService;
-		}
-		catch (UnknownHostException e)
-		{ // impossible
+			selector = Selector.open();
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}), 0));
+			serverChannel.configureBlocking(false);
+			port = serverChannel.socket().getLocalPort();
 		}
 		catch (IOException e)
 		{
@@ -64,235 +79,507 @@ public class StreamProxy implements Runnable
 
 	public void start()
 	{
-		thread = new Thread(this);
+		isRunning = true;
+		thread = new Thread(this, "StreamProxy");
 		thread.start();
 	}
 
 	public void stop()
 	{
 		isRunning = false;
-		thread.interrupt();
+
+		if (selector != null)
+		{
+			selector.wakeup();
+		}
 	}
 
 	@Override
 	public void run()
 	{
-		isRunning = true;
-		while (isRunning)
+		try
 		{
-			try
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+			while (isRunning)
 			{
-				Socket client = socket.accept();
-				if (client == null)
-				{
-					continue;
-				}
-				Log.i(TAG, "Client connected");
+				selector.select(SELECT_TIMEOUT);
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
 
-				StreamToMediaPlayerTask task = new StreamToMediaPlayerTask(client);
-				if (task.processRequest())
+				while (iterator.hasNext())
 				{
-					new Thread(task).start();
+					SelectionKey key = iterator.next();
+					iterator.remove();
+
+					if (!key.isValid())
+					{
+						continue;
+					}
+
+					if (key.isAcceptable())
+					{
+						accept();
+						continue;
+					}
+
+					Connection connection = (Connection) key.attachment();
+
+					try
+					{
+						if (key.isReadable())
+						{
+							connection.onReadable();
+						}
+
+						if (key.isValid() && key.isWritable())
+						{
+							connection.onWritable();
+						}
+					}
+					catch (IOException e)
+					{
+						Log.i(TAG, String.format("Proxy client has probably closed: %s", e.getLocalizedMessage()));
+						connection.close();
+					}
 				}
 
+				resumeWaitingConnections();
 			}
-			catch (SocketTimeoutException e)
+		}
+		catch (Exception e)
+		{
+			Log.e(TAG, "Exception thrown from proxy selector loop", e);
+		}
+		finally
+		{
+			for (Connection connection : new ArrayList<Connection>(connections))
+			{
+				connection.close();
+			}
+
+			Util.close(serverChannel);
+
+			try
 			{
-				// Do nothing
+				selector.close();
 			}
 			catch (IOException e)
 			{
-				Log.e(TAG, "Error connecting to client", e);
+				Log.w(TAG, "IOException while closing selector", e);
 			}
 		}
+
 		Log.i(TAG, "Proxy interrupted. Shutting down.");
 	}
 
-	private class StreamToMediaPlayerTask implements Runnable
+	private void accept() throws IOException
 	{
+		SocketChannel channel = serverChannel.accept();
+
+		if (channel == null)
+		{
+			return;
+		}
 
-		String localPath;
-		Socket client;
-		int cbSkip;
+		Log.i(TAG, "Client connected");
 
-		public StreamToMediaPlayerTask(Socket client)
+		// The media player abandons its old connection when seeking, so drop the oldest one
+		if (connections.size() >= MAX_CONNECTIONS)
 		{
-			this.client = client;
+			Log.i(TAG, String.format("Too many proxy clients, closing the oldest of %d", connections.size()));
+			connections.getFirst().close();
 		}
 
-		private HttpRequest readRequest()
+		channel.configureBlocking(false);
+		Connection connection = new Connection(channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+		connections.addLast(connection);
+	}
+
+	private void resumeWaitingConnections()
+	{
+		for (Connection connection : new ArrayList<Connection>(connections))
 		{
-			HttpRequest request;
-			InputStream is;
-			String firstLine;
-			try
+			if (connection.state == State.WAITING_FOR_DATA && connection.hasDataToSend())
 			{
-				is = client.getInputStream();
-				BufferedReader reader = new BufferedReader(new InputStreamReader(is), 8192);
-				firstLine = reader.readLine();
+				connection.setState(State.SENDING_BODY);
 			}
-			catch (IOException e)
+		}
+	}
+
+	private DownloadFile getDownloadFile(String path)
+	{
+		for (DownloadFile downloadFile : downloadService.getDownloads())
+		{
+			if (path.equals(downloadFile.getPartialFile().getPath()) || path.equals(downloadFile.getCompleteFile().getPath()))
+			{
+				return downloadFile;
+			}
+		}
+
+		return null;
+	}
+
+	private enum State
+	{
+		READING_REQUEST,
+		SENDING_HEADER,
+		SENDING_BODY,
+		WAITING_FOR_DATA
+	}
+
+	private class Connection implements DownloadFile.OnDownloadProgressListener
+	{
+		private final SocketChannel channel;
+		private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_LENGTH);
+		private SelectionKey key;
+		private State state = State.READING_REQUEST;
+		private ByteBuffer header;
+		private boolean keepAlive;
+		private boolean sendBody;
+		private DownloadFile downloadFile;
+		private RandomAccessFile file;
+		private FileChannel fileChannel;
+		private long position;
+		private long end;
+
+		public Connection(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		@Override
+		public void onDownloadProgress(DownloadFile downloadFile)
+		{
+			// Called on the download thread, the selector loop checks whether there is something to send
+			selector.wakeup();
+		}
+
+		public void onReadable() throws IOException
+		{
+			if (!request.hasRemaining())
 			{
-				Log.e(TAG, "Error parsing request", e);
-				return null;
+				Log.w(TAG, "Proxy client sent too much data, closing connection");
+				close();
+				return;
 			}
 
-			if (firstLine == null)
+			if (channel.read(request) == -1)
 			{
-				Log.i(TAG, "Proxy client closed connection without a request.");
-				return null;
+				close();
+				return;
 			}
 
-			StringTokenizer st = new StringTokenizer(firstLine);
-			String method = st.nextToken();
-			String uri = st.nextToken();
-			String realUri = uri.substring(1);
-			Log.i(TAG, realUri);
-			request = new BasicHttpRequest(method, realUri);
-			return request;
+			if (state == State.READING_REQUEST)
+			{
+				processRequest();
+			}
 		}
 
-		public boolean processRequest()
+		public void onWritable() throws IOException
 		{
-			HttpRequest request = readRequest();
-			if (request == null)
+			if (state == State.SENDING_HEADER)
 			{
-				return false;
+				channel.write(header);
+
+				if (header.hasRemaining())
+				{
+					return;
+				}
+
+				if (!sendBody)
+				{
+					finishResponse();
+					return;
+				}
+
+				state = State.SENDING_BODY;
 			}
 
-			// Read HTTP headers
-			Log.i(TAG, "Processing request");
+			if (state == State.SENDING_BODY)
+			{
+				sendBody();
+			}
+		}
+
+		private void processRequest() throws IOException
+		{
+			int headerEnd = getHeaderEnd();
+
+			if (headerEnd == -1)
+			{
+				if (!request.hasRemaining())
+				{
+					keepAlive = false;
+					respondError("400 Bad Request");
+				}
+
+				return;
+			}
+
+			String text = new String(request.array(), 0, headerEnd, "ISO-8859-1");
+
+			// Keep anything sent after the header for the next request
+			request.flip();
+			request.position(headerEnd + 4);
+			request.compact();
+
+			handleRequest(text);
+		}
+
+		private int getHeaderEnd()
+		{
+			byte[] bytes = request.array();
+
+			for (int i = 0; i + 3 < request.position(); i++)
+			{
+				if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n')
+				{
+					return i;
+				}
+			}
+
+			return -1;
+		}
+
+		private void handleRequest(String text) throws IOException
+		{
+			String[] lines = text.split("\r\n");
+			StringTokenizer st = new StringTokenizer(lines[0]);
+
+			if (st.countTokens() < 2)
+			{
+				keepAlive = false;
+				respondError("400 Bad Request");
+				return;
+			}
+
+			String method = st.nextToken();
+			String uri = st.nextToken();
+			String version = st.hasMoreTokens() ? st.nextToken() : "HTTP/1.0";
+			Map<String, String> headers = new HashMap<String, String>();
+
+			for (int i = 1; i < lines.length; i++)
+			{
+				int colon = lines[i].indexOf(':');
+
+				if (colon > 0)
+				{
+					headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US), lines[i].substring(colon + 1).trim());
+				}
+			}
+
+			String connectionHeader = headers.get("connection");
+			keepAlive = "HTTP/1.1".equals(version) ? !"close".equalsIgnoreCase(connectionHeader) : "keep-alive".equalsIgnoreCase(connectionHeader);
+
+			Log.i(TAG, String.format("%s %s (range: %s)", method, uri, headers.get("range")));
+
+			if (!"GET".equals(method) && !"HEAD".equals(method))
+			{
+				respondError("405 Method Not Allowed");
+				return;
+			}
+
+			String localPath;
 
 			try
 			{
-				localPath = URLDecoder.decode(request.getRequestLine().getUri(), Constants.UTF_8);
+				localPath = URLDecoder.decode(uri.substring(1), Constants.UTF_8);
 			}
 			catch (UnsupportedEncodingException e)
 			{
 				Log.e(TAG, "Unsupported encoding", e);
-				return false;
+				keepAlive = false;
+				respondError("400 Bad Request");
+				return;
 			}
 
-			Log.i(TAG, String.format("Processing request for file %s", localPath));
-			File file = new File(localPath);
-			if (!file.exists())
+			downloadFile = getDownloadFile(localPath);
+			File localFile = downloadFile == null ? null : downloadFile.isCompleteFileAvailable() ? downloadFile.getCompleteFile() : downloadFile.getPartialFile();
+
+			if (localFile == null || !localFile.exists())
 			{
 				Log.e(TAG, String.format("File %s does not exist", localPath));
-				return false;
+				respondError("404 Not Found");
+				return;
 			}
 
-			return true;
+			// Keep the file open for the whole response, it stays valid when the finished download is renamed
+			file = new RandomAccessFile(localFile, "r");
+			fileChannel = file.getChannel();
+
+			long length = downloadFile.isWorkDone() ? fileChannel.size() : downloadFile.getExpectedLength();
+			boolean get = "GET".equals(method);
+			position = 0L;
+			end = length;
+
+			Matcher range = RANGE_PATTERN.matcher(headers.containsKey("range") ? headers.get("range") : "");
+
+			// Without a known length the range can't be described, so the whole file is sent instead
+			if (length >= 0 && range.matches() && (range.group(1).length() > 0 || range.group(2).length() > 0))
+			{
+				if (range.group(1).length() == 0)
+				{
+					position = Math.max(0L, length - Long.parseLong(range.group(2)));
+				}
+				else
+				{
+					position = Long.parseLong(range.group(1));
+					end = range.group(2).length() == 0 ? length : Math.min(length, Long.parseLong(range.group(2)) + 1);
+				}
+
+				if (position >= end)
+				{
+					closeFile();
+					respond("416 Requested Range Not Satisfiable", String.format("Content-Range: bytes */%d\r\nContent-Length: 0\r\n", length), false);
+					return;
+				}
+
+				respond("206 Partial Content", String.format("Content-Range: bytes %d-%d/%d\r\nContent-Length: %d\r\n", position, end - 1, length, end - position), get);
+			}
+			else if (length >= 0)
+			{
+				respond("200 OK", String.format("Content-Length: %d\r\n", length), get);
+			}
+			else
+			{
+				// The end of the response can only be signalled by closing the connection
+				keepAlive = false;
+				respond("200 OK", "", get);
+			}
 		}
 
-		@Override
-		public void run()
+		private void respondError(String status)
+		{
+			respond(status, "Content-Length: 0\r\n", false);
+		}
+
+		private void respond(String status, String extraHeaders, boolean sendBody)
 		{
-			Log.i(TAG, "Streaming song in background");
-			DownloadFile downloadFile = downloadService.getCurrentPlaying();
-			MusicDirectory.Entry song = downloadFile.getSong();
-			long fileSize = downloadFile.getBitRate() * ((song.getDuration() != null) ? song.getDuration() : 0) * 1000 / 8;
-			Log.i(TAG, String.format("Streaming fileSize: %d", fileSize));
-
-			// Create HTTP header
-			String headers = "HTTP/1.0 200 OK\r\n";
+			String headers = String.format("HTTP/1.1 %s\r\n", status);
 			headers += "Content-Type: application/octet-stream\r\n";
-			headers += "Connection: close\r\n";
+			headers += "Accept-Ranges: bytes\r\n";
+			headers += extraHeaders;
+			headers += String.format("Connection: %s\r\n", keepAlive ? "keep-alive" : "close");
 			headers += "\r\n";
 
-			long cbToSend = fileSize - cbSkip;
-			OutputStream output = null;
-			byte[] buff = new byte[64 * 1024];
+			header = ByteBuffer.wrap(headers.getBytes());
+			this.sendBody = sendBody;
+			setState(State.SENDING_HEADER);
+		}
 
-			try
+		private boolean hasDataToSend()
+		{
+			return downloadFile.isWorkDone() || downloadFile.getDownloadedLength() > position;
+		}
+
+		private void sendBody() throws IOException
+		{
+			boolean workDone = downloadFile.isWorkDone();
+			long size = fileChannel.size();
+			long available = size;
+
+			// Only send what has been downloaded contiguously, a segmented download may leave gaps further on
+			if (!workDone)
 			{
-				output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
-				output.write(headers.getBytes());
+				available = Math.min(available, downloadFile.getDownloadedLength());
+			}
 
-				if (!downloadFile.isWorkDone())
-				{
-					// Loop as long as there's stuff to send
-					while (isRunning && !client.isClosed())
-					{
-						// See if there's more to send
-						File file = downloadFile.isCompleteFileAvailable() ? downloadFile.getCompleteFile() : downloadFile.getPartialFile();
-						int cbSentThisBatch = 0;
+			if (end >= 0)
+			{
+				available = Math.min(available, end);
+			}
 
-						if (file.exists())
-						{
-							FileInputStream input = new FileInputStream(file);
-
-							try
-							{
-								long skip = input.skip(cbSkip);
-								int cbToSendThisBatch = input.available();
-
-								while (cbToSendThisBatch > 0)
-								{
-									int cbToRead = Math.min(cbToSendThisBatch, buff.length);
-									int cbRead = input.read(buff, 0, cbToRead);
-
-									if (cbRead == -1)
-									{
-										break;
-									}
-
-									cbToSendThisBatch -= cbRead;
-									cbToSend -= cbRead;
-									output.write(buff, 0, cbRead);
-									output.flush();
-									cbSkip += cbRead;
-									cbSentThisBatch += cbRead;
-								}
-							}
-							finally
-							{
-								input.close();
-							}
-
-							// Done regardless of whether or not it thinks it is
-							if (downloadFile.isWorkDone() && cbSkip >= file.length())
-							{
-								break;
-							}
-						}
+			if (position < available)
+			{
+				position += fileChannel.transferTo(position, available - position, channel);
+				return;
+			}
 
-						// If we did nothing this batch, block for a second
-						if (cbSentThisBatch == 0)
-						{
-							Log.d(TAG, String.format("Blocking until more data appears (%d)", cbToSend));
-							Util.sleepQuietly(1000L);
-						}
-					}
-				}
-				else
-				{
-					Log.w(TAG, "Requesting data for completely downloaded file");
-				}
+			if (end >= 0 ? position >= end : workDone)
+			{
+				finishResponse();
 			}
-			catch (SocketException socketException)
+			else if (workDone)
 			{
-				Log.e(TAG, "SocketException() thrown, proxy client has probably closed. This can exit harmlessly");
+				Log.w(TAG, String.format("%s is shorter than expected, closing connection", downloadFile));
+				close();
 			}
-			catch (Exception e)
+			else
 			{
-				Log.e(TAG, "Exception thrown from streaming task:");
-				Log.e(TAG, String.format("%s : %s", e.getClass().getName(), e.getLocalizedMessage()));
+				setState(State.WAITING_FOR_DATA);
 			}
+		}
 
-			// Cleanup
-			try
+		private void finishResponse() throws IOException
+		{
+			closeFile();
+
+			if (!keepAlive)
 			{
-				if (output != null)
-				{
-					output.close();
-				}
-				client.close();
+				close();
+				return;
 			}
-			catch (IOException e)
+
+			setState(State.READING_REQUEST);
+
+			// The next request may already have been received
+			processRequest();
+		}
+
+		private void setState(State state)
+		{
+			if (this.state == State.WAITING_FOR_DATA)
 			{
-				Log.e(TAG, "IOException while cleaning up streaming task:");
-				Log.e(TAG, String.format("%s : %s", e.getClass().getName(), e.getLocalizedMessage()));
+				downloadFile.removeOnDownloadProgressListener(this);
 			}
+
+			this.state = state;
+
+			if (!key.isValid())
+			{
+				return;
+			}
+
+			switch (state)
+			{
+				case READING_REQUEST:
+					key.interestOps(SelectionKey.OP_READ);
+					break;
+				case WAITING_FOR_DATA:
+					// Keep reading, to notice when the client goes away
+					downloadFile.addOnDownloadProgressListener(this);
+					key.interestOps(SelectionKey.OP_READ);
+					break;
+				default:
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					break;
+			}
+		}
+
+		private void closeFile()
+		{
+			Util.close(file);
+			file = null;
+			fileChannel = null;
+		}
+
+		public void close()
+		{
+			if (state == State.WAITING_FOR_DATA)
+			{
+				downloadFile.removeOnDownloadProgressListener(this);
+			}
+
+			closeFile();
+
+			if (key != null)
+			{
+				key.cancel();
+			}
+
+			Util.close(channel);
+			connections.remove(this);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -78,7 +78,8 @@ public abstract class TabActivityBackgroundTask<T> extends BackgroundTask<T>
 		}.start();
 	}
 
-	private boolean isCancelled()
+	@Override
+	public boolean isCancelled()
 	{
 		return tabActivity.getIsDestroyed();
 	}
@@ -22,6 +22,12 @@ import java.lang.ref.SoftReference;
 import java.util.concurrent.TimeUnit;
 
 /**
+ * Caches a single value for a limited time.
+ * <p/>
+ * A cache created with a stale time keeps serving its value through {@link #getStale()} after
+ * it expired, until the stale time has passed as well. This lets callers return the old value
+ * immediately and refresh it in the background, see {@link #beginRefresh()}.
+ *
  * @author Sindre Mehus
  * @version $Id$
  */
@@ -30,30 +36,65 @@ public class TimeLimitedCache<T>
 
 	private SoftReference<T> value;
 	private final long ttlMillis;
+	private final long staleMillis;
 	private long expires;
+	private boolean refreshing;
 
 	public TimeLimitedCache(long ttl, TimeUnit timeUnit)
+	{
+		this(ttl, 0L, timeUnit);
+	}
+
+	public TimeLimitedCache(long ttl, long stale, TimeUnit timeUnit)
 	{
 		this.ttlMillis = TimeUnit.MILLISECONDS.convert(ttl, timeUnit);
+		this.staleMillis = TimeUnit.MILLISECONDS.convert(stale, timeUnit);
 	}
 
-	public T get()
+	public synchronized T get()
 	{
 		return System.currentTimeMillis() < expires ? value.get() : null;
 	}
 
+	/**
+	 * Returns the value, even if it has expired, as long as it is within the stale time.
+	 */
+	public synchronized T getStale()
+	{
+		return System.currentTimeMillis() < expires + staleMillis ? value.get() : null;
+	}
+
+	/**
+	 * Marks the value as being refreshed. Returns false if a refresh is already in progress.
+	 */
+	public synchronized boolean beginRefresh()
+	{
+		if (refreshing)
+		{
+			return false;
+		}
+
+		refreshing = true;
+		return true;
+	}
+
+	public synchronized void endRefresh()
+	{
+		refreshing = false;
+	}
+
 	public void set(T value)
 	{
 		set(value, ttlMillis, TimeUnit.MILLISECONDS);
 	}
 
-	public void set(T value, long ttl, TimeUnit timeUnit)
+	public synchronized void set(T value, long ttl, TimeUnit timeUnit)
 	{
 		this.value = new SoftReference<T>(value);
 		expires = System.currentTimeMillis() + timeUnit.toMillis(ttl);
 	}
 
-	public void clear()
+	public synchronized void clear()
 	{
 		expires = 0L;
 		value = null;
@@ -1398,6 +1398,28 @@ public class Util extends DownloadActivity
 		return Integer.parseInt(preferences.getString(Constants.PREFERENCES_KEY_BUFFER_LENGTH, "5"));
 	}
 
+	public static int getDownloadSegments(Context context)
+	{
+		SharedPreferences preferences = getPreferences(context);
+		return Integer.parseInt(preferences.getString(Constants.PREFERENCES_KEY_DOWNLOAD_SEGMENTS, "1"));
+	}
+
+	public static int getMaxConcurrentDownloads(Context context)
+	{
+		ConnectivityManager manager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+		NetworkInfo networkInfo = manager.getActiveNetworkInfo();
+
+		if (networkInfo == null)
+		{
+			return 1;
+		}
+
+		boolean wifi = networkInfo.getType() == ConnectivityManager.TYPE_WIFI;
+		SharedPreferences preferences = getPreferences(context);
+		return Math.max(1, Integer.parseInt(preferences.getString(wifi ? Constants.PREFERENCES_KEY_MAX_DOWNLOADS_WIFI : Constants.PREFERENCES_KEY_MAX_DOWNLOADS_MOBILE, wifi ? "2" : "1")));
+	}
+
 	public static int getIncrementTime(Context context)
 	{
 		SharedPreferences preferences = getPreferences(context);
@@ -1434,6 +1456,12 @@ public class Util extends DownloadActivity
 		return preferences.getBoolean(Constants.PREFERENCES_KEY_ID3_TAGS, false);
 	}
 
+	public static boolean getShouldUseSystemHttpClient(Context context)
+	{
+		SharedPreferences preferences = getPreferences(context);
+		return preferences.getBoolean(Constants.PREFERENCES_KEY_SYSTEM_HTTP_CLIENT, false);
+	}
+
 	public static int getChatRefreshInterval(Context context)
 	{
 		SharedPreferences preferences = getPreferences(context);
@@ -36,20 +36,45 @@ import java.util.List;
 public class ArtistAdapter extends ArrayAdapter<Artist> implements SectionIndexer
 {
 
+	// The sections found so far, extended as artists are appended
+	private final Collection<String> sectionSet = new LinkedHashSet<String>(30);
+	private final List<Integer> positionList = new ArrayList<Integer>(30);
+
 	// Both arrays are indexed by section ID.
-	private final Object[] sections;
-	private final Integer[] positions;
+	private Object[] sections;
+	private Integer[] positions;
 
 	public ArtistAdapter(Context context, List<Artist> artists)
 	{
 		super(context, R.layout.artist_list_item, artists);
+		updateSections(0);
+	}
 
-		Collection<String> sectionSet = new LinkedHashSet<String>(30);
-		List<Integer> positionList = new ArrayList<Integer>(30);
+	/**
+	 * Appends artists to the end of the list, for lists that are filled while being loaded.
+	 */
+	public void addArtists(Collection<Artist> artists)
+	{
+		setNotifyOnChange(false);
+		int start = getCount();
 
-		for (int i = 0; i < artists.size(); i++)
+		for (Artist artist : artists)
+		{
+			add(artist);
+		}
+
+		updateSections(start);
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * Adds the sections that start at or after the given position, which is the first new artist.
+	 */
+	private void updateSections(int start)
+	{
+		for (int i = start; i < getCount(); i++)
 		{
-			Artist artist = artists.get(i);
+			Artist artist = getItem(i);
 			String index = artist.getIndex();
 
 			if (!sectionSet.contains(index))
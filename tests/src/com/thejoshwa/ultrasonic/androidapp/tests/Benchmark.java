@@ -0,0 +1,153 @@
+package com.thejoshwa.ultrasonic.androidapp.tests;
+
+import android.os.Debug;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Measures an operation the way JMH does: the operation is run a number of times to warm up,
+ * and then measured over a number of iterations.
+ * <p/>
+ * The result reports the time per operation, the memory allocated per operation by the calling
+ * thread, and the throughput for operations that transfer data. The server threads of
+ * {@link FakeSubsonicServer} are not counted, as they are not part of the app.
+ */
+public class Benchmark
+{
+	private static final String TAG = Benchmark.class.getSimpleName();
+
+	/**
+	 * An operation to measure.
+	 */
+	public interface Operation
+	{
+		/**
+		 * Runs the operation once, and returns the number of bytes it transferred, or 0.
+		 */
+		long run() throws Exception;
+	}
+
+	private final String name;
+	private final int warmupIterations;
+	private final int iterations;
+
+	public Benchmark(String name, int warmupIterations, int iterations)
+	{
+		this.name = name;
+		this.warmupIterations = warmupIterations;
+		this.iterations = iterations;
+	}
+
+	@SuppressWarnings("deprecation")
+	public Result run(Operation operation) throws Exception
+	{
+		for (int i = 0; i < warmupIterations; i++)
+		{
+			operation.run();
+		}
+
+		long[] nanos = new long[iterations];
+		long allocated = 0L;
+		long bytes = 0L;
+
+		for (int i = 0; i < iterations; i++)
+		{
+			// Garbage of the previous iteration must not be collected during this one
+			System.gc();
+
+			Debug.resetThreadAllocSize();
+			Debug.startAllocCounting();
+			long start = System.nanoTime();
+
+			try
+			{
+				bytes += operation.run();
+			}
+			finally
+			{
+				nanos[i] = System.nanoTime() - start;
+				Debug.stopAllocCounting();
+			}
+
+			allocated += Debug.getThreadAllocSize();
+		}
+
+		Result result = new Result(name, nanos, allocated / iterations, bytes / iterations);
+		Log.i(TAG, result.toString());
+		return result;
+	}
+
+	/**
+	 * The measurements of a benchmark.
+	 */
+	public static class Result
+	{
+		private final String name;
+		private final long[] nanos;
+		private final long allocatedBytes;
+		private final long transferredBytes;
+
+		private Result(String name, long[] nanos, long allocatedBytes, long transferredBytes)
+		{
+			this.name = name;
+			this.nanos = nanos.clone();
+			this.allocatedBytes = allocatedBytes;
+			this.transferredBytes = transferredBytes;
+			Arrays.sort(this.nanos);
+		}
+
+		public double getMeanMillis()
+		{
+			long total = 0L;
+
+			for (long n : nanos)
+			{
+				total += n;
+			}
+
+			return total / (double) nanos.length / 1000000.0;
+		}
+
+		/**
+		 * Returns the time within which the given share of the operations completed, from 0 to 1.
+		 */
+		public double getPercentileMillis(double percentile)
+		{
+			int index = (int) Math.ceil(percentile * nanos.length) - 1;
+			return nanos[Math.max(0, Math.min(index, nanos.length - 1))] / 1000000.0;
+		}
+
+		/**
+		 * Returns the bytes allocated per operation by the thread that ran it.
+		 */
+		public long getAllocatedBytes()
+		{
+			return allocatedBytes;
+		}
+
+		/**
+		 * Returns the bytes transferred per second, or 0 if the operation does not transfer data.
+		 */
+		public double getThroughput()
+		{
+			double meanMillis = getMeanMillis();
+			return meanMillis > 0.0 ? transferredBytes * 1000.0 / meanMillis : 0.0;
+		}
+
+		@Override
+		public String toString()
+		{
+			String text = String.format(Locale.US, "%s: mean %.1f ms, p50 %.1f ms, p90 %.1f ms, max %.1f ms, %d KB allocated/op (%d iterations)",
+					name, getMeanMillis(), getPercentileMillis(0.5), getPercentileMillis(0.9), getPercentileMillis(1.0), allocatedBytes / 1024L, nanos.length);
+
+			if (transferredBytes > 0L)
+			{
+				text += String.format(Locale.US, ", %.0f KB/s", getThroughput() / 1024.0);
+			}
+
+			return text;
+		}
+	}
+}
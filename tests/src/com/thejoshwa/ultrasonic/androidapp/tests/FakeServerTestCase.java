@@ -0,0 +1,83 @@
+package com.thejoshwa.ultrasonic.androidapp.tests;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.InstrumentationTestCase;
+
+import com.thejoshwa.ultrasonic.androidapp.service.RESTMusicService;
+import com.thejoshwa.ultrasonic.androidapp.util.Constants;
+import com.thejoshwa.ultrasonic.androidapp.util.Util;
+
+/**
+ * Runs a {@link FakeSubsonicServer} for each test, and makes it the active server of the app.
+ * <p/>
+ * The server is added as an instance of its own, so that the servers configured by the user
+ * are left alone, and the previously active server and settings are restored afterwards.
+ */
+public abstract class FakeServerTestCase extends InstrumentationTestCase
+{
+	private static final int SERVER_INSTANCE = 99;
+
+	protected Context context;
+	protected Fixtures fixtures;
+	protected FakeSubsonicServer server;
+	protected RESTMusicService musicService;
+	private int previousInstance;
+	private boolean previousServerScaling;
+	private boolean previousSystemHttpClient;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		context = getInstrumentation().getTargetContext();
+		fixtures = new Fixtures();
+		server = new FakeSubsonicServer(fixtures);
+		server.start();
+
+		SharedPreferences preferences = Util.getPreferences(context);
+		previousInstance = preferences.getInt(Constants.PREFERENCES_KEY_SERVER_INSTANCE, 1);
+		previousServerScaling = preferences.getBoolean(Constants.PREFERENCES_KEY_SERVER_SCALING, false);
+		previousSystemHttpClient = preferences.getBoolean(Constants.PREFERENCES_KEY_SYSTEM_HTTP_CLIENT, false);
+
+		SharedPreferences.Editor editor = preferences.edit();
+		editor.putInt(Constants.PREFERENCES_KEY_SERVER_INSTANCE, SERVER_INSTANCE);
+		editor.putString(Constants.PREFERENCES_KEY_SERVER_NAME + SERVER_INSTANCE, "Fake server");
+		editor.putString(Constants.PREFERENCES_KEY_SERVER_URL + SERVER_INSTANCE, server.getUrl());
+		editor.putString(Constants.PREFERENCES_KEY_USERNAME + SERVER_INSTANCE, "admin");
+		editor.putString(Constants.PREFERENCES_KEY_PASSWORD + SERVER_INSTANCE, "admin");
+		editor.putBoolean(Constants.PREFERENCES_KEY_SERVER_SCALING, true);
+		editor.putBoolean(Constants.PREFERENCES_KEY_SYSTEM_HTTP_CLIENT, false);
+		editor.commit();
+
+		// A new service for every test, so that statistics and circuit breakers start fresh
+		musicService = new RESTMusicService();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		server.stop();
+
+		SharedPreferences.Editor editor = Util.getPreferences(context).edit();
+		editor.putInt(Constants.PREFERENCES_KEY_SERVER_INSTANCE, previousInstance);
+		editor.remove(Constants.PREFERENCES_KEY_SERVER_NAME + SERVER_INSTANCE);
+		editor.remove(Constants.PREFERENCES_KEY_SERVER_URL + SERVER_INSTANCE);
+		editor.remove(Constants.PREFERENCES_KEY_USERNAME + SERVER_INSTANCE);
+		editor.remove(Constants.PREFERENCES_KEY_PASSWORD + SERVER_INSTANCE);
+		editor.putBoolean(Constants.PREFERENCES_KEY_SERVER_SCALING, previousServerScaling);
+		editor.putBoolean(Constants.PREFERENCES_KEY_SYSTEM_HTTP_CLIENT, previousSystemHttpClient);
+		editor.commit();
+
+		super.tearDown();
+	}
+
+	/**
+	 * Selects the HTTP client of the system instead of the Apache client.
+	 */
+	protected void useSystemHttpClient()
+	{
+		Util.getPreferences(context).edit().putBoolean(Constants.PREFERENCES_KEY_SYSTEM_HTTP_CLIENT, true).commit();
+	}
+}
@@ -0,0 +1,629 @@
+package com.thejoshwa.ultrasonic.androidapp.tests;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A stand-in for a Subsonic server that runs in the test process and serves the REST responses
+ * of {@link Fixtures}.
+ * <p/>
+ * Every connection is handled by its own thread, with keep-alive, gzip and range requests. The
+ * server can wait before each response, limit the bandwidth of the response bodies and fail
+ * requests on demand, so that the client can be measured and tested against a slow or
+ * unreliable server.
+ */
+public class FakeSubsonicServer
+{
+	private static final String TAG = FakeSubsonicServer.class.getSimpleName();
+	private static final int KEEP_ALIVE_MILLIS = 30000;
+	private static final int CHUNK_SIZE = 8192;
+	private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d*)-(\\d*)");
+	private static final Pattern METHOD_PATTERN = Pattern.compile("/rest/(\\w+)\\.view");
+
+	/**
+	 * The ways in which a request can be made to fail.
+	 */
+	public enum Failure
+	{
+		/**
+		 * Answers with 503 Service Unavailable and an HTML page, as a proxy in front of a stopped server does.
+		 */
+		SERVICE_UNAVAILABLE,
+
+		/**
+		 * Closes the connection without answering.
+		 */
+		DROP_CONNECTION,
+
+		/**
+		 * Sends the headers and half of the body, then closes the connection.
+		 */
+		TRUNCATE
+	}
+
+	private final Fixtures fixtures;
+	private final Random random = new Random();
+	private final LinkedList<Failure> failures = new LinkedList<Failure>();
+	private final Map<String, Integer> requestCounts = new HashMap<String, Integer>();
+	private final Set<Socket> sockets = new HashSet<Socket>();
+	private ExecutorService executor;
+	private ServerSocket serverSocket;
+	private volatile boolean isRunning;
+	private volatile long latencyMillis;
+	private volatile long bytesPerSecond;
+	private volatile double failureRate;
+	private volatile boolean jsonEnabled = true;
+	private volatile boolean compressionEnabled = true;
+
+	public FakeSubsonicServer(Fixtures fixtures)
+	{
+		this.fixtures = fixtures;
+	}
+
+	public void start() throws IOException
+	{
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
+		executor = Executors.newCachedThreadPool();
+		isRunning = true;
+
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				accept();
+			}
+		});
+
+		Log.i(TAG, String.format("Started at %s", getUrl()));
+	}
+
+	public void stop()
+	{
+		isRunning = false;
+		close(serverSocket);
+
+		synchronized (sockets)
+		{
+			for (Socket socket : sockets)
+			{
+				close(socket);
+			}
+		}
+
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns the URL to enter as server address in the app.
+	 */
+	public String getUrl()
+	{
+		return String.format("http://127.0.0.1:%d/", serverSocket.getLocalPort());
+	}
+
+	public Fixtures getFixtures()
+	{
+		return fixtures;
+	}
+
+	/**
+	 * Sets the time the server waits before it answers a request.
+	 */
+	public void setLatency(long latencyMillis)
+	{
+		this.latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * Limits the rate at which response bodies are sent, or removes the limit if zero.
+	 */
+	public void setBandwidth(long bytesPerSecond)
+	{
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * Sets the share of requests that fail with {@link Failure#SERVICE_UNAVAILABLE}, from 0 to 1.
+	 */
+	public void setFailureRate(double failureRate)
+	{
+		this.failureRate = failureRate;
+	}
+
+	/**
+	 * Makes the given number of the next requests fail in the given way.
+	 */
+	public void injectFailures(Failure failure, int count)
+	{
+		synchronized (failures)
+		{
+			for (int i = 0; i < count; i++)
+			{
+				failures.add(failure);
+			}
+		}
+	}
+
+	/**
+	 * Sets whether JSON is sent to clients that ask for it. XML is sent otherwise, as older servers do.
+	 */
+	public void setJsonEnabled(boolean jsonEnabled)
+	{
+		this.jsonEnabled = jsonEnabled;
+	}
+
+	public void setCompressionEnabled(boolean compressionEnabled)
+	{
+		this.compressionEnabled = compressionEnabled;
+	}
+
+	/**
+	 * Returns the number of requests for the given REST method received so far, including failed ones.
+	 */
+	public int getRequestCount(String method)
+	{
+		synchronized (requestCounts)
+		{
+			Integer count = requestCounts.get(method);
+			return count == null ? 0 : count;
+		}
+	}
+
+	public void resetRequestCounts()
+	{
+		synchronized (requestCounts)
+		{
+			requestCounts.clear();
+		}
+	}
+
+	private void accept()
+	{
+		while (isRunning)
+		{
+			try
+			{
+				final Socket socket = serverSocket.accept();
+
+				synchronized (sockets)
+				{
+					sockets.add(socket);
+				}
+
+				executor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						serve(socket);
+					}
+				});
+			}
+			catch (IOException x)
+			{
+				if (isRunning)
+				{
+					Log.w(TAG, "Failed to accept connection", x);
+				}
+			}
+		}
+	}
+
+	private void serve(Socket socket)
+	{
+		try
+		{
+			socket.setSoTimeout(KEEP_ALIVE_MILLIS);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			Request request;
+
+			while (isRunning && (request = Request.read(in)) != null)
+			{
+				if (!respond(request, out))
+				{
+					break;
+				}
+			}
+		}
+		catch (SocketException x)
+		{
+			// Closed by the client or by stop()
+		}
+		catch (IOException x)
+		{
+			Log.w(TAG, "Failed to serve connection", x);
+		}
+		finally
+		{
+			synchronized (sockets)
+			{
+				sockets.remove(socket);
+			}
+
+			close(socket);
+		}
+	}
+
+	/**
+	 * Answers a request, and returns whether the connection can be used for the next one.
+	 */
+	private boolean respond(Request request, OutputStream out) throws IOException
+	{
+		Matcher matcher = METHOD_PATTERN.matcher(request.path);
+		String method = matcher.find() ? matcher.group(1) : request.path;
+
+		synchronized (requestCounts)
+		{
+			requestCounts.put(method, getRequestCount(method) + 1);
+		}
+
+		if (latencyMillis > 0)
+		{
+			sleep(latencyMillis);
+		}
+
+		Failure failure = nextFailure();
+
+		if (failure == Failure.DROP_CONNECTION)
+		{
+			return false;
+		}
+
+		if (failure == Failure.SERVICE_UNAVAILABLE)
+		{
+			byte[] body = "<html><body><h1>503 Service Unavailable</h1></body></html>".getBytes(Fixtures.UTF_8);
+			writeHeaders(out, "503 Service Unavailable", "text/html", body.length, null);
+			out.write(body);
+			out.flush();
+			return true;
+		}
+
+		boolean truncate = failure == Failure.TRUNCATE;
+
+		if ("stream".equals(method) || "download".equals(method))
+		{
+			return writeStream(request, out, truncate);
+		}
+
+		boolean json = jsonEnabled && "json".equals(request.parameters.get("f"));
+		byte[] body = "getCoverArt".equals(method) ? fixtures.getCoverArt() : null;
+		String contentType = "image/jpeg";
+
+		if (body == null)
+		{
+			body = fixtures.getResponse(method, json);
+			contentType = json ? "application/json; charset=UTF-8" : "text/xml; charset=UTF-8";
+		}
+
+		String extraHeaders = null;
+
+		if (compressionEnabled && !contentType.startsWith("image/") && request.accepts("gzip"))
+		{
+			body = gzip(body);
+			extraHeaders = "Content-Encoding: gzip\r\n";
+		}
+
+		writeHeaders(out, "200 OK", contentType, body.length, extraHeaders);
+		write(out, body, truncate ? body.length / 2 : body.length);
+		return !truncate;
+	}
+
+	private boolean writeStream(Request request, OutputStream out, boolean truncate) throws IOException
+	{
+		long length = fixtures.getStreamLength();
+		long start = 0L;
+		long end = length - 1;
+		String range = request.headers.get("range");
+		Matcher matcher = range == null ? null : RANGE_PATTERN.matcher(range);
+
+		if (matcher != null && matcher.matches() && matcher.group(1).length() > 0)
+		{
+			start = Long.parseLong(matcher.group(1));
+
+			if (matcher.group(2).length() > 0)
+			{
+				end = Math.min(end, Long.parseLong(matcher.group(2)));
+			}
+
+			String contentRange = String.format(Locale.US, "Content-Range: bytes %d-%d/%d\r\n", start, end, length);
+			writeHeaders(out, "206 Partial Content", "audio/mpeg", end - start + 1, contentRange);
+		}
+		else
+		{
+			writeHeaders(out, "200 OK", "audio/mpeg", length, null);
+		}
+
+		byte[] buffer = new byte[CHUNK_SIZE];
+		Throttle throttle = new Throttle(bytesPerSecond);
+		long last = truncate ? start + (end - start) / 2 : end;
+
+		for (long position = start; position <= last; position += buffer.length)
+		{
+			int n = (int) Math.min(buffer.length, last - position + 1);
+			Fixtures.fillStream(position, buffer, n);
+			out.write(buffer, 0, n);
+			throttle.sent(out, n);
+		}
+
+		out.flush();
+		return !truncate;
+	}
+
+	private static void writeHeaders(OutputStream out, String status, String contentType, long contentLength, String extraHeaders) throws IOException
+	{
+		StringBuilder builder = new StringBuilder();
+		builder.append("HTTP/1.1 ").append(status).append("\r\n");
+		builder.append("Content-Type: ").append(contentType).append("\r\n");
+		builder.append("Content-Length: ").append(contentLength).append("\r\n");
+		builder.append("Accept-Ranges: bytes\r\n");
+		builder.append("Connection: keep-alive\r\n");
+
+		if (extraHeaders != null)
+		{
+			builder.append(extraHeaders);
+		}
+
+		builder.append("\r\n");
+		out.write(builder.toString().getBytes("ISO-8859-1"));
+	}
+
+	private void write(OutputStream out, byte[] body, int length) throws IOException
+	{
+		Throttle throttle = new Throttle(bytesPerSecond);
+
+		for (int offset = 0; offset < length; offset += CHUNK_SIZE)
+		{
+			int n = Math.min(CHUNK_SIZE, length - offset);
+			out.write(body, offset, n);
+			throttle.sent(out, n);
+		}
+
+		out.flush();
+	}
+
+	private Failure nextFailure()
+	{
+		synchronized (failures)
+		{
+			if (!failures.isEmpty())
+			{
+				return failures.removeFirst();
+			}
+		}
+
+		synchronized (random)
+		{
+			return failureRate > 0.0 && random.nextDouble() < failureRate ? Failure.SERVICE_UNAVAILABLE : null;
+		}
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4);
+		GZIPOutputStream out = new GZIPOutputStream(bytes);
+		out.write(data);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static void sleep(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException x)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void close(ServerSocket socket)
+	{
+		try
+		{
+			if (socket != null)
+			{
+				socket.close();
+			}
+		}
+		catch (IOException x)
+		{
+			// Ignored
+		}
+	}
+
+	private static void close(Socket socket)
+	{
+		try
+		{
+			if (socket != null)
+			{
+				socket.close();
+			}
+		}
+		catch (IOException x)
+		{
+			// Ignored
+		}
+	}
+
+	/**
+	 * Holds back the sender so that the data sent since the throttle was created does not exceed the bandwidth.
+	 */
+	private static final class Throttle
+	{
+		private final long bytesPerSecond;
+		private final long start = System.nanoTime();
+		private long sent;
+
+		private Throttle(long bytesPerSecond)
+		{
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		private void sent(OutputStream out, int count) throws IOException
+		{
+			if (bytesPerSecond <= 0)
+			{
+				return;
+			}
+
+			// The data must leave the buffer, or the client would see it all at once
+			out.flush();
+			sent += count;
+			long due = sent * 1000L / bytesPerSecond;
+			long elapsed = (System.nanoTime() - start) / 1000000L;
+
+			if (due > elapsed)
+			{
+				sleep(due - elapsed);
+			}
+		}
+	}
+
+	/**
+	 * The parts of an HTTP request the server looks at.
+	 */
+	private static final class Request
+	{
+		private final String path;
+		private final Map<String, String> headers = new HashMap<String, String>();
+		private final Map<String, String> parameters = new HashMap<String, String>();
+
+		private Request(String path)
+		{
+			this.path = path;
+		}
+
+		/**
+		 * Reads the next request of a connection, or returns null if the client closed it.
+		 */
+		private static Request read(InputStream in) throws IOException
+		{
+			String requestLine = readLine(in);
+
+			if (requestLine == null || requestLine.length() == 0)
+			{
+				return null;
+			}
+
+			String[] parts = requestLine.split(" ");
+
+			if (parts.length < 2)
+			{
+				throw new IOException(String.format("Malformed request line: %s", requestLine));
+			}
+
+			String target = parts[1];
+			int query = target.indexOf('?');
+			Request request = new Request(query == -1 ? target : target.substring(0, query));
+
+			if (query != -1)
+			{
+				request.addParameters(target.substring(query + 1));
+			}
+
+			String line;
+
+			while ((line = readLine(in)) != null && line.length() > 0)
+			{
+				int colon = line.indexOf(':');
+
+				if (colon > 0)
+				{
+					request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+				}
+			}
+
+			String contentLength = request.headers.get("content-length");
+
+			if (contentLength != null)
+			{
+				byte[] body = new byte[Integer.parseInt(contentLength)];
+				int offset = 0;
+
+				while (offset < body.length)
+				{
+					int n = in.read(body, offset, body.length - offset);
+
+					if (n == -1)
+					{
+						throw new IOException("Request body ended early");
+					}
+
+					offset += n;
+				}
+
+				// Requests with many parameters send them as a form
+				request.addParameters(new String(body, "ISO-8859-1"));
+			}
+
+			return request;
+		}
+
+		private boolean accepts(String encoding)
+		{
+			String acceptEncoding = headers.get("accept-encoding");
+			return acceptEncoding != null && acceptEncoding.contains(encoding);
+		}
+
+		private void addParameters(String query) throws UnsupportedEncodingException
+		{
+			for (String parameter : query.split("&"))
+			{
+				int equals = parameter.indexOf('=');
+
+				if (equals > 0)
+				{
+					parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+				}
+			}
+		}
+
+		private static String readLine(InputStream in) throws IOException
+		{
+			StringBuilder line = new StringBuilder();
+			int c;
+
+			while ((c = in.read()) != -1)
+			{
+				if (c == '\n')
+				{
+					int length = line.length();
+					return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+				}
+
+				line.append((char) c);
+			}
+
+			return line.length() == 0 ? null : line.toString();
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package com.thejoshwa.ultrasonic.androidapp.tests;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Generates the responses of {@link FakeSubsonicServer} in XML and in JSON: the indexes of a large
+ * library, a large playlist, cover art and songs whose content is known at every offset.
+ * <p/>
+ * Responses are generated once for each size and format, so that generating them does not
+ * count in the measurements.
+ */
+public class Fixtures
+{
+	public static final Charset UTF_8 = Charset.forName("UTF-8");
+	public static final String SERVER_VERSION = "1.10.2";
+	public static final String IGNORED_ARTICLES = "The El La Los Las Le Les";
+	public static final long LAST_MODIFIED = 1388534400000L;
+	private static final String[] GENRES = {"Rock", "Jazz", "Electronic", "Classical", "Pop"};
+
+	private final Map<String, byte[]> responses = new HashMap<String, byte[]>();
+	private int artistCount = 40000;
+	private int playlistSize = 5000;
+	private long streamLength = 8L * 1024L * 1024L;
+	private byte[] coverArt;
+
+	/**
+	 * Sets the number of artists returned by getIndexes, which are spread evenly over the indexes A to Z.
+	 */
+	public synchronized void setArtistCount(int artistCount)
+	{
+		this.artistCount = artistCount;
+		responses.clear();
+	}
+
+	public synchronized void setPlaylistSize(int playlistSize)
+	{
+		this.playlistSize = playlistSize;
+		responses.clear();
+	}
+
+	public synchronized void setStreamLength(long streamLength)
+	{
+		this.streamLength = streamLength;
+	}
+
+	public synchronized long getStreamLength()
+	{
+		return streamLength;
+	}
+
+	/**
+	 * Sets the image returned by getCoverArt, without it the server answers with a "not found" error.
+	 */
+	public synchronized void setCoverArt(byte[] coverArt)
+	{
+		this.coverArt = coverArt;
+	}
+
+	public synchronized byte[] getCoverArt()
+	{
+		return coverArt;
+	}
+
+	/**
+	 * Returns the byte at the given offset of every song.
+	 */
+	public static byte getStreamByte(long position)
+	{
+		return (byte) (position * 31L + (position >>> 13));
+	}
+
+	/**
+	 * Fills the buffer with the given number of bytes of a song, starting at the given offset.
+	 */
+	public static void fillStream(long position, byte[] buffer, int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			buffer[i] = getStreamByte(position + i);
+		}
+	}
+
+	/**
+	 * Returns the response body of the given REST method.
+	 */
+	public synchronized byte[] getResponse(String method, boolean json)
+	{
+		String key = String.format("%s %s", method, json);
+		byte[] response = responses.get(key);
+
+		if (response == null)
+		{
+			response = createResponse(method, json).getBytes(UTF_8);
+			responses.put(key, response);
+		}
+
+		return response;
+	}
+
+	private String createResponse(String method, boolean json)
+	{
+		if ("ping".equals(method))
+		{
+			return json ? String.format("{\"subsonic-response\":{\"status\":\"ok\",\"version\":\"%s\"}}", SERVER_VERSION) : open("ok") + close();
+		}
+
+		if ("getLicense".equals(method))
+		{
+			if (json)
+			{
+				return String.format("{\"subsonic-response\":{\"status\":\"ok\",\"version\":\"%s\",\"license\":{\"valid\":true,\"email\":\"fixture@example.com\"}}}", SERVER_VERSION);
+			}
+
+			return open("ok") + "<license valid=\"true\" email=\"fixture@example.com\"/>" + close();
+		}
+
+		if ("getIndexes".equals(method))
+		{
+			return json ? createIndexesJson() : createIndexesXml();
+		}
+
+		if ("getPlaylist".equals(method))
+		{
+			return json ? createPlaylistJson() : createPlaylistXml();
+		}
+
+		if ("getCoverArt".equals(method))
+		{
+			return createError(json, 70, "Cover art not found");
+		}
+
+		return createError(json, 0, String.format("%s is not available on this server", method));
+	}
+
+	private static String createError(boolean json, int code, String message)
+	{
+		if (json)
+		{
+			return String.format(Locale.US, "{\"subsonic-response\":{\"status\":\"failed\",\"version\":\"%s\",\"error\":{\"code\":%d,\"message\":\"%s\"}}}", SERVER_VERSION, code, message);
+		}
+
+		return open("failed") + String.format(Locale.US, "<error code=\"%d\" message=\"%s\"/>", code, message) + close();
+	}
+
+	private String createIndexesXml()
+	{
+		StringBuilder builder = new StringBuilder(artistCount * 64);
+		builder.append(open("ok"));
+		builder.append(String.format(Locale.US, "<indexes lastModified=\"%d\" ignoredArticles=\"%s\">", LAST_MODIFIED, IGNORED_ARTICLES));
+		builder.append("<shortcut id=\"shortcut\" name=\"Podcasts\"/>");
+
+		for (char index = 'A'; index <= 'Z'; index++)
+		{
+			builder.append("<index name=\"").append(index).append("\">");
+
+			for (int artist = index - 'A'; artist < artistCount; artist += 26)
+			{
+				builder.append(String.format(Locale.US, "<artist id=\"%d\" name=\"%c %s\"/>", artist, index, getArtistName(artist)));
+			}
+
+			builder.append("</index>");
+		}
+
+		builder.append("</indexes>");
+		builder.append(close());
+		return builder.toString();
+	}
+
+	/**
+	 * The JSON indexes have their plain members after the indexes, so that they are only known at the end.
+	 */
+	private String createIndexesJson()
+	{
+		StringBuilder builder = new StringBuilder(artistCount * 48);
+		builder.append(String.format("{\"subsonic-response\":{\"status\":\"ok\",\"version\":\"%s\",\"indexes\":{", SERVER_VERSION));
+		builder.append("\"shortcut\":[{\"id\":\"shortcut\",\"name\":\"Podcasts\"}],\"index\":[");
+
+		for (char index = 'A'; index <= 'Z'; index++)
+		{
+			builder.append(index == 'A' ? "" : ",").append("{\"name\":\"").append(index).append("\",\"artist\":[");
+
+			for (int artist = index - 'A'; artist < artistCount; artist += 26)
+			{
+				builder.append(artist < 26 ? "" : ",");
+				builder.append(String.format(Locale.US, "{\"id\":\"%d\",\"name\":\"%c %s\"}", artist, index, getArtistName(artist)));
+			}
+
+			builder.append("]}");
+		}
+
+		builder.append(String.format(Locale.US, "],\"lastModified\":%d,\"ignoredArticles\":\"%s\"}}}", LAST_MODIFIED, IGNORED_ARTICLES));
+		return builder.toString();
+	}
+
+	private String createPlaylistXml()
+	{
+		StringBuilder builder = new StringBuilder(playlistSize * 400);
+		builder.append(open("ok"));
+		builder.append(String.format(Locale.US, "<playlist id=\"1\" name=\"Fixture\" owner=\"admin\" public=\"true\" songCount=\"%d\" duration=\"%d\" created=\"2014-01-01T00:00:00\">", playlistSize, playlistSize * 240));
+
+		for (int song = 0; song < playlistSize; song++)
+		{
+			int album = song / 10;
+			int artist = album / 5;
+			builder.append(String.format(Locale.US, "<entry id=\"%d\" parent=\"a%d\" title=\"Song %d\" album=\"Album %d\" artist=\"%s\" isDir=\"false\" coverArt=\"a%d\" track=\"%d\" year=\"2010\" genre=\"%s\" size=\"9600000\" contentType=\"audio/mpeg\" suffix=\"mp3\" duration=\"240\" bitRate=\"320\" path=\"%s/Album %d/%02d - Song %d.mp3\" isVideo=\"false\" albumId=\"%d\" artistId=\"%d\" type=\"music\"/>",
+					song, album, song, album, getArtistName(artist), album, song % 10 + 1, GENRES[artist % GENRES.length], getArtistName(artist), album, song % 10 + 1, song, album, artist));
+		}
+
+		builder.append("</playlist>");
+		builder.append(close());
+		return builder.toString();
+	}
+
+	private String createPlaylistJson()
+	{
+		StringBuilder builder = new StringBuilder(playlistSize * 400);
+		builder.append(String.format(Locale.US, "{\"subsonic-response\":{\"status\":\"ok\",\"version\":\"%s\",\"playlist\":{\"id\":\"1\",\"name\":\"Fixture\",\"owner\":\"admin\",\"public\":true,\"songCount\":%d,\"duration\":%d,\"created\":\"2014-01-01T00:00:00\",\"entry\":[", SERVER_VERSION, playlistSize, playlistSize * 240));
+
+		for (int song = 0; song < playlistSize; song++)
+		{
+			int album = song / 10;
+			int artist = album / 5;
+			builder.append(song == 0 ? "" : ",");
+			builder.append(String.format(Locale.US, "{\"id\":\"%d\",\"parent\":\"a%d\",\"title\":\"Song %d\",\"album\":\"Album %d\",\"artist\":\"%s\",\"isDir\":false,\"coverArt\":\"a%d\",\"track\":%d,\"year\":2010,\"genre\":\"%s\",\"size\":9600000,\"contentType\":\"audio/mpeg\",\"suffix\":\"mp3\",\"duration\":240,\"bitRate\":320,\"path\":\"%s/Album %d/%02d - Song %d.mp3\",\"isVideo\":false,\"albumId\":\"%d\",\"artistId\":\"%d\",\"type\":\"music\"}",
+					song, album, song, album, getArtistName(artist), album, song % 10 + 1, GENRES[artist % GENRES.length], getArtistName(artist), album, song % 10 + 1, song, album, artist));
+		}
+
+		builder.append("]}}}");
+		return builder.toString();
+	}
+
+	private static String getArtistName(int artist)
+	{
+		return String.format(Locale.US, "Artist %05d", artist);
+	}
+
+	private static String open(String status)
+	{
+		return String.format("<?xml version=\"1.0\" encoding=\"UTF-8\"?><subsonic-response xmlns=\"http://subsonic.org/restapi\" status=\"%s\" version=\"%s\">", status, SERVER_VERSION);
+	}
+
+	private static String close()
+	{
+		return "</subsonic-response>";
+	}
+}
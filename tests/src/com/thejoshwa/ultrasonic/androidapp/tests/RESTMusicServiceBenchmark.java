@@ -0,0 +1,187 @@
+package com.thejoshwa.ultrasonic.androidapp.tests;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.util.Log;
+
+import com.thejoshwa.ultrasonic.androidapp.domain.Indexes;
+import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory;
+import com.thejoshwa.ultrasonic.androidapp.util.FileUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+/**
+ * Benchmarks of {@link com.thejoshwa.ultrasonic.androidapp.service.RESTMusicService} against the
+ * fake server: request latency, parse time and allocation of large responses, and download
+ * throughput. The figures are written to the log with the tag Benchmark, followed by the
+ * request statistics of the service.
+ */
+public class RESTMusicServiceBenchmark extends FakeServerTestCase
+{
+	private static final String TAG = RESTMusicServiceBenchmark.class.getSimpleName();
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int ITERATIONS = 10;
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		Log.i(TAG, musicService.getStatistics(context));
+		super.tearDown();
+	}
+
+	public void testPing() throws Exception
+	{
+		new Benchmark("ping", 10, 50).run(new Benchmark.Operation()
+		{
+			@Override
+			public long run() throws Exception
+			{
+				musicService.ping(context, null);
+				return 0L;
+			}
+		});
+	}
+
+	public void testGetIndexesXml() throws Exception
+	{
+		benchmarkIndexes("getIndexes XML, 40000 artists", false);
+	}
+
+	public void testGetIndexesJson() throws Exception
+	{
+		benchmarkIndexes("getIndexes JSON, 40000 artists", true);
+	}
+
+	/**
+	 * The indexes from a server 200 ms away with 512 KB/s, where the response size counts more than the parser.
+	 */
+	public void testGetIndexesJsonSlowNetwork() throws Exception
+	{
+		server.setLatency(200L);
+		server.setBandwidth(512L * 1024L);
+		benchmarkIndexes("getIndexes JSON, 40000 artists, 200 ms, 512 KB/s", true);
+	}
+
+	public void testGetPlaylistXml() throws Exception
+	{
+		benchmarkPlaylist("getPlaylist XML, 5000 songs", false);
+	}
+
+	public void testGetPlaylistJson() throws Exception
+	{
+		benchmarkPlaylist("getPlaylist JSON, 5000 songs", true);
+	}
+
+	public void testGetCoverArt() throws Exception
+	{
+		final byte[] coverArt = createCoverArt(600);
+		fixtures.setCoverArt(coverArt);
+
+		final MusicDirectory.Entry entry = new MusicDirectory.Entry();
+		entry.setId("1");
+		entry.setCoverArt("1");
+		entry.setPath("Benchmark/Album/01 - Song.mp3");
+		final File albumArtFile = FileUtil.getAlbumArtFile(context, entry);
+
+		new Benchmark("getCoverArt, 600x600 JPEG scaled to 300x300", WARMUP_ITERATIONS, ITERATIONS).run(new Benchmark.Operation()
+		{
+			@Override
+			public long run() throws Exception
+			{
+				// The file left by the previous iteration would be used instead of the server
+				if (albumArtFile != null)
+				{
+					albumArtFile.delete();
+				}
+
+				Bitmap bitmap = musicService.getCoverArt(context, entry, 300, false, true, null);
+				assertNotNull(bitmap);
+				bitmap.recycle();
+				return coverArt.length;
+			}
+		});
+	}
+
+	public void testStream() throws Exception
+	{
+		benchmarkStream("stream, 8 MB, Apache HTTP client");
+	}
+
+	public void testStreamSystemHttpClient() throws Exception
+	{
+		useSystemHttpClient();
+		benchmarkStream("stream, 8 MB, system HTTP client");
+	}
+
+	private void benchmarkIndexes(String name, boolean json) throws Exception
+	{
+		server.setJsonEnabled(json);
+
+		// Tells the service the server version, which it needs to ask for JSON
+		musicService.ping(context, null);
+
+		new Benchmark(name, WARMUP_ITERATIONS, ITERATIONS).run(new Benchmark.Operation()
+		{
+			@Override
+			public long run() throws Exception
+			{
+				Indexes indexes = musicService.getIndexes(null, true, context, null);
+				assertEquals(40000, indexes.getArtists().size());
+				return 0L;
+			}
+		});
+	}
+
+	private void benchmarkPlaylist(String name, boolean json) throws Exception
+	{
+		server.setJsonEnabled(json);
+		musicService.ping(context, null);
+
+		new Benchmark(name, WARMUP_ITERATIONS, ITERATIONS).run(new Benchmark.Operation()
+		{
+			@Override
+			public long run() throws Exception
+			{
+				MusicDirectory playlist = musicService.getPlaylist("1", "Benchmark", context, null);
+				assertEquals(5000, playlist.getChildren().size());
+				return 0L;
+			}
+		});
+	}
+
+	private void benchmarkStream(String name) throws Exception
+	{
+		final MusicDirectory.Entry song = new MusicDirectory.Entry();
+		song.setId("1");
+
+		new Benchmark(name, 1, 5).run(new Benchmark.Operation()
+		{
+			@Override
+			public long run() throws Exception
+			{
+				return RESTMusicServiceTest.readStream(musicService.getDownloadInputStream(context, song, 0L, 0, null), 0L);
+			}
+		});
+	}
+
+	/**
+	 * Returns a JPEG of the given size with a gradient.
+	 */
+	private static byte[] createCoverArt(int size)
+	{
+		Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+		Paint paint = new Paint();
+		paint.setShader(new LinearGradient(0, 0, size, size, Color.RED, Color.BLUE, Shader.TileMode.MIRROR));
+		new Canvas(bitmap).drawRect(0, 0, size, size, paint);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+		bitmap.recycle();
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,174 @@
+package com.thejoshwa.ultrasonic.androidapp.tests;
+
+import com.thejoshwa.ultrasonic.androidapp.domain.Artist;
+import com.thejoshwa.ultrasonic.androidapp.domain.Indexes;
+import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory;
+import com.thejoshwa.ultrasonic.androidapp.service.parser.SubsonicRESTException;
+
+import org.apache.http.HttpResponse;
+
+import java.io.InputStream;
+
+/**
+ * Tests {@link com.thejoshwa.ultrasonic.androidapp.service.RESTMusicService} end to end against
+ * the fake server, in both response formats and with a slow or failing server.
+ */
+public class RESTMusicServiceTest extends FakeServerTestCase
+{
+	public void testIndexesAreTheSameInXmlAndJson() throws Exception
+	{
+		fixtures.setArtistCount(2000);
+
+		server.setJsonEnabled(false);
+		Indexes xml = musicService.getIndexes(null, true, context, null);
+
+		// The XML response told the service the server version, so JSON is asked for from now on
+		server.setJsonEnabled(true);
+		Indexes json = musicService.getIndexes(null, true, context, null);
+
+		for (Indexes indexes : new Indexes[]{xml, json})
+		{
+			assertEquals(Fixtures.LAST_MODIFIED, indexes.getLastModified());
+			assertEquals(Fixtures.IGNORED_ARTICLES, indexes.getIgnoredArticles());
+			assertEquals(1, indexes.getShortcuts().size());
+			assertEquals(2000, indexes.getArtists().size());
+		}
+
+		for (int i = 0; i < xml.getArtists().size(); i++)
+		{
+			Artist expected = xml.getArtists().get(i);
+			Artist actual = json.getArtists().get(i);
+			assertEquals(expected.getId(), actual.getId());
+			assertEquals(expected.getName(), actual.getName());
+			assertEquals(expected.getIndex(), actual.getIndex());
+		}
+	}
+
+	public void testPlaylist() throws Exception
+	{
+		MusicDirectory playlist = musicService.getPlaylist("1", "Fixture", context, null);
+
+		assertEquals(5000, playlist.getChildren().size());
+		assertEquals("Song 4999", playlist.getChildren().get(4999).getTitle());
+	}
+
+	public void testRangedStream() throws Exception
+	{
+		MusicDirectory.Entry song = new MusicDirectory.Entry();
+		song.setId("1");
+
+		HttpResponse response = musicService.getDownloadInputStream(context, song, 100000L, 50000L, 0, null);
+
+		assertEquals(206, response.getStatusLine().getStatusCode());
+		assertEquals(50000L, readStream(response, 100000L));
+	}
+
+	public void testCoverArtNotFound() throws Exception
+	{
+		MusicDirectory.Entry entry = new MusicDirectory.Entry();
+		entry.setId("1");
+		entry.setCoverArt("missing");
+
+		try
+		{
+			musicService.getCoverArt(context, entry, 100, false, false, null);
+			fail("The error response was not reported");
+		}
+		catch (SubsonicRESTException expected)
+		{
+			assertEquals(70, expected.getCode());
+		}
+	}
+
+	public void testDroppedConnectionsAreRetried() throws Exception
+	{
+		server.injectFailures(FakeSubsonicServer.Failure.DROP_CONNECTION, 2);
+
+		musicService.ping(context, null);
+
+		assertEquals(3, server.getRequestCount("ping"));
+	}
+
+	public void testServiceUnavailableIsRetried() throws Exception
+	{
+		server.injectFailures(FakeSubsonicServer.Failure.SERVICE_UNAVAILABLE, 2);
+
+		musicService.ping(context, null);
+
+		assertEquals(3, server.getRequestCount("ping"));
+	}
+
+	public void testTruncatedResponseFails() throws Exception
+	{
+		server.injectFailures(FakeSubsonicServer.Failure.TRUNCATE, 1);
+
+		try
+		{
+			musicService.getPlaylist("1", "Fixture", context, null);
+			fail("The truncated response was parsed");
+		}
+		catch (Exception expected)
+		{
+			// The body ended before the playlist did
+		}
+	}
+
+	public void testLatency() throws Exception
+	{
+		server.setLatency(300L);
+
+		long start = System.currentTimeMillis();
+		musicService.ping(context, null);
+
+		assertTrue(System.currentTimeMillis() - start >= 300L);
+	}
+
+	public void testBandwidth() throws Exception
+	{
+		fixtures.setStreamLength(256L * 1024L);
+		server.setBandwidth(128L * 1024L);
+
+		MusicDirectory.Entry song = new MusicDirectory.Entry();
+		song.setId("1");
+
+		long start = System.currentTimeMillis();
+		long length = readStream(musicService.getDownloadInputStream(context, song, 0L, 0, null), 0L);
+
+		assertEquals(256L * 1024L, length);
+		assertTrue(System.currentTimeMillis() - start >= 1900L);
+	}
+
+	/**
+	 * Reads the song in the response, checks its content, and returns its length.
+	 */
+	static long readStream(HttpResponse response, long offset) throws Exception
+	{
+		InputStream in = response.getEntity().getContent();
+
+		try
+		{
+			byte[] buffer = new byte[16384];
+			long position = offset;
+			int n;
+
+			while ((n = in.read(buffer)) != -1)
+			{
+				for (int i = 0; i < n; i++)
+				{
+					if (buffer[i] != Fixtures.getStreamByte(position + i))
+					{
+						fail(String.format("Wrong byte at offset %d", position + i));
+					}
+				}
+
+				position += n;
+			}
+
+			return position - offset;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}